@@ -18,9 +18,8 @@ package com.sonymobile.common;
 
 import android.media.MediaCodec.CryptoInfo;
 import android.media.MediaFormat;
-//
-import java.io.Serializable;
-//
+
+import java.nio.ByteBuffer;
 
 public class AccessUnit {
     public static final AccessUnit ACCESS_UNIT_ERROR = new AccessUnit(AccessUnit.ERROR);
@@ -59,10 +58,41 @@ public class AccessUnit {
 
     public CryptoInfo cryptoInfo;
 
+    public ByteBuffer buffer;
+
+    /** Pool the unit came from, null if it was allocated directly. */
+    AccessUnitPool pool;
+
+    /** Number of holders of a pooled unit, guarded by the pool. */
+    int references;
+
     public AccessUnit() {
     }
 
     public AccessUnit(int status) {
         this.status = status;
     }
+
+    /**
+     * Adds a holder of the unit, which must call {@link #recycle()} when done
+     * with it. Used to keep the unit and its data from being reused while,
+     * for instance, the relay still holds it after the codec has consumed
+     * it. Does nothing for units that do not come from a pool.
+     */
+    public void retain() {
+        if (pool != null) {
+            pool.retain(this);
+        }
+    }
+
+    /**
+     * Releases one holder of the unit. Once the last one is gone the unit
+     * and its data go back to the pool it came from. Does nothing for units
+     * that do not come from a pool.
+     */
+    public void recycle() {
+        if (pool != null) {
+            pool.recycle(this);
+        }
+    }
 }
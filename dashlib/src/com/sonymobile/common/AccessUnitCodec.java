@@ -0,0 +1,455 @@
+/*
+ * Copyright (C) 2014 Sony Mobile Communications Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.sonymobile.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import android.media.MediaCodec.CryptoInfo;
+import android.media.MediaFormat;
+
+/**
+ * Binary wire format used to relay AccessUnits from the seeder to a peer.
+ *
+ * Every frame is length prefixed and starts with a fixed header, followed by
+ * an optional CENC block and the raw payload. All values are big endian.
+ *
+ * <pre>
+ *  0  int   frame length (number of bytes following this field)
+ *  4  byte  version
+ *  5  byte  track (one of the RelayProtocol.TRACK_* values)
+ *  6  byte  flags
+ *  7  byte  reserved
+ *  8  int   header length (fixed header + CENC block)
+ * 12  int   status
+ * 16  int   track index
+ * 20  long  timeUs
+ * 28  long  durationUs
+ * 36  int   payload size
+ * 40  ...   CENC block if FLAG_ENCRYPTED is set
+ *     ...   payload
+ * </pre>
+ *
+ * The CENC block is laid out as mode (byte), key length (byte), key, iv
+ * length (byte), iv, number of subsamples (short) followed by the clear and
+ * encrypted byte counts (int each) of every subsample.
+ *
+ * A track format is sent in a FORMAT_CHANGED frame whose payload is the
+ * encoded MediaFormat, see {@link #encodeFormat(MediaFormat, byte[], byte[])}.
+ * An announcement made ahead of the access units has timeUs -1 and an empty
+ * payload announces that the track is not present. A format change in stream
+ * order carries the timestamp of the first access unit in the new format.
+ */
+public final class AccessUnitCodec {
+
+    public static final byte VERSION = 2;
+
+    public static final int FIXED_HEADER_SIZE = 40;
+
+    public static final int FLAG_SYNC_SAMPLE = 0x01;
+
+    public static final int FLAG_ENCRYPTED = 0x02;
+
+    private static final int LENGTH_FIELD_SIZE = 4;
+
+    private static final int MAX_HEADER_SIZE = 0xFFFF;
+
+    private static final int FORMAT_VALUE_STRING = 1;
+
+    private static final int FORMAT_VALUE_INTEGER = 2;
+
+    private static final int FORMAT_VALUE_LONG = 3;
+
+    private static final int FORMAT_VALUE_BUFFER = 4;
+
+    /**
+     * Format key holding the system id of the DRM scheme protecting the
+     * content, set on a decoded format if the seeder announced one.
+     */
+    public static final String KEY_DRM_SYSTEM_ID = "drm-system-id";
+
+    /**
+     * Format key holding the DRM initialization data (pssh) that goes with
+     * KEY_DRM_SYSTEM_ID.
+     */
+    public static final String KEY_DRM_INIT_DATA = "drm-init-data";
+
+    /**
+     * MediaFormat keys carried by a format announcement, by value type. The
+     * DRM and sample aspect ratio keys are the ones set by the parsers, see
+     * MetaData.KEY_DRM_UUID, MetaData.KEY_MARLIN_JSON and
+     * MetaData.KEY_SAR_WIDTH/HEIGHT.
+     */
+    private static final String[] FORMAT_STRING_KEYS = {
+            MediaFormat.KEY_MIME, MediaFormat.KEY_LANGUAGE, "uudm", "json_drm"
+    };
+
+    private static final String[] FORMAT_INTEGER_KEYS = {
+            MediaFormat.KEY_WIDTH, MediaFormat.KEY_HEIGHT, MediaFormat.KEY_SAMPLE_RATE,
+            MediaFormat.KEY_CHANNEL_COUNT, MediaFormat.KEY_MAX_INPUT_SIZE,
+            "nal-length-size", "sar_width", "sar_height", "is-marlin-protected"
+    };
+
+    private static final String[] FORMAT_LONG_KEYS = {
+            MediaFormat.KEY_DURATION
+    };
+
+    private static final String[] FORMAT_BUFFER_KEYS = {
+            "csd-0", "csd-1"
+    };
+
+    private ByteBuffer mHeader = ByteBuffer.allocate(FIXED_HEADER_SIZE);
+
+    /**
+     * Returns the number of header bytes, including the length field, that
+     * {@link #encodeHeader(int, AccessUnit)} will produce for the access unit.
+     */
+    public static int getHeaderSize(AccessUnit accessUnit) {
+        CryptoInfo info = accessUnit.cryptoInfo;
+        if (info == null) {
+            return FIXED_HEADER_SIZE;
+        }
+
+        int size = FIXED_HEADER_SIZE + 1 + 1 + 1 + 2;
+        size += info.key != null ? info.key.length : 0;
+        size += info.iv != null ? info.iv.length : 0;
+        size += info.numSubSamples * 8;
+        return size;
+    }
+
+    /**
+     * Encodes the header of an access unit on the given relay track. The
+     * returned buffer is owned by this codec and is only valid until the next
+     * call.
+     */
+    public ByteBuffer encodeHeader(int track, AccessUnit accessUnit) throws IOException {
+        int headerSize = getHeaderSize(accessUnit);
+        if (headerSize > MAX_HEADER_SIZE) {
+            throw new IOException("Header too large: " + headerSize);
+        }
+
+        if (mHeader.capacity() < headerSize) {
+            mHeader = ByteBuffer.allocate(headerSize);
+        }
+
+        CryptoInfo info = accessUnit.cryptoInfo;
+        if (info != null) {
+            // The key and IV lengths are one byte, the subsample count two.
+            if ((info.key != null && info.key.length > 0xFF)
+                    || (info.iv != null && info.iv.length > 0xFF)) {
+                throw new IOException("Key or IV too long for relay frame");
+            }
+            if (info.numSubSamples > 0xFFFF) {
+                throw new IOException("Too many subsamples: " + info.numSubSamples);
+            }
+        }
+
+        int payloadSize = getPayloadSize(accessUnit);
+        int flags = 0;
+        if (accessUnit.isSyncSample) {
+            flags |= FLAG_SYNC_SAMPLE;
+        }
+        if (info != null) {
+            flags |= FLAG_ENCRYPTED;
+        }
+
+        ByteBuffer header = mHeader;
+        header.clear();
+        header.putInt(headerSize - LENGTH_FIELD_SIZE + payloadSize);
+        header.put(VERSION);
+        header.put((byte)track);
+        header.put((byte)flags);
+        header.put((byte)0);
+        header.putInt(headerSize);
+        header.putInt(accessUnit.status);
+        header.putInt(accessUnit.trackIndex);
+        header.putLong(accessUnit.timeUs);
+        header.putLong(accessUnit.durationUs);
+        header.putInt(payloadSize);
+
+        if (info != null) {
+            header.put((byte)info.mode);
+            putBytes(header, info.key);
+            putBytes(header, info.iv);
+            header.putShort((short)info.numSubSamples);
+            for (int i = 0; i < info.numSubSamples; i++) {
+                header.putInt(info.numBytesOfClearData != null ?
+                        info.numBytesOfClearData[i] : 0);
+                header.putInt(info.numBytesOfEncryptedData != null ?
+                        info.numBytesOfEncryptedData[i] : 0);
+            }
+        }
+
+        header.flip();
+        return header;
+    }
+
+    /**
+     * Decodes the fixed header from src into accessUnit. src must be
+     * positioned at the start of the frame and contain at least
+     * FIXED_HEADER_SIZE bytes. On return src is positioned after the fixed
+     * header and the total header size is returned. The relay track can be
+     * read with {@link #getTrack(ByteBuffer)}.
+     */
+    public static int decodeFixedHeader(ByteBuffer src, AccessUnit accessUnit)
+            throws IOException {
+        int frameLength = src.getInt();
+        byte version = src.get();
+        if (version != VERSION) {
+            throw new IOException("Unsupported relay version " + version);
+        }
+
+        src.get(); // track
+        int flags = src.get();
+        src.get(); // reserved
+        int headerSize = src.getInt();
+        accessUnit.status = src.getInt();
+        accessUnit.trackIndex = src.getInt();
+        accessUnit.timeUs = src.getLong();
+        accessUnit.durationUs = src.getLong();
+        accessUnit.size = src.getInt();
+        accessUnit.isSyncSample = (flags & FLAG_SYNC_SAMPLE) != 0;
+
+        if (headerSize < FIXED_HEADER_SIZE || headerSize > MAX_HEADER_SIZE
+                || accessUnit.size < 0
+                || frameLength != headerSize - LENGTH_FIELD_SIZE + accessUnit.size) {
+            throw new IOException("Malformed relay frame");
+        }
+
+        if ((flags & FLAG_ENCRYPTED) != 0) {
+            if (headerSize == FIXED_HEADER_SIZE) {
+                throw new IOException("Missing CENC block");
+            }
+        } else if (headerSize != FIXED_HEADER_SIZE) {
+            throw new IOException("Unexpected CENC block");
+        }
+
+        return headerSize;
+    }
+
+    /**
+     * Returns the relay track of the frame whose fixed header starts at
+     * position 0 of header.
+     */
+    public static int getTrack(ByteBuffer header) {
+        return header.get(5);
+    }
+
+    /**
+     * Decodes the CENC block that follows the fixed header into a new
+     * CryptoInfo on accessUnit.
+     */
+    public static void decodeCryptoInfo(ByteBuffer src, AccessUnit accessUnit)
+            throws IOException {
+        try {
+            int mode = src.get();
+            byte[] key = getBytes(src);
+            byte[] iv = getBytes(src);
+            int numSubSamples = src.getShort() & 0xFFFF;
+            int[] clearData = new int[numSubSamples];
+            int[] encryptedData = new int[numSubSamples];
+            for (int i = 0; i < numSubSamples; i++) {
+                clearData[i] = src.getInt();
+                encryptedData[i] = src.getInt();
+            }
+
+            CryptoInfo info = new CryptoInfo();
+            info.set(numSubSamples, clearData, encryptedData, key, iv, mode);
+            accessUnit.cryptoInfo = info;
+        } catch (RuntimeException e) {
+            throw new IOException("Malformed CENC block", e);
+        }
+    }
+
+    /**
+     * Returns the number of payload bytes relayed for the access unit.
+     */
+    public static int getPayloadSize(AccessUnit accessUnit) {
+        if ((accessUnit.status != AccessUnit.OK
+                && accessUnit.status != AccessUnit.FORMAT_CHANGED)
+                || accessUnit.data == null) {
+            return 0;
+        }
+        return accessUnit.size;
+    }
+
+    /**
+     * Creates the FORMAT_CHANGED access unit announcing format, or announcing
+     * that the track is not present if format is null.
+     *
+     * @param drmSystemId system id of the DRM scheme, or null if the content
+     *            is clear or the scheme is carried by the format itself.
+     * @param drmInitData initialization data for the DRM scheme, or null.
+     */
+    public static AccessUnit createFormatAccessUnit(MediaFormat format, byte[] drmSystemId,
+            byte[] drmInitData) {
+        AccessUnit accessUnit = new AccessUnit(AccessUnit.FORMAT_CHANGED);
+        accessUnit.timeUs = -1;
+        if (format != null) {
+            accessUnit.data = encodeFormat(format, drmSystemId, drmInitData);
+            accessUnit.size = accessUnit.data.length;
+        }
+        return accessUnit;
+    }
+
+    /**
+     * Encodes the relayed keys of format as a count (short) followed by, for
+     * every key present, the value type (byte), the key and the value.
+     * Strings are UTF-8 prefixed by their length (short), buffers are
+     * prefixed by their length (int). The DRM scheme, if any, is added as
+     * the KEY_DRM_SYSTEM_ID and KEY_DRM_INIT_DATA buffers.
+     */
+    public static byte[] encodeFormat(MediaFormat format, byte[] drmSystemId,
+            byte[] drmInitData) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            int count = 0;
+            count += countKeys(format, FORMAT_STRING_KEYS);
+            count += countKeys(format, FORMAT_INTEGER_KEYS);
+            count += countKeys(format, FORMAT_LONG_KEYS);
+            count += countKeys(format, FORMAT_BUFFER_KEYS);
+            count += drmSystemId != null ? 1 : 0;
+            count += drmInitData != null ? 1 : 0;
+            out.writeShort(count);
+
+            for (String key : FORMAT_STRING_KEYS) {
+                if (format.containsKey(key)) {
+                    out.writeByte(FORMAT_VALUE_STRING);
+                    out.writeUTF(key);
+                    out.writeUTF(format.getString(key));
+                }
+            }
+            for (String key : FORMAT_INTEGER_KEYS) {
+                if (format.containsKey(key)) {
+                    out.writeByte(FORMAT_VALUE_INTEGER);
+                    out.writeUTF(key);
+                    out.writeInt(format.getInteger(key));
+                }
+            }
+            for (String key : FORMAT_LONG_KEYS) {
+                if (format.containsKey(key)) {
+                    out.writeByte(FORMAT_VALUE_LONG);
+                    out.writeUTF(key);
+                    out.writeLong(format.getLong(key));
+                }
+            }
+            for (String key : FORMAT_BUFFER_KEYS) {
+                if (format.containsKey(key)) {
+                    ByteBuffer value = format.getByteBuffer(key).duplicate();
+                    value.position(0);
+                    out.writeByte(FORMAT_VALUE_BUFFER);
+                    out.writeUTF(key);
+                    out.writeInt(value.remaining());
+                    while (value.hasRemaining()) {
+                        out.writeByte(value.get());
+                    }
+                }
+            }
+            writeBuffer(out, KEY_DRM_SYSTEM_ID, drmSystemId);
+            writeBuffer(out, KEY_DRM_INIT_DATA, drmInitData);
+        } catch (IOException e) {
+            // Cannot happen when writing to memory.
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decodes a format encoded by
+     * {@link #encodeFormat(MediaFormat, byte[], byte[])} from the
+     * remaining bytes of src.
+     */
+    public static MediaFormat decodeFormat(ByteBuffer src) throws IOException {
+        byte[] bytes = new byte[src.remaining()];
+        src.get(bytes);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+
+        MediaFormat format = new MediaFormat();
+        int count = in.readUnsignedShort();
+        for (int i = 0; i < count; i++) {
+            int type = in.readByte();
+            String key = in.readUTF();
+            switch (type) {
+                case FORMAT_VALUE_STRING:
+                    format.setString(key, in.readUTF());
+                    break;
+                case FORMAT_VALUE_INTEGER:
+                    format.setInteger(key, in.readInt());
+                    break;
+                case FORMAT_VALUE_LONG:
+                    format.setLong(key, in.readLong());
+                    break;
+                case FORMAT_VALUE_BUFFER:
+                    int length = in.readInt();
+                    if (length < 0 || length > in.available()) {
+                        throw new IOException("Malformed format value for " + key);
+                    }
+                    byte[] value = new byte[length];
+                    in.readFully(value);
+                    format.setByteBuffer(key, ByteBuffer.wrap(value));
+                    break;
+                default:
+                    throw new IOException("Unknown format value type " + type);
+            }
+        }
+        return format;
+    }
+
+    private static void writeBuffer(DataOutputStream out, String key, byte[] value)
+            throws IOException {
+        if (value != null) {
+            out.writeByte(FORMAT_VALUE_BUFFER);
+            out.writeUTF(key);
+            out.writeInt(value.length);
+            out.write(value);
+        }
+    }
+
+    private static int countKeys(MediaFormat format, String[] keys) {
+        int count = 0;
+        for (String key : keys) {
+            if (format.containsKey(key)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static void putBytes(ByteBuffer dst, byte[] bytes) {
+        if (bytes == null) {
+            dst.put((byte)0);
+        } else {
+            dst.put((byte)bytes.length);
+            dst.put(bytes);
+        }
+    }
+
+    private static byte[] getBytes(ByteBuffer src) {
+        int length = src.get() & 0xFF;
+        if (length == 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        src.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2014 Sony Mobile Communications Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.sonymobile.common;
+
+import java.util.ArrayDeque;
+
+/**
+ * Pool of access units together with their payload arrays, owned by the
+ * track producing them. The consumer hands a unit back with
+ * {@link AccessUnit#recycle()} once its data has been copied into a codec
+ * input buffer, and the next sample of the track reuses both the unit and
+ * its array. Units that are never recycled are simply left to the GC.
+ *
+ * A unit has one holder when obtained. Others, such as the relay, add
+ * themselves with {@link AccessUnit#retain()} and the unit is only reused
+ * once every holder has recycled it.
+ *
+ * Obtained on the demuxer thread and recycled on the codec thread, hence
+ * synchronized.
+ */
+public final class AccessUnitPool {
+
+    private static final int DEFAULT_MAX_POOLED_UNITS = 64;
+
+    private final ArrayDeque<AccessUnit> mFreeUnits;
+
+    private final int mMaxPooledUnits;
+
+    private int mCreatedCount;
+
+    public AccessUnitPool() {
+        this(DEFAULT_MAX_POOLED_UNITS);
+    }
+
+    public AccessUnitPool(int maxPooledUnits) {
+        mMaxPooledUnits = maxPooledUnits;
+        mFreeUnits = new ArrayDeque<AccessUnit>(maxPooledUnits);
+    }
+
+    /**
+     * Returns a cleared access unit. Its data array, if any, is kept from the
+     * previous use and may be larger than needed; size tells how much of it
+     * is valid.
+     */
+    public synchronized AccessUnit obtain() {
+        AccessUnit accessUnit = mFreeUnits.pollFirst();
+        if (accessUnit == null) {
+            accessUnit = new AccessUnit();
+            accessUnit.pool = this;
+            accessUnit.references = 1;
+            mCreatedCount++;
+            return accessUnit;
+        }
+
+        accessUnit.references = 1;
+        accessUnit.status = AccessUnit.OK;
+        accessUnit.size = 0;
+        accessUnit.timeUs = 0;
+        accessUnit.durationUs = 0;
+        accessUnit.isSyncSample = false;
+        accessUnit.trackIndex = 0;
+        accessUnit.format = null;
+        accessUnit.cryptoInfo = null;
+        accessUnit.buffer = null;
+        return accessUnit;
+    }
+
+    /**
+     * Returns the number of access units allocated by the pool, which stops
+     * growing once the consumer recycles in steady state.
+     */
+    public synchronized int getCreatedCount() {
+        return mCreatedCount;
+    }
+
+    synchronized void retain(AccessUnit accessUnit) {
+        if (accessUnit.references > 0) {
+            accessUnit.references++;
+        }
+    }
+
+    synchronized void recycle(AccessUnit accessUnit) {
+        if (accessUnit.references <= 0 || --accessUnit.references > 0) {
+            return;
+        }
+        if (mFreeUnits.size() < mMaxPooledUnits) {
+            mFreeUnits.addLast(accessUnit);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2014 Sony Mobile Communications Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.sonymobile.common;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Pool of direct ByteBuffers bucketed by power-of-two capacity. Used by the
+ * relay transport so that payloads received from the network can be copied
+ * once into a MediaCodec input buffer without allocating per frame.
+ */
+public final class DirectBufferPool {
+
+    private static final int MIN_CAPACITY_SHIFT = 10; // 1 KiB
+
+    private static final int MAX_CAPACITY_SHIFT = 23; // 8 MiB
+
+    private static final int DEFAULT_BUFFERS_PER_BUCKET = 8;
+
+    private final ArrayDeque<ByteBuffer>[] mBuckets;
+
+    private final int mBuffersPerBucket;
+
+    public DirectBufferPool() {
+        this(DEFAULT_BUFFERS_PER_BUCKET);
+    }
+
+    @SuppressWarnings("unchecked")
+    public DirectBufferPool(int buffersPerBucket) {
+        mBuffersPerBucket = buffersPerBucket;
+        mBuckets = new ArrayDeque[MAX_CAPACITY_SHIFT - MIN_CAPACITY_SHIFT + 1];
+        for (int i = 0; i < mBuckets.length; i++) {
+            mBuckets[i] = new ArrayDeque<ByteBuffer>(buffersPerBucket);
+        }
+    }
+
+    /**
+     * Returns a cleared direct buffer with at least size bytes of capacity
+     * and its limit set to size.
+     */
+    public ByteBuffer acquire(int size) {
+        int bucket = bucketFor(size);
+        if (bucket < 0) {
+            // Larger than anything we pool, let the GC handle it.
+            return ByteBuffer.allocateDirect(size);
+        }
+
+        ByteBuffer buffer;
+        synchronized (mBuckets[bucket]) {
+            buffer = mBuckets[bucket].pollFirst();
+        }
+
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(1 << (bucket + MIN_CAPACITY_SHIFT));
+        }
+
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /**
+     * Returns buffer to the pool. Buffers that were not obtained from
+     * {@link #acquire(int)} are ignored.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+
+        int capacity = buffer.capacity();
+        int bucket = bucketFor(capacity);
+        if (bucket < 0 || (1 << (bucket + MIN_CAPACITY_SHIFT)) != capacity) {
+            return;
+        }
+
+        synchronized (mBuckets[bucket]) {
+            if (mBuckets[bucket].size() < mBuffersPerBucket) {
+                mBuckets[bucket].addFirst(buffer);
+            }
+        }
+    }
+
+    public void clear() {
+        for (int i = 0; i < mBuckets.length; i++) {
+            synchronized (mBuckets[i]) {
+                mBuckets[i].clear();
+            }
+        }
+    }
+
+    private static int bucketFor(int size) {
+        int shift = MIN_CAPACITY_SHIFT;
+        while ((1 << shift) < size) {
+            shift++;
+            if (shift > MAX_CAPACITY_SHIFT) {
+                return -1;
+            }
+        }
+        return shift - MIN_CAPACITY_SHIFT;
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2014 Sony Mobile Communications Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.sonymobile.common;
+
+import java.util.ArrayDeque;
+
+/**
+ * Time based jitter buffer for the access units of one relayed track.
+ *
+ * Access units are held back until the buffer spans the target playout
+ * delay, measured on the relayed timestamps, and are then handed out as fast
+ * as the codec asks for them. If the buffer runs dry the track has underrun
+ * and is primed again before playback continues, so a network stall turns
+ * into one rebuffering pause instead of a stutter on every frame. Holding
+ * more than OVERRUN_FACTOR times the target delay is reported as an overrun,
+ * which normally means the consumer has stalled.
+ *
+ * Never blocks; poll() returns null when nothing may be played.
+ */
+public final class JitterBuffer {
+
+    private static final int OVERRUN_FACTOR = 3;
+
+    private final ArrayDeque<AccessUnit> mQueue;
+
+    private final int mCapacity;
+
+    private long mTargetDelayUs;
+
+    private boolean mPrimed;
+
+    private boolean mOverrun;
+
+    private boolean mEos;
+
+    private int mUnderrunCount;
+
+    private int mOverrunCount;
+
+    /**
+     * @param capacity maximum number of access units held.
+     * @param targetDelayUs buffered duration to reach before playout starts,
+     *            0 to hand out access units as soon as they arrive.
+     */
+    public JitterBuffer(int capacity, long targetDelayUs) {
+        mQueue = new ArrayDeque<AccessUnit>(capacity);
+        mCapacity = capacity;
+        mTargetDelayUs = targetDelayUs;
+    }
+
+    public synchronized void setTargetDelayUs(long targetDelayUs) {
+        mTargetDelayUs = targetDelayUs;
+    }
+
+    /**
+     * Adds a received access unit.
+     *
+     * @return false if the buffer is full and the access unit was not added.
+     */
+    public synchronized boolean offer(AccessUnit accessUnit) {
+        if (mQueue.size() >= mCapacity) {
+            return false;
+        }
+        mQueue.addLast(accessUnit);
+        if (accessUnit.status == AccessUnit.OK) {
+            mEos = false;
+        }
+
+        if (!mOverrun && mTargetDelayUs > 0
+                && getBufferedDurationUsLocked() > mTargetDelayUs * OVERRUN_FACTOR) {
+            mOverrun = true;
+            mOverrunCount++;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the next access unit to play, or null if the buffer is empty
+     * or still priming.
+     */
+    public synchronized AccessUnit poll() {
+        if (mQueue.isEmpty()) {
+            if (mPrimed && !mEos) {
+                mPrimed = false;
+                mUnderrunCount++;
+            }
+            return null;
+        }
+
+        if (!mPrimed) {
+            if (getBufferedDurationUsLocked() < mTargetDelayUs
+                    && mQueue.peekLast().status != AccessUnit.END_OF_STREAM
+                    && mQueue.size() < mCapacity) {
+                return null;
+            }
+            mPrimed = true;
+        }
+
+        AccessUnit accessUnit = mQueue.pollFirst();
+        if (accessUnit.status == AccessUnit.END_OF_STREAM) {
+            mEos = true;
+        }
+        if (mOverrun && getBufferedDurationUsLocked() <= mTargetDelayUs) {
+            mOverrun = false;
+        }
+        return accessUnit;
+    }
+
+    /**
+     * Removes the oldest access unit regardless of priming, or returns null
+     * if empty. Used to drain the buffer.
+     */
+    public synchronized AccessUnit remove() {
+        return mQueue.pollFirst();
+    }
+
+    /**
+     * Drops priming and EOS state, to be called when a new stream starts.
+     */
+    public synchronized void reset() {
+        mPrimed = false;
+        mOverrun = false;
+        mEos = false;
+    }
+
+    public synchronized long getBufferedDurationUs() {
+        return getBufferedDurationUsLocked();
+    }
+
+    public synchronized int getUnderrunCount() {
+        return mUnderrunCount;
+    }
+
+    public synchronized int getOverrunCount() {
+        return mOverrunCount;
+    }
+
+    private long getBufferedDurationUsLocked() {
+        if (mQueue.size() < 2) {
+            return 0;
+        }
+        return mQueue.peekLast().timeUs - mQueue.peekFirst().timeUs;
+    }
+}
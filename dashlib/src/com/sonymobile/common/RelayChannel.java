@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2014 Sony Mobile Communications Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.sonymobile.common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+/**
+ * Blocking SocketChannel transport for relayed AccessUnits.
+ *
+ * Writes send the encoded header and the AccessUnit payload in a single
+ * gathering write. Several frames can be coalesced into one gathering write
+ * by queueing them with {@link #queue(int, AccessUnit)} and then calling
+ * {@link #flush()}. Reads place the payload in a pooled direct buffer which is
+ * handed out through {@link AccessUnit#buffer} and must be returned with
+ * {@link #release(AccessUnit)} once it has been copied to the codec.
+ *
+ * Frames from all tracks share the connection and are tagged with their
+ * RelayProtocol track. The peer sends fixed size control messages, such as
+ * flow control credits, in the opposite direction.
+ */
+public final class RelayChannel {
+
+    private final SocketChannel mChannel;
+
+    private final DirectBufferPool mBufferPool;
+
+    private AccessUnitCodec[] mCodecs = {
+            new AccessUnitCodec()
+    };
+
+    private ByteBuffer[] mGather = new ByteBuffer[2];
+
+    private int mGatherLength;
+
+    private int mQueuedFrames;
+
+    private long mQueuedBytes;
+
+    private long mWriteCallCount;
+
+    private ByteBuffer mHeader = ByteBuffer.allocateDirect(AccessUnitCodec.FIXED_HEADER_SIZE);
+
+    private ByteBuffer mCryptoBlock = ByteBuffer.allocateDirect(256);
+
+    private final ByteBuffer mControlOut =
+            ByteBuffer.allocateDirect(RelayProtocol.CONTROL_MESSAGE_SIZE);
+
+    private final ByteBuffer mControlIn =
+            ByteBuffer.allocateDirect(RelayProtocol.CONTROL_MESSAGE_SIZE);
+
+    private int mTrack;
+
+    public static final class Control {
+        public int type;
+
+        public int track;
+
+        public int value;
+    }
+
+    /**
+     * bufferPool may be null for a channel that is only written to.
+     */
+    public RelayChannel(SocketChannel channel, DirectBufferPool bufferPool) throws IOException {
+        mChannel = channel;
+        mChannel.configureBlocking(true);
+        mChannel.socket().setTcpNoDelay(true);
+        mBufferPool = bufferPool;
+    }
+
+    public void write(int track, AccessUnit accessUnit) throws IOException {
+        queue(track, accessUnit);
+        flush();
+    }
+
+    /**
+     * Adds a frame to the next gathering write. Nothing is sent until
+     * {@link #flush()} is called, and the access unit must not be modified
+     * until then.
+     */
+    public void queue(int track, AccessUnit accessUnit) throws IOException {
+        if (mQueuedFrames == mCodecs.length) {
+            AccessUnitCodec[] codecs = new AccessUnitCodec[mCodecs.length * 2];
+            System.arraycopy(mCodecs, 0, codecs, 0, mCodecs.length);
+            for (int i = mCodecs.length; i < codecs.length; i++) {
+                codecs[i] = new AccessUnitCodec();
+            }
+            mCodecs = codecs;
+
+            ByteBuffer[] gather = new ByteBuffer[codecs.length * 2];
+            System.arraycopy(mGather, 0, gather, 0, mGatherLength);
+            mGather = gather;
+        }
+
+        ByteBuffer header = mCodecs[mQueuedFrames].encodeHeader(track, accessUnit);
+        int payloadSize = AccessUnitCodec.getPayloadSize(accessUnit);
+        mGather[mGatherLength++] = header;
+        if (payloadSize > 0) {
+            mGather[mGatherLength++] = ByteBuffer.wrap(accessUnit.data, 0, payloadSize);
+        }
+        mQueuedFrames++;
+        mQueuedBytes += header.remaining() + payloadSize;
+    }
+
+    /**
+     * Sends all queued frames.
+     */
+    public void flush() throws IOException {
+        if (mQueuedFrames == 0) {
+            return;
+        }
+
+        try {
+            long remaining = mQueuedBytes;
+            int offset = 0;
+            while (remaining > 0) {
+                long written = mChannel.write(mGather, offset, mGatherLength - offset);
+                mWriteCallCount++;
+                if (written < 0) {
+                    throw new EOFException();
+                }
+                remaining -= written;
+                while (offset < mGatherLength && !mGather[offset].hasRemaining()) {
+                    offset++;
+                }
+            }
+        } finally {
+            Arrays.fill(mGather, 0, mGatherLength, null);
+            mGatherLength = 0;
+            mQueuedFrames = 0;
+            mQueuedBytes = 0;
+        }
+    }
+
+    /**
+     * Returns the number of write calls made on the socket so far.
+     */
+    public long getWriteCallCount() {
+        return mWriteCallCount;
+    }
+
+    public AccessUnit read() throws IOException {
+        ByteBuffer header = mHeader;
+        header.clear();
+        readFully(header);
+        header.flip();
+
+        AccessUnit accessUnit = new AccessUnit();
+        int headerSize = AccessUnitCodec.decodeFixedHeader(header, accessUnit);
+        mTrack = AccessUnitCodec.getTrack(header);
+
+        if (headerSize > AccessUnitCodec.FIXED_HEADER_SIZE) {
+            int blockSize = headerSize - AccessUnitCodec.FIXED_HEADER_SIZE;
+            if (mCryptoBlock.capacity() < blockSize) {
+                mCryptoBlock = ByteBuffer.allocateDirect(blockSize);
+            }
+            ByteBuffer block = mCryptoBlock;
+            block.clear();
+            block.limit(blockSize);
+            readFully(block);
+            block.flip();
+            AccessUnitCodec.decodeCryptoInfo(block, accessUnit);
+        }
+
+        if (accessUnit.size > 0) {
+            ByteBuffer payload = mBufferPool.acquire(accessUnit.size);
+            try {
+                readFully(payload);
+            } catch (IOException e) {
+                mBufferPool.release(payload);
+                throw e;
+            }
+            payload.flip();
+            accessUnit.buffer = payload;
+        }
+
+        return accessUnit;
+    }
+
+    /**
+     * Returns the relay track of the last frame returned by {@link #read()}.
+     */
+    public int getTrack() {
+        return mTrack;
+    }
+
+    public synchronized void writeControl(int type, int track, int value) throws IOException {
+        ByteBuffer message = mControlOut;
+        message.clear();
+        message.put((byte)type);
+        message.put((byte)track);
+        message.putShort((short)0);
+        message.putInt(value);
+        message.flip();
+        writeFully(message);
+    }
+
+    public void readControl(Control control) throws IOException {
+        ByteBuffer message = mControlIn;
+        message.clear();
+        readFully(message);
+        message.flip();
+        control.type = message.get();
+        control.track = message.get();
+        message.getShort();
+        control.value = message.getInt();
+    }
+
+    /**
+     * Returns the payload buffer of an AccessUnit obtained from
+     * {@link #read()} to the pool.
+     */
+    public void release(AccessUnit accessUnit) {
+        if (accessUnit.buffer != null) {
+            mBufferPool.release(accessUnit.buffer);
+            accessUnit.buffer = null;
+        }
+    }
+
+    public boolean isOpen() {
+        return mChannel.isOpen();
+    }
+
+    public void close() throws IOException {
+        mChannel.close();
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (mChannel.write(buffer) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (mChannel.read(buffer) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+}
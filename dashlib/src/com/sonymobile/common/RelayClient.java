@@ -0,0 +1,352 @@
+/*
+ * Copyright (C) 2014 Sony Mobile Communications Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.sonymobile.common;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+
+import android.media.MediaFormat;
+import android.util.Log;
+
+/**
+ * Peer side of the relay. Keeps a single connection to the seeder, splits
+ * the incoming frames into one JitterBuffer per track and returns flow
+ * control credit to the seeder as access units are consumed.
+ *
+ * Track formats announced by the seeder are kept apart from the access
+ * units, see {@link #getFormat(int)}. A format change relayed in stream order
+ * is also queued as a FORMAT_CHANGED access unit carrying the new format, so
+ * the codec is reconfigured exactly where the new format starts.
+ *
+ * Audio and video are held back until the playout delay is buffered, see
+ * {@link #setPlayoutDelayUs(long)}. Subtitles are sparse and are passed on as
+ * soon as they arrive.
+ */
+public final class RelayClient {
+
+    private static final boolean LOGS_ENABLED = true;
+
+    private static final String TAG = "RelayClient";
+
+    private static final long RECONNECT_DELAY_MS = 1000;
+
+    private final InetSocketAddress mAddress;
+
+    private final DirectBufferPool mBufferPool = new DirectBufferPool();
+
+    private final JitterBuffer[] mQueues = new JitterBuffer[RelayProtocol.TRACK_COUNT];
+
+    private final int[] mConsumed = new int[RelayProtocol.TRACK_COUNT];
+
+    private final MediaFormat[] mFormats = new MediaFormat[RelayProtocol.TRACK_COUNT];
+
+    private final boolean[] mFormatAnnounced = new boolean[RelayProtocol.TRACK_COUNT];
+
+    private volatile RelayChannel mChannel;
+
+    private volatile boolean mRunning;
+
+    private ReaderThread mReaderThread;
+
+    private volatile Listener mListener;
+
+    /**
+     * Called on the reader thread of the client.
+     */
+    public interface Listener {
+        /**
+         * Called when the seeder has announced the format of the track, or
+         * announced that the track is not present.
+         */
+        void onFormatAnnounced(RelayClient client, int track);
+    }
+
+    public RelayClient() {
+        this(new InetSocketAddress(RelayProtocol.SEEDER_ADDRESS, RelayProtocol.PORT));
+    }
+
+    public RelayClient(InetSocketAddress address) {
+        mAddress = address;
+        for (int i = 0; i < mQueues.length; i++) {
+            mQueues[i] = new JitterBuffer(RelayProtocol.DEFAULT_CREDIT_WINDOW[i],
+                    i == RelayProtocol.TRACK_SUBTITLE ? 0
+                            : RelayProtocol.DEFAULT_PLAYOUT_DELAY_US);
+        }
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public void start() {
+        if (mRunning) {
+            return;
+        }
+        mRunning = true;
+        mReaderThread = new ReaderThread();
+        mReaderThread.start();
+    }
+
+    public void stop() {
+        mRunning = false;
+        closeChannel();
+        if (mReaderThread != null) {
+            mReaderThread.interrupt();
+            try {
+                mReaderThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mReaderThread = null;
+        }
+        clearQueues();
+        mBufferPool.clear();
+    }
+
+    /**
+     * Sets how much audio and video, in timestamp difference, is buffered
+     * before playback starts and after an underrun.
+     */
+    public void setPlayoutDelayUs(long delayUs) {
+        mQueues[RelayProtocol.TRACK_AUDIO].setTargetDelayUs(delayUs);
+        mQueues[RelayProtocol.TRACK_VIDEO].setTargetDelayUs(delayUs);
+    }
+
+    /**
+     * Returns the next access unit on the track, or
+     * AccessUnit.ACCESS_UNIT_NO_DATA_AVAILABLE if none may be played yet.
+     * Never blocks.
+     */
+    public AccessUnit pollAccessUnit(int track) {
+        JitterBuffer buffer = mQueues[track];
+        int underruns = buffer.getUnderrunCount();
+        AccessUnit accessUnit = buffer.poll();
+        if (accessUnit == null) {
+            if (LOGS_ENABLED && buffer.getUnderrunCount() != underruns) {
+                Log.w(TAG, "Underrun on track " + track + ", rebuffering");
+            }
+            return AccessUnit.ACCESS_UNIT_NO_DATA_AVAILABLE;
+        }
+        onConsumed(track);
+        return accessUnit;
+    }
+
+    /**
+     * Returns true once the seeder has announced the format of the track,
+     * or announced that the track is not present.
+     */
+    public boolean isFormatAnnounced(int track) {
+        synchronized (mFormats) {
+            return mFormatAnnounced[track];
+        }
+    }
+
+    /**
+     * Returns the last format the seeder announced for the track, or null if
+     * none has been announced or the track is not present.
+     */
+    public MediaFormat getFormat(int track) {
+        synchronized (mFormats) {
+            return mFormats[track];
+        }
+    }
+
+    public long getBufferedDurationUs(int track) {
+        return mQueues[track].getBufferedDurationUs();
+    }
+
+    /**
+     * Returns the number of times the track ran dry during playback.
+     */
+    public int getUnderrunCount(int track) {
+        return mQueues[track].getUnderrunCount();
+    }
+
+    /**
+     * Returns the number of times the track held far more than the playout
+     * delay, typically because the codec stopped consuming.
+     */
+    public int getOverrunCount(int track) {
+        return mQueues[track].getOverrunCount();
+    }
+
+    /**
+     * Returns the payload buffer of a consumed access unit to the pool.
+     */
+    public void release(AccessUnit accessUnit) {
+        if (accessUnit.buffer != null) {
+            mBufferPool.release(accessUnit.buffer);
+            accessUnit.buffer = null;
+        }
+    }
+
+    /**
+     * Decodes the format carried by a FORMAT_CHANGED frame into
+     * accessUnit.format and makes it the current format of the track.
+     */
+    private void onFormat(int track, AccessUnit accessUnit) throws IOException {
+        MediaFormat format = null;
+        try {
+            if (accessUnit.buffer != null) {
+                format = AccessUnitCodec.decodeFormat(accessUnit.buffer);
+            }
+        } finally {
+            release(accessUnit);
+        }
+        accessUnit.format = format;
+
+        if (LOGS_ENABLED) Log.i(TAG, "Format on track " + track + ": " + format);
+        synchronized (mFormats) {
+            mFormats[track] = format;
+            mFormatAnnounced[track] = true;
+        }
+
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onFormatAnnounced(this, track);
+        }
+    }
+
+    private void onConsumed(int track) {
+        int credit;
+        synchronized (mConsumed) {
+            mConsumed[track]++;
+            if (mConsumed[track] < Math.max(1, RelayProtocol.DEFAULT_CREDIT_WINDOW[track] / 4)) {
+                return;
+            }
+            credit = mConsumed[track];
+            mConsumed[track] = 0;
+        }
+        sendCredit(track, credit);
+    }
+
+    private void sendCredit(int track, int credit) {
+        RelayChannel channel = mChannel;
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.writeControl(RelayProtocol.CONTROL_CREDIT, track, credit);
+        } catch (IOException e) {
+            // The reader thread will notice and reconnect.
+            if (LOGS_ENABLED) Log.e(TAG, "Exception when sending credit", e);
+        }
+    }
+
+    private void closeChannel() {
+        RelayChannel channel = mChannel;
+        mChannel = null;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                if (LOGS_ENABLED) Log.e(TAG, "Exception when closing channel", e);
+            }
+        }
+    }
+
+    private void clearQueues() {
+        for (int i = 0; i < mQueues.length; i++) {
+            AccessUnit accessUnit;
+            while ((accessUnit = mQueues[i].remove()) != null) {
+                release(accessUnit);
+            }
+            mQueues[i].reset();
+        }
+        synchronized (mConsumed) {
+            for (int i = 0; i < mConsumed.length; i++) {
+                mConsumed[i] = 0;
+            }
+        }
+    }
+
+    private class ReaderThread extends Thread {
+
+        public ReaderThread() {
+            super("RelayClient-Reader");
+        }
+
+        @Override
+        public void run() {
+            int[] overruns = new int[RelayProtocol.TRACK_COUNT];
+            while (mRunning) {
+                RelayChannel channel;
+                try {
+                    channel = new RelayChannel(SocketChannel.open(mAddress), mBufferPool);
+                } catch (IOException e) {
+                    if (LOGS_ENABLED) Log.w(TAG, "Could not connect to seeder: " + e.getMessage());
+                    try {
+                        Thread.sleep(RECONNECT_DELAY_MS);
+                    } catch (InterruptedException e2) {
+                        return;
+                    }
+                    continue;
+                }
+
+                clearQueues();
+                mChannel = channel;
+                if (LOGS_ENABLED) Log.i(TAG, "Connected to seeder");
+
+                try {
+                    for (int i = 0; i < RelayProtocol.TRACK_COUNT; i++) {
+                        channel.writeControl(RelayProtocol.CONTROL_CREDIT, i,
+                                RelayProtocol.DEFAULT_CREDIT_WINDOW[i]);
+                    }
+
+                    while (mRunning) {
+                        AccessUnit accessUnit = channel.read();
+                        int track = channel.getTrack();
+                        if (track < 0 || track >= RelayProtocol.TRACK_COUNT) {
+                            if (LOGS_ENABLED) Log.w(TAG, "Frame on unknown track " + track);
+                            release(accessUnit);
+                        } else if (accessUnit.status == AccessUnit.FORMAT_CHANGED
+                                && accessUnit.timeUs == -1) {
+                            // Announcements are sent outside the credit window.
+                            onFormat(track, accessUnit);
+                        } else {
+                            if (accessUnit.status == AccessUnit.FORMAT_CHANGED) {
+                                // A change in stream order is queued like any
+                                // access unit, with its format decoded.
+                                onFormat(track, accessUnit);
+                            }
+                            if (mQueues[track].offer(accessUnit)) {
+                                if (LOGS_ENABLED
+                                        && mQueues[track].getOverrunCount() != overruns[track]) {
+                                    overruns[track] = mQueues[track].getOverrunCount();
+                                    Log.w(TAG, "Overrun on track " + track + ", "
+                                            + mQueues[track].getBufferedDurationUs()
+                                            + " us buffered");
+                                }
+                            } else {
+                                // The seeder sent beyond its credit, drop the frame
+                                // but give the credit back so the window stays intact.
+                                if (LOGS_ENABLED) Log.w(TAG, "Dropping frame on track " + track);
+                                release(accessUnit);
+                                onConsumed(track);
+                            }
+                        }
+                    }
+                } catch (IOException e) {
+                    if (LOGS_ENABLED) Log.e(TAG, "Relay connection lost", e);
+                }
+
+                closeChannel();
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2014 Sony Mobile Communications Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.sonymobile.common;
+
+/**
+ * Constants shared by the seeder and peer side of the relay connection.
+ */
+public final class RelayProtocol {
+
+    public static final String SEEDER_ADDRESS = "192.168.49.1";
+
+    public static final int PORT = 55000;
+
+    public static final int TRACK_AUDIO = 0;
+
+    public static final int TRACK_VIDEO = 1;
+
+    public static final int TRACK_SUBTITLE = 2;
+
+    public static final int TRACK_COUNT = 3;
+
+    /**
+     * Peer to seeder: grant the seeder permission to send value more frames
+     * on the given track.
+     */
+    public static final int CONTROL_CREDIT = 1;
+
+    /**
+     * Size of a control message sent from the peer to the seeder: type
+     * (byte), track (byte), reserved (short) and value (int).
+     */
+    public static final int CONTROL_MESSAGE_SIZE = 8;
+
+    /**
+     * Number of frames a peer allows in flight per track, indexed by track.
+     * Audio frames are small and frequent so the audio window is larger.
+     */
+    public static final int[] DEFAULT_CREDIT_WINDOW = {
+            64, 30, 16
+    };
+
+    /**
+     * Default playout delay the peer buffers on the audio and video tracks
+     * before starting playback.
+     */
+    public static final long DEFAULT_PLAYOUT_DELAY_US = 300000;
+
+    private RelayProtocol() {
+    }
+}
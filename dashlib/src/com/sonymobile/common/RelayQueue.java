@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2014 Sony Mobile Communications Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.sonymobile.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Fixed capacity, allocation free queue of access units with a single
+ * producer and a single consumer. Used between a codec thread publishing
+ * access units and the relay thread forwarding them, so a stalled relay can
+ * never make the seeder buffer without bound.
+ *
+ * What happens when the queue is full is decided by the drop policy. With
+ * DROP_NEVER the producer waits for the consumer, which is what audio uses
+ * since any gap is audible. With DROP_OLDEST_NON_SYNC the oldest queued
+ * frame is dropped if it is not a sync frame; if it is, the incoming frame is
+ * dropped instead unless it is a sync frame itself. Sync frames are thereby
+ * the last to go. Control units, such as format changes and end of stream,
+ * are never dropped: an incoming one waits for space like with DROP_NEVER,
+ * and a queued one at the head makes the incoming frame be dropped instead.
+ *
+ * The consumer advances the read position with a compare and set since the
+ * producer may also advance it when dropping the oldest frame. Whichever
+ * side advances it clears the slot, so the queue does not keep consumed or
+ * dropped units alive. The queue holds a reference to every unit offered,
+ * which it hands over to the consumer or recycles when the unit is dropped.
+ */
+public final class RelayQueue {
+
+    public static final int DROP_NEVER = 0;
+
+    public static final int DROP_OLDEST_NON_SYNC = 1;
+
+    private static final long FULL_WAIT_NS = 100000;
+
+    private final AtomicReferenceArray<AccessUnit> mSlots;
+
+    private final int mMask;
+
+    private final int mDropPolicy;
+
+    private final AtomicLong mHead = new AtomicLong();
+
+    private volatile long mTail;
+
+    private volatile boolean mClosed;
+
+    private volatile long mEnqueuedCount;
+
+    private volatile long mDroppedCount;
+
+    private volatile int mHighWaterMark;
+
+    /**
+     * @param capacity maximum number of queued access units, rounded up to a
+     *            power of two.
+     * @param dropPolicy DROP_NEVER or DROP_OLDEST_NON_SYNC.
+     */
+    public RelayQueue(int capacity, int dropPolicy) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mSlots = new AtomicReferenceArray<AccessUnit>(size);
+        mMask = size - 1;
+        mDropPolicy = dropPolicy;
+    }
+
+    /**
+     * Adds an access unit. Only to be called from the producer thread.
+     *
+     * @return false if the access unit was dropped.
+     */
+    public boolean offer(AccessUnit accessUnit) {
+        if (mClosed) {
+            mDroppedCount++;
+            accessUnit.recycle();
+            return false;
+        }
+
+        long tail = mTail;
+        while (tail - mHead.get() > mMask) {
+            if (mClosed) {
+                mDroppedCount++;
+                accessUnit.recycle();
+                return false;
+            }
+
+            if (mDropPolicy == DROP_NEVER || isControlUnit(accessUnit)) {
+                LockSupport.parkNanos(FULL_WAIT_NS);
+                continue;
+            }
+
+            long head = mHead.get();
+            int index = (int)(head & mMask);
+            AccessUnit oldest = mSlots.get(index);
+            if (oldest == null) {
+                // Consumed meanwhile.
+                continue;
+            }
+            if (isControlUnit(oldest) || (oldest.isSyncSample && !accessUnit.isSyncSample)) {
+                mDroppedCount++;
+                accessUnit.recycle();
+                return false;
+            }
+            if (mHead.compareAndSet(head, head + 1)) {
+                mSlots.compareAndSet(index, oldest, null);
+                mDroppedCount++;
+                oldest.recycle();
+            }
+        }
+
+        mSlots.set((int)(tail & mMask), accessUnit);
+        mTail = tail + 1;
+        mEnqueuedCount++;
+
+        int size = (int)(tail + 1 - mHead.get());
+        if (size > mHighWaterMark) {
+            mHighWaterMark = size;
+        }
+        return true;
+    }
+
+    /**
+     * Removes and returns the oldest access unit, or null if the queue is
+     * empty. Only to be called from the consumer thread.
+     */
+    public AccessUnit poll() {
+        while (true) {
+            long head = mHead.get();
+            if (head >= mTail) {
+                return null;
+            }
+            int index = (int)(head & mMask);
+            AccessUnit accessUnit = mSlots.get(index);
+            if (mHead.compareAndSet(head, head + 1)) {
+                // The producer may already have reused the slot.
+                mSlots.compareAndSet(index, accessUnit, null);
+                return accessUnit;
+            }
+        }
+    }
+
+    /**
+     * Moves up to dst.length queued access units into dst. Only to be called
+     * from the consumer thread.
+     *
+     * @return the number of access units moved.
+     */
+    public int drainTo(AccessUnit[] dst) {
+        int count = 0;
+        while (count < dst.length) {
+            AccessUnit accessUnit = poll();
+            if (accessUnit == null) {
+                break;
+            }
+            dst[count++] = accessUnit;
+        }
+        return count;
+    }
+
+    /**
+     * Drops and recycles everything queued. Only to be called from the
+     * consumer thread.
+     */
+    public void clear() {
+        AccessUnit accessUnit;
+        while ((accessUnit = poll()) != null) {
+            accessUnit.recycle();
+        }
+    }
+
+    /**
+     * Makes a producer waiting for space give up and drops any later offer.
+     */
+    public void close() {
+        mClosed = true;
+    }
+
+    /**
+     * Accepts offers again. Anything an offer racing with close left queued
+     * is dropped, so must be called while there is no consumer.
+     */
+    public void open() {
+        clear();
+        mClosed = false;
+    }
+
+    public int size() {
+        return (int)(mTail - mHead.get());
+    }
+
+    public int capacity() {
+        return mSlots.length();
+    }
+
+    public long getEnqueuedCount() {
+        return mEnqueuedCount;
+    }
+
+    public long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    public int getHighWaterMark() {
+        return mHighWaterMark;
+    }
+
+    private static boolean isControlUnit(AccessUnit accessUnit) {
+        return accessUnit.status != AccessUnit.OK;
+    }
+}
@@ -0,0 +1,1043 @@
+/*
+ * Copyright (C) 2014 Sony Mobile Communications Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.sonymobile.common;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+import android.media.MediaFormat;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Seeder side of the relay. Fans the access units of all tracks out to any
+ * number of connected peers, so the stream is downloaded and demuxed once no
+ * matter how many peers watch it.
+ *
+ * Published access units are stored in one ring per track that is shared by
+ * all peers. Every peer has its own read cursor per track and its own
+ * writer, so a peer only costs the socket writes. Sending is credit based:
+ * the peer grants a number of frames per track and a track is only served
+ * while it has credit left. Within a peer the tracks are interleaved by
+ * timestamp.
+ *
+ * A peer that falls so far behind that the ring has overwritten a unit it
+ * has not yet been sent is evicted. It can reconnect and will then join
+ * again.
+ *
+ * The rings are filled whether or not peers are connected, which makes them
+ * a cache for peers joining mid-stream. A new peer starts video at the most
+ * recent sync sample still in the ring, and the other tracks at the same
+ * timestamp, so it has a decodable frame as soon as the first batch arrives
+ * instead of waiting for the next sync sample. If that sync sample is too
+ * old the peer joins at the live position. The peer is first sent the
+ * formats in effect where it joins, the format changes after that reach it
+ * in stream order from the ring.
+ *
+ * The format of every track is announced with {@link #setFormat(int,
+ * MediaFormat, byte[], byte[])} and sent to each peer ahead of the access
+ * units, both when it changes and when the peer connects. When the format of
+ * the published access units changes, for instance on a representation
+ * switch, the new format is relayed in stream order so peers reconfigure
+ * their codecs exactly where the seeder does.
+ *
+ * A peer writer sends every access unit that is ready in one gathering
+ * write. How long it may wait for more to batch up is set with
+ * {@link #setFlushPolicy(int, int)}.
+ *
+ * Publishing never takes the lock shared with the peer writers. Each track
+ * has a bounded RelayQueue from its codec thread to a dispatch thread, which
+ * moves the queued units into the rings in batches.
+ *
+ * The relay retains every published access unit, so the publisher recycles
+ * it as usual once the codec has it. The ring releases a unit when it is
+ * overwritten, and a peer writer holds its own reference while the unit is
+ * being written, after which a pooled unit goes back to its pool.
+ */
+public final class RelayServer {
+
+    private static final boolean LOGS_ENABLED = true;
+
+    private static final String TAG = "RelayServer";
+
+    /**
+     * Number of access units kept per track, indexed by track. Bounds how far
+     * a peer may lag before it is evicted, about five seconds of each track.
+     */
+    private static final int[] RING_CAPACITY = {
+            256, 160, 32
+    };
+
+    /**
+     * Capacity of the queue from the codec thread to the dispatch thread,
+     * indexed by track.
+     */
+    private static final int[] INPUT_QUEUE_CAPACITY = {
+            128, 64, 16
+    };
+
+    private static final long DISPATCH_IDLE_NS = 20000000;
+
+    private static final int MAX_PEERS = 8;
+
+    /**
+     * Fraction of a ring, as a divisor, a joining peer may start behind the
+     * live position. Leaves the peer room to catch up before it would be
+     * evicted.
+     */
+    private static final int MAX_JOIN_LAG_DIVISOR = 2;
+
+    /**
+     * Upper bound on the number of access units sent in one batch.
+     */
+    private static final int MAX_BATCH_FRAMES = 64;
+
+    public static final int DEFAULT_MAX_BATCH_BYTES = 64 * 1024;
+
+    public static final int DEFAULT_MAX_BATCH_DELAY_MS = 0;
+
+    private final InetSocketAddress mAddress;
+
+    private final Object mLock = new Object();
+
+    private final AccessUnit[][] mRings = new AccessUnit[RelayProtocol.TRACK_COUNT][];
+
+    /**
+     * Sequence number of the next access unit published per track. The unit
+     * with sequence number n is stored at n % capacity.
+     */
+    private final long[] mWriteSeqs = new long[RelayProtocol.TRACK_COUNT];
+
+    /**
+     * Sequence number of the most recent sync sample in each ring, or -1.
+     */
+    private final long[] mSyncSeqs = new long[RelayProtocol.TRACK_COUNT];
+
+    private final ArrayList<Peer> mPeers = new ArrayList<Peer>();
+
+    private final AccessUnit[] mFormats = new AccessUnit[RelayProtocol.TRACK_COUNT];
+
+    /**
+     * Format announcement in effect when each ring slot was written, before
+     * the unit in it if that is a format change. What a peer joining at the
+     * slot is sent first.
+     */
+    private final AccessUnit[][] mRingFormats = new AccessUnit[RelayProtocol.TRACK_COUNT][];
+
+    private final MediaFormat[] mAnnouncedFormats = new MediaFormat[RelayProtocol.TRACK_COUNT];
+
+    private final byte[][] mDrmSystemIds = new byte[RelayProtocol.TRACK_COUNT][];
+
+    private final byte[][] mDrmInitData = new byte[RelayProtocol.TRACK_COUNT][];
+
+    /**
+     * Format of the last access unit published on each track, only touched
+     * by the publishing thread of the track.
+     */
+    private final MediaFormat[] mPublishedFormats = new MediaFormat[RelayProtocol.TRACK_COUNT];
+
+    private final RelayQueue[] mInputQueues = new RelayQueue[RelayProtocol.TRACK_COUNT];
+
+    private volatile DispatchThread mDispatchThread;
+
+    private ServerSocketChannel mServerChannel;
+
+    private AcceptThread mAcceptThread;
+
+    private boolean mRunning;
+
+    private int mNextPeerId;
+
+    private int mEvictedPeerCount;
+
+    private int mMaxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+
+    private int mMaxBatchDelayMs = DEFAULT_MAX_BATCH_DELAY_MS;
+
+    public RelayServer() {
+        this(new InetSocketAddress(RelayProtocol.PORT));
+    }
+
+    public RelayServer(InetSocketAddress address) {
+        mAddress = address;
+        Arrays.fill(mSyncSeqs, -1);
+        for (int i = 0; i < mRings.length; i++) {
+            mRings[i] = new AccessUnit[RING_CAPACITY[i]];
+            mRingFormats[i] = new AccessUnit[RING_CAPACITY[i]];
+            mInputQueues[i] = new RelayQueue(INPUT_QUEUE_CAPACITY[i],
+                    i == RelayProtocol.TRACK_AUDIO ? RelayQueue.DROP_NEVER
+                            : RelayQueue.DROP_OLDEST_NON_SYNC);
+        }
+    }
+
+    public void start() {
+        synchronized (mLock) {
+            if (mRunning) {
+                return;
+            }
+            mRunning = true;
+        }
+
+        for (RelayQueue queue : mInputQueues) {
+            queue.open();
+        }
+        mDispatchThread = new DispatchThread();
+        mDispatchThread.start();
+
+        try {
+            mServerChannel = ServerSocketChannel.open();
+            mServerChannel.socket().setReuseAddress(true);
+            mServerChannel.socket().bind(mAddress, MAX_PEERS);
+        } catch (IOException e) {
+            if (LOGS_ENABLED) Log.e(TAG, "Could not bind relay server", e);
+            stop();
+            return;
+        }
+
+        mAcceptThread = new AcceptThread(mServerChannel);
+        mAcceptThread.start();
+    }
+
+    public void stop() {
+        synchronized (mLock) {
+            mRunning = false;
+            mLock.notifyAll();
+        }
+
+        for (RelayQueue queue : mInputQueues) {
+            queue.close();
+        }
+        DispatchThread dispatchThread = mDispatchThread;
+        if (dispatchThread != null) {
+            LockSupport.unpark(dispatchThread);
+            try {
+                dispatchThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mDispatchThread = null;
+        }
+        for (RelayQueue queue : mInputQueues) {
+            queue.clear();
+        }
+
+        try {
+            if (mServerChannel != null) {
+                mServerChannel.close();
+                mServerChannel = null;
+            }
+        } catch (IOException e) {
+            if (LOGS_ENABLED) Log.e(TAG, "Exception when closing server channel", e);
+        }
+
+        if (mAcceptThread != null) {
+            try {
+                mAcceptThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mAcceptThread = null;
+        }
+
+        ArrayList<Peer> peers;
+        synchronized (mLock) {
+            peers = new ArrayList<Peer>(mPeers);
+            mPeers.clear();
+        }
+        for (Peer peer : peers) {
+            peer.close();
+            peer.join();
+        }
+
+        synchronized (mLock) {
+            for (int i = 0; i < mRings.length; i++) {
+                for (AccessUnit accessUnit : mRings[i]) {
+                    if (accessUnit != null) {
+                        accessUnit.recycle();
+                    }
+                }
+                Arrays.fill(mRings[i], null);
+                Arrays.fill(mRingFormats[i], null);
+            }
+            Arrays.fill(mWriteSeqs, 0);
+            Arrays.fill(mSyncSeqs, -1);
+            Arrays.fill(mFormats, null);
+            Arrays.fill(mAnnouncedFormats, null);
+        }
+        Arrays.fill(mPublishedFormats, null);
+    }
+
+    /**
+     * Announces the format of a clear track to all current and future peers.
+     * A null format announces that the track is not present.
+     */
+    public void setFormat(int track, MediaFormat format) {
+        setFormat(track, format, null, null);
+    }
+
+    /**
+     * Announces the format of a track to all current and future peers. A
+     * null format announces that the track is not present.
+     *
+     * @param drmSystemId system id of the DRM scheme protecting the track,
+     *            or null if the track is clear or the scheme is carried by
+     *            the format itself.
+     * @param drmInitData initialization data for the DRM scheme, or null.
+     */
+    public void setFormat(int track, MediaFormat format, byte[] drmSystemId,
+            byte[] drmInitData) {
+        AccessUnit accessUnit = AccessUnitCodec.createFormatAccessUnit(format, drmSystemId,
+                drmInitData);
+        synchronized (mLock) {
+            mAnnouncedFormats[track] = format;
+            mDrmSystemIds[track] = drmSystemId;
+            mDrmInitData[track] = drmInitData;
+            announceLocked(track, accessUnit);
+        }
+    }
+
+    /**
+     * Makes an access unit available to connected peers and to peers joining
+     * later. Units that carry neither a sample nor end of stream are dropped.
+     * The unit is retained, the caller still recycles its own reference.
+     * Each track must only be published from one thread.
+     */
+    public void publish(int track, AccessUnit accessUnit) {
+        if (!(accessUnit.status == AccessUnit.OK && accessUnit.timeUs != -1)
+                && accessUnit.status != AccessUnit.END_OF_STREAM) {
+            return;
+        }
+
+        AccessUnit formatChange = null;
+        if (accessUnit.status == AccessUnit.OK && accessUnit.format != null
+                && accessUnit.format != mPublishedFormats[track]) {
+            mPublishedFormats[track] = accessUnit.format;
+            formatChange = createFormatChange(track, accessUnit);
+        }
+
+        if (formatChange != null) {
+            mInputQueues[track].offer(formatChange);
+        }
+        accessUnit.retain();
+        mInputQueues[track].offer(accessUnit);
+        DispatchThread dispatchThread = mDispatchThread;
+        if (dispatchThread != null) {
+            LockSupport.unpark(dispatchThread);
+        }
+    }
+
+    /**
+     * Returns the FORMAT_CHANGED access unit to relay ahead of accessUnit,
+     * whose format differs from the previous one on the track, or null if
+     * peers already have the format.
+     */
+    private AccessUnit createFormatChange(int track, AccessUnit accessUnit) {
+        synchronized (mLock) {
+            if (accessUnit.format == mAnnouncedFormats[track]) {
+                return null;
+            }
+            mAnnouncedFormats[track] = accessUnit.format;
+
+            AccessUnit formatChange = AccessUnitCodec.createFormatAccessUnit(accessUnit.format,
+                    mDrmSystemIds[track], mDrmInitData[track]);
+            formatChange.timeUs = accessUnit.timeUs;
+            return formatChange;
+        }
+    }
+
+    /**
+     * Makes accessUnit the format announcement of the track and sends it to
+     * every peer ahead of its queued access units. Must be called with mLock
+     * held.
+     */
+    private void announceLocked(int track, AccessUnit accessUnit) {
+        mFormats[track] = accessUnit;
+        for (int i = 0; i < mPeers.size(); i++) {
+            mPeers.get(i).mPendingFormats[track] = accessUnit;
+        }
+        mLock.notifyAll();
+    }
+
+    /**
+     * Returns the number of access units queued for the relay on the track
+     * since the server was created.
+     */
+    public long getEnqueuedCount(int track) {
+        return mInputQueues[track].getEnqueuedCount();
+    }
+
+    /**
+     * Returns the number of access units on the track that were dropped
+     * because the relay could not keep up.
+     */
+    public long getDroppedCount(int track) {
+        return mInputQueues[track].getDroppedCount();
+    }
+
+    /**
+     * Returns the largest number of access units that have been waiting for
+     * the relay at once on the track.
+     */
+    public int getHighWaterMark(int track) {
+        return mInputQueues[track].getHighWaterMark();
+    }
+
+    /**
+     * Appends a batch of access units to the ring of a track and evicts the
+     * peers that have fallen more than a ring behind. Must be called with
+     * mLock held.
+     *
+     * @return evicted with the newly evicted peers added, created if needed.
+     */
+    private ArrayList<Peer> append(int track, AccessUnit[] batch, int count,
+            ArrayList<Peer> evicted) {
+        AccessUnit[] ring = mRings[track];
+        AccessUnit[] ringFormats = mRingFormats[track];
+        for (int i = 0; i < count; i++) {
+            AccessUnit accessUnit = batch[i];
+            int slot = (int)(mWriteSeqs[track] % ring.length);
+            ringFormats[slot] = mFormats[track];
+            if (ring[slot] != null) {
+                // Peer writers hold their own reference to what they send.
+                ring[slot].recycle();
+            }
+            if (accessUnit.status == AccessUnit.FORMAT_CHANGED) {
+                onFormatChangeLocked(track, accessUnit);
+            } else if (accessUnit.status == AccessUnit.OK && accessUnit.isSyncSample) {
+                mSyncSeqs[track] = mWriteSeqs[track];
+            }
+            ring[slot] = accessUnit;
+            mWriteSeqs[track]++;
+            batch[i] = null;
+        }
+
+        for (int i = mPeers.size() - 1; i >= 0; i--) {
+            Peer peer = mPeers.get(i);
+            if (mWriteSeqs[track] - peer.mCursors[track] > ring.length) {
+                mPeers.remove(i);
+                peer.mEvicted = true;
+                mEvictedPeerCount++;
+                if (evicted == null) {
+                    evicted = new ArrayList<Peer>();
+                }
+                evicted.add(peer);
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Makes a format change dispatched in stream order the announcement for
+     * peers joining after it. Peers already connected, and peers joining
+     * before it, get the change itself from the ring. Must be called with
+     * mLock held.
+     */
+    private void onFormatChangeLocked(int track, AccessUnit formatChange) {
+        AccessUnit announcement = new AccessUnit(AccessUnit.FORMAT_CHANGED);
+        announcement.timeUs = -1;
+        announcement.data = formatChange.data;
+        announcement.size = formatChange.size;
+        mFormats[track] = announcement;
+    }
+
+    /**
+     * Sets how peer writers coalesce access units into one socket write.
+     *
+     * @param maxBatchBytes stop adding access units to a batch once it holds
+     *            this many bytes. Zero or less sends every access unit on
+     *            its own, for the lowest latency.
+     * @param maxBatchDelayMs how long a writer may hold a batch that is below
+     *            maxBatchBytes waiting for more access units. Zero sends
+     *            whatever is ready without waiting.
+     */
+    public void setFlushPolicy(int maxBatchBytes, int maxBatchDelayMs) {
+        synchronized (mLock) {
+            mMaxBatchBytes = maxBatchBytes;
+            mMaxBatchDelayMs = Math.max(0, maxBatchDelayMs);
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Returns the number of peers currently connected.
+     */
+    public int getPeerCount() {
+        synchronized (mLock) {
+            return mPeers.size();
+        }
+    }
+
+    /**
+     * Returns the number of peers evicted for falling too far behind.
+     */
+    public int getEvictedPeerCount() {
+        synchronized (mLock) {
+            return mEvictedPeerCount;
+        }
+    }
+
+    /**
+     * Returns a snapshot of the statistics of all connected peers.
+     */
+    public List<PeerStatistics> getPeerStatistics() {
+        synchronized (mLock) {
+            ArrayList<PeerStatistics> statistics = new ArrayList<PeerStatistics>(mPeers.size());
+            for (Peer peer : mPeers) {
+                statistics.add(peer.getStatistics());
+            }
+            return statistics;
+        }
+    }
+
+    private void addPeer(Peer peer) {
+        synchronized (mLock) {
+            long joinTimeUs = -1;
+            long syncSeq = mSyncSeqs[RelayProtocol.TRACK_VIDEO];
+            AccessUnit[] ring = mRings[RelayProtocol.TRACK_VIDEO];
+            if (syncSeq != -1 && mWriteSeqs[RelayProtocol.TRACK_VIDEO] - syncSeq
+                    <= ring.length / MAX_JOIN_LAG_DIVISOR) {
+                joinTimeUs = ring[(int)(syncSeq % ring.length)].timeUs;
+            }
+
+            for (int i = 0; i < RelayProtocol.TRACK_COUNT; i++) {
+                if (joinTimeUs == -1) {
+                    peer.mCursors[i] = mWriteSeqs[i];
+                } else if (i == RelayProtocol.TRACK_VIDEO) {
+                    peer.mCursors[i] = syncSeq;
+                } else {
+                    peer.mCursors[i] = findJoinSeqLocked(i, joinTimeUs);
+                }
+
+                // The format of the first unit replayed, later changes are
+                // replayed from the ring.
+                AccessUnit format = null;
+                if (peer.mCursors[i] < mWriteSeqs[i]) {
+                    format = mRingFormats[i][(int)(peer.mCursors[i] % mRingFormats[i].length)];
+                }
+                peer.mPendingFormats[i] = format != null ? format : mFormats[i];
+            }
+            if (LOGS_ENABLED) Log.i(TAG, "Peer " + peer.mId + " joins "
+                    + (mWriteSeqs[RelayProtocol.TRACK_VIDEO]
+                            - peer.mCursors[RelayProtocol.TRACK_VIDEO])
+                    + " video frames behind live");
+            mPeers.add(peer);
+        }
+        peer.start();
+    }
+
+    /**
+     * Returns the sequence number of the oldest access unit on the track,
+     * within the join lag, timestamped at or after timeUs. Must be called
+     * with mLock held.
+     */
+    private long findJoinSeqLocked(int track, long timeUs) {
+        AccessUnit[] ring = mRings[track];
+        long oldestSeq = Math.max(0, mWriteSeqs[track] - ring.length / MAX_JOIN_LAG_DIVISOR);
+        long seq = mWriteSeqs[track];
+        while (seq > oldestSeq) {
+            AccessUnit accessUnit = ring[(int)((seq - 1) % ring.length)];
+            if (accessUnit.status == AccessUnit.OK && accessUnit.timeUs < timeUs) {
+                break;
+            }
+            seq--;
+        }
+        return seq;
+    }
+
+    private void removePeer(Peer peer) {
+        synchronized (mLock) {
+            mPeers.remove(peer);
+            mLock.notifyAll();
+        }
+        peer.close();
+    }
+
+    /**
+     * Per-peer statistics, a snapshot taken when requested.
+     */
+    public static final class PeerStatistics {
+        private final int mId;
+
+        private final SocketAddress mAddress;
+
+        private final long mConnectedTimeMs;
+
+        private final long mFramesSent;
+
+        private final long mBytesSent;
+
+        private final int mMaxLag;
+
+        private final long mBatchCount;
+
+        private final long mWriteCallCount;
+
+        PeerStatistics(int id, SocketAddress address, long connectedTimeMs,
+                long framesSent, long bytesSent, int maxLag, long batchCount,
+                long writeCallCount) {
+            mId = id;
+            mAddress = address;
+            mConnectedTimeMs = connectedTimeMs;
+            mFramesSent = framesSent;
+            mBytesSent = bytesSent;
+            mMaxLag = maxLag;
+            mBatchCount = batchCount;
+            mWriteCallCount = writeCallCount;
+        }
+
+        /**
+         * Get the id the seeder assigned to the peer when it connected.
+         */
+        public int getId() {
+            return mId;
+        }
+
+        /**
+         * Get the remote address of the peer.
+         */
+        public SocketAddress getAddress() {
+            return mAddress;
+        }
+
+        /**
+         * Get the time the peer has been connected, in milliseconds.
+         */
+        public long getConnectedTimeMs() {
+            return mConnectedTimeMs;
+        }
+
+        /**
+         * Get the number of access units sent to the peer.
+         */
+        public long getFramesSent() {
+            return mFramesSent;
+        }
+
+        /**
+         * Get the number of bytes sent to the peer, frame headers included.
+         */
+        public long getBytesSent() {
+            return mBytesSent;
+        }
+
+        /**
+         * Get the largest number of access units, on any track, the peer has
+         * been behind the live position.
+         */
+        public int getMaxLag() {
+            return mMaxLag;
+        }
+
+        /**
+         * Get the average number of access units sent per batch.
+         */
+        public float getAverageBatchSize() {
+            return mBatchCount > 0 ? (float)mFramesSent / mBatchCount : 0;
+        }
+
+        /**
+         * Get the average number of socket write calls per second since the
+         * peer connected.
+         */
+        public float getWriteCallsPerSecond() {
+            return mConnectedTimeMs > 0 ? mWriteCallCount * 1000f / mConnectedTimeMs : 0;
+        }
+    }
+
+    /**
+     * A connected peer. Its cursors and credits are guarded by mLock.
+     */
+    private final class Peer {
+
+        private final int mId;
+
+        private final RelayChannel mChannel;
+
+        private final SocketAddress mRemoteAddress;
+
+        private final long[] mCursors = new long[RelayProtocol.TRACK_COUNT];
+
+        private final int[] mCredits = new int[RelayProtocol.TRACK_COUNT];
+
+        /**
+         * Format announcements to send ahead of the next access units, per
+         * track, or null.
+         */
+        private final AccessUnit[] mPendingFormats = new AccessUnit[RelayProtocol.TRACK_COUNT];
+
+        private final long mConnectedAtMs = SystemClock.elapsedRealtime();
+
+        private final WriterThread mWriterThread;
+
+        private final ControlThread mControlThread;
+
+        private long mFramesSent;
+
+        private long mBytesSent;
+
+        private int mMaxLag;
+
+        private long mBatchCount;
+
+        private long mWriteCallCount;
+
+        private boolean mEvicted;
+
+        public Peer(int id, RelayChannel channel, SocketAddress remoteAddress) {
+            mId = id;
+            mChannel = channel;
+            mRemoteAddress = remoteAddress;
+            mWriterThread = new WriterThread(this);
+            mControlThread = new ControlThread(this);
+        }
+
+        public void start() {
+            mWriterThread.start();
+            mControlThread.start();
+        }
+
+        public void close() {
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                if (LOGS_ENABLED) Log.e(TAG, "Exception when closing channel", e);
+            }
+        }
+
+        public void join() {
+            try {
+                mWriterThread.join();
+                mControlThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Returns a track with a format announcement pending, or -1 if all
+         * are up to date. Must be called with mLock held.
+         */
+        public int nextFormat() {
+            for (int i = 0; i < RelayProtocol.TRACK_COUNT; i++) {
+                if (mPendingFormats[i] != null) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Returns the track whose next access unit has the lowest timestamp
+         * among the tracks that have credit, or -1 if none is ready. Must be
+         * called with mLock held.
+         */
+        public int nextTrack() {
+            int next = -1;
+            long nextTimeUs = Long.MAX_VALUE;
+            for (int i = 0; i < RelayProtocol.TRACK_COUNT; i++) {
+                if (mCredits[i] > 0 && mCursors[i] < mWriteSeqs[i]) {
+                    AccessUnit[] ring = mRings[i];
+                    long timeUs = ring[(int)(mCursors[i] % ring.length)].timeUs;
+                    if (next == -1 || timeUs < nextTimeUs) {
+                        next = i;
+                        nextTimeUs = timeUs;
+                    }
+                }
+            }
+            return next;
+        }
+
+        /**
+         * Must be called with mLock held.
+         */
+        public PeerStatistics getStatistics() {
+            return new PeerStatistics(mId, mRemoteAddress,
+                    SystemClock.elapsedRealtime() - mConnectedAtMs, mFramesSent, mBytesSent,
+                    mMaxLag, mBatchCount, mWriteCallCount);
+        }
+
+        public boolean isActive() {
+            return mRunning && !mEvicted && mPeers.contains(this);
+        }
+    }
+
+    private class AcceptThread extends Thread {
+
+        private final ServerSocketChannel mAcceptChannel;
+
+        public AcceptThread(ServerSocketChannel serverChannel) {
+            super("RelayServer-Accept");
+            mAcceptChannel = serverChannel;
+        }
+
+        @Override
+        public void run() {
+            while (isRunning()) {
+                SocketChannel socketChannel;
+                try {
+                    socketChannel = mAcceptChannel.accept();
+                } catch (IOException e) {
+                    if (LOGS_ENABLED) Log.e(TAG, "Exception in accept", e);
+                    break;
+                }
+
+                if (getPeerCount() >= MAX_PEERS) {
+                    if (LOGS_ENABLED) Log.w(TAG, "Too many peers, rejecting connection");
+                    try {
+                        socketChannel.close();
+                    } catch (IOException e) {
+                        // Nothing to do, the connection is dropped anyway.
+                    }
+                    continue;
+                }
+
+                RelayChannel channel;
+                try {
+                    channel = new RelayChannel(socketChannel, null);
+                } catch (IOException e) {
+                    if (LOGS_ENABLED) Log.e(TAG, "Could not set up relay channel", e);
+                    continue;
+                }
+
+                Peer peer = new Peer(mNextPeerId++, channel,
+                        socketChannel.socket().getRemoteSocketAddress());
+                if (LOGS_ENABLED) Log.i(TAG, "Peer " + peer.mId + " connected from "
+                        + peer.mRemoteAddress);
+                addPeer(peer);
+            }
+        }
+    }
+
+    private class DispatchThread extends Thread {
+
+        private final AccessUnit[] mBatch;
+
+        public DispatchThread() {
+            super("RelayServer-Dispatch");
+            int size = 0;
+            for (RelayQueue queue : mInputQueues) {
+                size = Math.max(size, queue.capacity());
+            }
+            mBatch = new AccessUnit[size];
+        }
+
+        @Override
+        public void run() {
+            while (isRunning()) {
+                boolean dispatched = false;
+                ArrayList<Peer> evicted = null;
+                for (int track = 0; track < mInputQueues.length; track++) {
+                    int count = mInputQueues[track].drainTo(mBatch);
+                    if (count == 0) {
+                        continue;
+                    }
+                    dispatched = true;
+                    synchronized (mLock) {
+                        evicted = append(track, mBatch, count, evicted);
+                        mLock.notifyAll();
+                    }
+                }
+
+                if (evicted != null) {
+                    for (Peer peer : evicted) {
+                        if (LOGS_ENABLED) Log.w(TAG, "Evicting slow peer " + peer.mId);
+                        peer.close();
+                    }
+                }
+
+                if (!dispatched) {
+                    LockSupport.parkNanos(DISPATCH_IDLE_NS);
+                }
+            }
+        }
+    }
+
+    private class ControlThread extends Thread {
+
+        private final Peer mPeer;
+
+        public ControlThread(Peer peer) {
+            super("RelayServer-Control-" + peer.mId);
+            mPeer = peer;
+        }
+
+        @Override
+        public void run() {
+            RelayChannel.Control control = new RelayChannel.Control();
+            try {
+                while (isRunning()) {
+                    mPeer.mChannel.readControl(control);
+                    if (control.type == RelayProtocol.CONTROL_CREDIT
+                            && control.track >= 0
+                            && control.track < RelayProtocol.TRACK_COUNT) {
+                        synchronized (mLock) {
+                            mPeer.mCredits[control.track] += control.value;
+                            mLock.notifyAll();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                if (LOGS_ENABLED) Log.i(TAG, "Peer " + mPeer.mId + " disconnected");
+            }
+            removePeer(mPeer);
+        }
+    }
+
+    private class WriterThread extends Thread {
+
+        private final Peer mPeer;
+
+        private final int[] mBatchTracks = new int[MAX_BATCH_FRAMES];
+
+        private final AccessUnit[] mBatch = new AccessUnit[MAX_BATCH_FRAMES];
+
+        public WriterThread(Peer peer) {
+            super("RelayServer-Writer-" + peer.mId);
+            mPeer = peer;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                int count;
+                synchronized (mLock) {
+                    try {
+                        count = collectBatch();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (count == 0) {
+                    return;
+                }
+
+                long bytes = 0;
+                long writeCalls = mPeer.mChannel.getWriteCallCount();
+                try {
+                    for (int i = 0; i < count; i++) {
+                        mPeer.mChannel.queue(mBatchTracks[i], mBatch[i]);
+                        bytes += AccessUnitCodec.getHeaderSize(mBatch[i])
+                                + AccessUnitCodec.getPayloadSize(mBatch[i]);
+                    }
+                    mPeer.mChannel.flush();
+                } catch (IOException e) {
+                    if (LOGS_ENABLED) Log.e(TAG, "Exception when writing to peer " + mPeer.mId, e);
+                    removePeer(mPeer);
+                    return;
+                } finally {
+                    releaseBatch(count);
+                }
+                writeCalls = mPeer.mChannel.getWriteCallCount() - writeCalls;
+
+                synchronized (mLock) {
+                    mPeer.mFramesSent += count;
+                    mPeer.mBytesSent += bytes;
+                    mPeer.mBatchCount++;
+                    mPeer.mWriteCallCount += writeCalls;
+                }
+            }
+        }
+
+        /**
+         * Waits for at least one access unit the peer has credit for and
+         * takes as many more as the flush policy allows. Must be called with
+         * mLock held.
+         *
+         * @return the number of access units taken, 0 if the peer is no
+         *         longer active.
+         */
+        private int collectBatch() throws InterruptedException {
+            int count = 0;
+            long bytes = 0;
+            long deadlineMs = 0;
+            while (mPeer.isActive()) {
+                // Formats go first and are not charged against the credit.
+                int formatTrack = mPeer.nextFormat();
+                if (formatTrack != -1 && count < MAX_BATCH_FRAMES) {
+                    if (count == 0) {
+                        deadlineMs = SystemClock.uptimeMillis() + mMaxBatchDelayMs;
+                    }
+                    mBatchTracks[count] = formatTrack;
+                    mBatch[count++] = mPeer.mPendingFormats[formatTrack];
+                    mPeer.mPendingFormats[formatTrack] = null;
+                    continue;
+                }
+
+                int track = mPeer.nextTrack();
+                if (track != -1 && count < MAX_BATCH_FRAMES
+                        && (count == 0 || bytes < mMaxBatchBytes)) {
+                    AccessUnit[] ring = mRings[track];
+                    int lag = (int)(mWriteSeqs[track] - mPeer.mCursors[track]);
+                    if (lag > mPeer.mMaxLag) {
+                        mPeer.mMaxLag = lag;
+                    }
+                    AccessUnit accessUnit = ring[(int)(mPeer.mCursors[track]++ % ring.length)];
+                    // Keeps the unit from being reused if the ring overwrites
+                    // it while it is written.
+                    accessUnit.retain();
+                    mPeer.mCredits[track]--;
+                    if (count == 0) {
+                        deadlineMs = SystemClock.uptimeMillis() + mMaxBatchDelayMs;
+                    }
+                    mBatchTracks[count] = track;
+                    mBatch[count++] = accessUnit;
+                    bytes += AccessUnitCodec.getPayloadSize(accessUnit);
+                    continue;
+                }
+
+                if (count == 0) {
+                    mLock.wait();
+                    continue;
+                }
+
+                if (track != -1 || bytes >= mMaxBatchBytes || mMaxBatchDelayMs == 0) {
+                    // Batch is full or nothing more is worth waiting for.
+                    return count;
+                }
+
+                long nowMs = SystemClock.uptimeMillis();
+                if (nowMs >= deadlineMs) {
+                    return count;
+                }
+                mLock.wait(deadlineMs - nowMs);
+            }
+
+            releaseBatch(count);
+            return 0;
+        }
+
+        private void releaseBatch(int count) {
+            for (int i = 0; i < count; i++) {
+                mBatch[i].recycle();
+                mBatch[i] = null;
+            }
+        }
+    }
+
+    private boolean isRunning() {
+        synchronized (mLock) {
+            return mRunning;
+        }
+    }
+}
@@ -67,6 +67,14 @@ public abstract class MediaSource {
 
     public abstract AccessUnit dequeueAccessUnit(TrackType type);
 
+    /**
+     * Called once the payload of an access unit returned by
+     * dequeueAccessUnit has been consumed. Sources handing out pooled buffers
+     * take them back here.
+     */
+    public void releaseAccessUnit(AccessUnit accessUnit) {
+    }
+
     public abstract long getDurationUs();
 
     public abstract TrackInfo[] getTrackInfo();
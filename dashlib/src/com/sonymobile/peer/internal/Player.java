@@ -47,7 +47,6 @@ import com.sonymobile.peer.internal.drm.DrmSession;
 import com.sonymobile.peer.internal.drm.DrmSessionFactory;
 import com.sonymobile.peer.internal.drm.DrmUUID;
 import com.sonymobile.peer.internal.drm.DrmSession.DrmLicenseException;
-import com.sonymobile.peer.internal.mpegdash.DASHSource;
 
 public final class Player {
 
@@ -531,30 +530,9 @@ public final class Player {
                     if (msg.obj != null) {
                         thiz.mPrepareHandler = (Handler)msg.obj;
                     }
-                    if (thiz.mDataSourceFd != null) {		// from local
-                        thiz.mSource = new SimpleSource(thiz.mDataSourceFd, thiz.mDataSourceOffset,
-                                thiz.mDataSourceLength, thiz.mEventHandler);
-                    } else {									// from web
-                        if (thiz.mDataSourcePath.startsWith("vuabs://")
-                                || thiz.mDataSourcePath.startsWith("vuabss://")) {
-                            thiz.mDataSourcePath = thiz.mDataSourcePath.replaceFirst("vuabs",
-                                    "http");
-                        }
-                        if (isDASHSource(thiz.mDataSourcePath)) {		// dash source
-                            thiz.mSource = new DASHSource(thiz.mDataSourcePath, thiz.mEventHandler,
-                                    thiz.mMaxBufferSize);
-                        } else {
-                            try {
-                                thiz.mSource = new SimpleSource(thiz.mDataSourcePath,
-                                        thiz.mDataSourceOffset,
-                                        thiz.mDataSourceLength,
-                                        thiz.mEventHandler,
-                                        thiz.mMaxBufferSize);
-                            } catch (IllegalArgumentException e) {
-                                // Ignore will be handled below.
-                            }
-                        }
-                    }
+                    // The peer plays what the seeder relays, whatever the data
+                    // source was set to.
+                    thiz.mSource = new RelaySource(thiz.mEventHandler);
 
                     if (thiz.mSource == null) {
                         if (thiz.mPrepareHandler != null) {
@@ -1085,12 +1063,6 @@ public final class Player {
                     break;
             }
         }
-
-        private boolean isDASHSource(String path) {
-            return (path.startsWith("http://")
-                    && (path.endsWith(".mpd") || path.indexOf(".mpd?") > 0))
-                    || path.endsWith("(format=mpd-time-csf)");
-        }
     }
 
     private void onError(int what) {
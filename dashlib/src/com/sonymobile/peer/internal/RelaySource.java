@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2014 Sony Mobile Communications Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.sonymobile.peer.internal;
+
+import java.util.ArrayList;
+import java.util.Vector;
+
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.util.Log;
+
+import com.sonymobile.common.AccessUnit;
+import com.sonymobile.common.AccessUnitCodec;
+import com.sonymobile.common.RelayClient;
+import com.sonymobile.common.RelayProtocol;
+import com.sonymobile.peer.BandwidthEstimator;
+import com.sonymobile.peer.MediaError;
+import com.sonymobile.peer.MetaData;
+import com.sonymobile.peer.RepresentationSelector;
+import com.sonymobile.peer.TrackInfo;
+import com.sonymobile.peer.MediaPlayer.Statistics;
+import com.sonymobile.peer.TrackInfo.TrackType;
+
+/**
+ * MediaSource that takes its formats and access units from the seeder over
+ * the relay connection only. Nothing is downloaded or parsed on the peer.
+ *
+ * The source is prepared once the seeder has announced the format, or the
+ * absence, of every relay track. Preparing fails if that has not happened
+ * within PREPARE_TIMEOUT_MS, for instance because there is no seeder.
+ */
+public final class RelaySource extends MediaSource {
+
+    private static final boolean LOGS_ENABLED = Configuration.DEBUG || false;
+
+    private static final String TAG = "RelaySource";
+
+    private static final int MSG_PREPARE = 1;
+
+    private static final int MSG_PREPARE_TIMEOUT = 2;
+
+    private static final int PREPARE_TIMEOUT_MS = 15000;
+
+    private final RelayClient mRelayClient;
+
+    private final MediaFormat[] mFormats = new MediaFormat[RelayProtocol.TRACK_COUNT];
+
+    private final MetaDataImpl mMetaData = new MetaDataImpl();
+
+    private TrackInfo[] mTrackInfo = new TrackInfo[0];
+
+    private long mDurationUs = -1;
+
+    private HandlerThread mEventThread;
+
+    private EventHandler mEventHandler;
+
+    private boolean mPrepared;
+
+    public RelaySource(Handler notify) {
+        super(notify);
+
+        mRelayClient = new RelayClient();
+
+        mEventThread = new HandlerThread("RelaySource");
+        mEventThread.start();
+
+        mEventHandler = new EventHandler(mEventThread.getLooper());
+
+        mRelayClient.setListener(new RelayClient.Listener() {
+            @Override
+            public void onFormatAnnounced(RelayClient client, int track) {
+                mEventHandler.sendEmptyMessage(MSG_PREPARE);
+            }
+        });
+    }
+
+    @Override
+    public void prepareAsync() {
+        mRelayClient.start();
+        notify(SOURCE_BUFFERING_START);
+        mEventHandler.sendEmptyMessageDelayed(MSG_PREPARE_TIMEOUT, PREPARE_TIMEOUT_MS);
+        mEventHandler.sendEmptyMessage(MSG_PREPARE);
+    }
+
+    @Override
+    public void start() {
+        // Playback is driven by the seeder.
+    }
+
+    @Override
+    public void stop() {
+        // Playback is driven by the seeder.
+    }
+
+    @Override
+    public MediaFormat getFormat(TrackType type) {
+        int track = getRelayTrack(type);
+        return track != -1 ? mFormats[track] : null;
+    }
+
+    @Override
+    public AccessUnit dequeueAccessUnit(TrackType type) {
+        int track = getRelayTrack(type);
+        if (track == -1) {
+            return AccessUnit.ACCESS_UNIT_ERROR;
+        }
+        return mRelayClient.pollAccessUnit(track);
+    }
+
+    @Override
+    public void releaseAccessUnit(AccessUnit accessUnit) {
+        mRelayClient.release(accessUnit);
+    }
+
+    @Override
+    public long getDurationUs() {
+        return mDurationUs;
+    }
+
+    @Override
+    public TrackInfo[] getTrackInfo() {
+        return mTrackInfo;
+    }
+
+    @Override
+    public TrackType selectTrack(boolean select, int index) {
+        // Not supported, the seeder selects the tracks.
+        return null;
+    }
+
+    @Override
+    public int getSelectedTrackIndex(TrackType type) {
+        for (int i = 0; i < mTrackInfo.length; i++) {
+            if (mTrackInfo[i].getTrackType() == type) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public void seekTo(long timeUs) {
+        // Not supported, the seeder controls the position.
+    }
+
+    @Override
+    public void release() {
+        mRelayClient.setListener(null);
+        mRelayClient.stop();
+        mEventHandler.removeCallbacksAndMessages(null);
+        if (mEventThread != null) {
+            mEventThread.quit();
+            mEventThread = null;
+        }
+    }
+
+    @Override
+    public MetaData getMetaData() {
+        return mMetaData;
+    }
+
+    @Override
+    public void setBandwidthEstimator(BandwidthEstimator estimator) {
+        // Not supported
+    }
+
+    @Override
+    public void setRepresentationSelector(RepresentationSelector selector) {
+        // Not supported
+    }
+
+    @Override
+    public void selectRepresentations(int trackIndex, Vector<Integer> representations) {
+        // Not supported
+    }
+
+    @Override
+    public Statistics getStatistics() {
+        // Not supported
+        return null;
+    }
+
+    private void onPrepare() {
+        if (mPrepared) {
+            return;
+        }
+        for (int i = 0; i < RelayProtocol.TRACK_COUNT; i++) {
+            if (!mRelayClient.isFormatAnnounced(i)) {
+                // Prepared when the client announces the remaining tracks.
+                return;
+            }
+        }
+        mPrepared = true;
+        mEventHandler.removeMessages(MSG_PREPARE_TIMEOUT);
+
+        ArrayList<TrackInfo> trackInfo = new ArrayList<TrackInfo>();
+        for (int i = 0; i < RelayProtocol.TRACK_COUNT; i++) {
+            MediaFormat format = mRelayClient.getFormat(i);
+            mFormats[i] = format;
+            if (format == null) {
+                continue;
+            }
+
+            long durationUs = format.containsKey(MediaFormat.KEY_DURATION) ?
+                    format.getLong(MediaFormat.KEY_DURATION) : -1;
+            if (durationUs > mDurationUs) {
+                mDurationUs = durationUs;
+            }
+            String language = format.containsKey(MediaFormat.KEY_LANGUAGE) ?
+                    format.getString(MediaFormat.KEY_LANGUAGE) : "und";
+            trackInfo.add(new TrackInfo(getTrackType(i),
+                    format.getString(MediaFormat.KEY_MIME), durationUs, language));
+
+            // The DRM scheme of the content, the codec threads set up Marlin
+            // from the format keys themselves.
+            if (format.containsKey(AccessUnitCodec.KEY_DRM_SYSTEM_ID)) {
+                mMetaData.addValue(MetaData.KEY_DRM_UUID,
+                        format.getByteBuffer(AccessUnitCodec.KEY_DRM_SYSTEM_ID).array());
+            }
+            if (format.containsKey(AccessUnitCodec.KEY_DRM_INIT_DATA)) {
+                mMetaData.addValue(MetaData.KEY_DRM_PSSH_DATA,
+                        format.getByteBuffer(AccessUnitCodec.KEY_DRM_INIT_DATA).array());
+            }
+
+            if (i == RelayProtocol.TRACK_VIDEO) {
+                if (format.containsKey(MediaFormat.KEY_WIDTH)) {
+                    mMetaData.addValue(MetaData.KEY_WIDTH,
+                            format.getInteger(MediaFormat.KEY_WIDTH));
+                }
+                if (format.containsKey(MediaFormat.KEY_HEIGHT)) {
+                    mMetaData.addValue(MetaData.KEY_HEIGHT,
+                            format.getInteger(MediaFormat.KEY_HEIGHT));
+                }
+            }
+        }
+        mTrackInfo = trackInfo.toArray(new TrackInfo[trackInfo.size()]);
+        if (mDurationUs > 0) {
+            mMetaData.addValue(MetaData.KEY_DURATION, mDurationUs);
+        }
+
+        if (LOGS_ENABLED) Log.d(TAG, "Prepared with " + mTrackInfo.length + " relayed tracks");
+        notify(SOURCE_BUFFERING_END);
+        notifyPrepared();
+    }
+
+    private void onPrepareTimeout() {
+        if (mPrepared) {
+            return;
+        }
+        if (LOGS_ENABLED) Log.e(TAG, "No formats announced by the seeder within "
+                + PREPARE_TIMEOUT_MS + " ms");
+        mPrepared = true;
+        mRelayClient.stop();
+        notify(SOURCE_BUFFERING_END);
+        notifyPrepareFailed(MediaError.IO);
+    }
+
+    private static int getRelayTrack(TrackType type) {
+        switch (type) {
+            case AUDIO:
+                return RelayProtocol.TRACK_AUDIO;
+            case VIDEO:
+                return RelayProtocol.TRACK_VIDEO;
+            case SUBTITLE:
+                return RelayProtocol.TRACK_SUBTITLE;
+            default:
+                return -1;
+        }
+    }
+
+    private static TrackType getTrackType(int track) {
+        switch (track) {
+            case RelayProtocol.TRACK_AUDIO:
+                return TrackType.AUDIO;
+            case RelayProtocol.TRACK_VIDEO:
+                return TrackType.VIDEO;
+            default:
+                return TrackType.SUBTITLE;
+        }
+    }
+
+    private class EventHandler extends Handler {
+
+        public EventHandler(Looper looper) {
+            super(looper);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_PREPARE:
+                    onPrepare();
+                    break;
+                case MSG_PREPARE_TIMEOUT:
+                    onPrepareTimeout();
+                    break;
+                default:
+                    if (LOGS_ENABLED) Log.w(TAG, "Unknown message");
+                    break;
+            }
+        }
+    }
+}
@@ -18,12 +18,6 @@ package com.sonymobile.peer.internal;
 
 import static com.sonymobile.peer.internal.HandlerHelper.sendMessageAndAwaitResponse;
 import android.annotation.SuppressLint;
-import android.media.MediaDrm;
-import android.media.MediaDrm.CryptoSession;
-import android.media.MediaFormat;
-import android.media.NotProvisionedException;
-import android.media.ResourceBusyException;
-import android.media.UnsupportedSchemeException;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
@@ -33,11 +27,8 @@ import android.os.SystemClock;
 import android.util.Log;
 
 import com.sonymobile.common.AccessUnit;
-import com.sonymobile.peer.MediaError;
-import com.sonymobile.peer.MetaData;
 import com.sonymobile.peer.SubtitleData;
 import com.sonymobile.peer.TrackInfo.TrackType;
-import com.sonymobile.peer.internal.drm.DrmUUID;
 
 public final class SubtitleThread implements Codec {
 
@@ -71,12 +62,6 @@ public final class SubtitleThread implements Codec {
 
     private Handler mCallback;
 
-    private MediaDrm mMediaDrm;
-
-    private byte[] mMarlinSessionId;
-
-    private CryptoSession mCryptoSession;
-
     private boolean mEos = false;
 
     public SubtitleThread(MediaSource source, Clock clock,
@@ -114,52 +99,6 @@ public final class SubtitleThread implements Codec {
         mCurrentSubtitle = null;
     }
 
-    private boolean openDrmSession(MediaFormat mediaFormat) {
-        try {
-            mMediaDrm = new MediaDrm(DrmUUID.MARLIN);
-        } catch (UnsupportedSchemeException e) {
-            if (LOGS_ENABLED) Log.e(TAG, "DRM scheme not supported", e);
-            return false;
-        }
-
-        try {
-            mMarlinSessionId = mMediaDrm.openSession();
-        } catch (NotProvisionedException e) {
-            if (LOGS_ENABLED) Log.e(TAG, "Provisioning is needed", e);
-            return false;
-        } catch (ResourceBusyException e) {
-            if (LOGS_ENABLED) Log.e(TAG, "Resource busy", e);
-            return false;
-        }
-
-        try {
-            mMediaDrm.restoreKeys(mMarlinSessionId,
-                    mediaFormat.getString(MetaData.KEY_MARLIN_JSON).getBytes("UTF-8"));
-        } catch (Exception e) {
-            if (LOGS_ENABLED) Log.e(TAG, "Could not get license", e);
-            return false;
-        }
-
-        mCryptoSession = mMediaDrm.getCryptoSession(mMarlinSessionId,
-                Util.MARLIN_SUBTITLE_CIPHER_ALGORITHM, "");
-
-        return true;
-    }
-
-    private void closeDrmSession() {
-        if (mMediaDrm != null && mMarlinSessionId != null) {
-            try {
-                mMediaDrm.closeSession(mMarlinSessionId);
-            } catch (IllegalArgumentException e) {
-                Log.e(TAG, "Failed to closeDrmSession");
-            } finally {
-                mMediaDrm = null;
-                mMarlinSessionId = null;
-                mCryptoSession = null;
-            }
-        }
-    }
-
     @SuppressLint("HandlerLeak")
     class EventHandler extends Handler {
 
@@ -237,23 +176,16 @@ public final class SubtitleThread implements Codec {
                     }
 
                     try {
+                        // The seeder decrypts subtitles before relaying them.
                         AccessUnit accessUnit = mSource.dequeueAccessUnit(TrackType.SUBTITLE);
                         mCurrentSubtitle = null; // Should have expired by now.
 
                         if (accessUnit.status == AccessUnit.OK) {
-                            if (mSource.getMetaData().containsKey(MetaData.KEY_IPMP_DATA)) {
-                                if (mCryptoSession == null && !openDrmSession(accessUnit.format)) {
-                                    mCallback.obtainMessage(Player.MSG_CODEC_NOTIFY, CODEC_ERROR,
-                                            MediaError.UNKNOWN).sendToTarget();
-                                    break;
-                                }
-
-                                byte[] keyid = new byte[0];
-                                byte[] iv = new byte[0];
-                                accessUnit.data = mCryptoSession.decrypt(keyid,
-                                        accessUnit.data, iv);
-                                accessUnit.size = accessUnit.data.length;
+                            if (accessUnit.buffer != null) {
+                                accessUnit.data = new byte[accessUnit.size];
+                                accessUnit.buffer.get(accessUnit.data);
                             }
+                            mSource.releaseAccessUnit(accessUnit);
 
                             mCurrentSubtitle = new SubtitleData(accessUnit.trackIndex,
                                     accessUnit.timeUs, accessUnit.durationUs,
@@ -270,6 +202,10 @@ public final class SubtitleThread implements Codec {
                             mEventHandler.sendEmptyMessageAtTime(MSG_HANDLE_SUBTITLE,
                                     SystemClock.uptimeMillis() + 100);
                             break;
+                        } else if (accessUnit.status == AccessUnit.FORMAT_CHANGED) {
+                            // Subtitle samples are self contained, nothing to set up.
+                            mEventHandler.sendEmptyMessage(MSG_HANDLE_SUBTITLE);
+                            break;
                         } else if (accessUnit.status == AccessUnit.END_OF_STREAM) {
                             if (LOGS_ENABLED) Log.v(TAG, "End of stream");
                             mEos = true;
@@ -294,8 +230,6 @@ public final class SubtitleThread implements Codec {
                 case MSG_STOP: {
                     if (LOGS_ENABLED) Log.v(TAG, "Stopping Subtitle thread");
 
-                    closeDrmSession();
-
                     Handler replyHandler = (Handler)msg.obj;
                     Message reply = replyHandler.obtainMessage();
                     reply.obj = new Object();
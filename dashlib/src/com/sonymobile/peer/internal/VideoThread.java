@@ -20,15 +20,9 @@ import static com.sonymobile.peer.internal.HandlerHelper.sendMessageAndAwaitResp
 import static com.sonymobile.peer.internal.Player.MSG_CODEC_NOTIFY;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-//
-import java.net.InetSocketAddress;
-import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Set;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingDeque;
 
 import android.annotation.SuppressLint;
 import android.media.MediaCodec;
@@ -50,7 +44,6 @@ import android.util.Log;
 import android.view.Surface;
 
 import com.sonymobile.common.AccessUnit;
-import com.sonymobile.common.SendObject;
 import com.sonymobile.peer.MediaError;
 import com.sonymobile.peer.MetaData;
 import com.sonymobile.peer.TrackInfo.TrackType;
@@ -147,20 +140,6 @@ public final class VideoThread extends VideoCodecThread {
 
 	private long mLastAudioTimeUs = 0;
 
-	/*
-	 * To receive from peer
-	 */
-	private static final int MSG_CONNECT = 1;
-	private static final int MSG_READ = 2;
-	private static final int MSG_CLOSE = 3;
-	private static final String TAG2 = "VideoThread.Socket";
-	private Socket mSocket;
-	private HandlerThread mSocketThread;
-	private SocketHandler mSocketHandler;
-	private ObjectInputStream mSocketInputStream;
-	private BlockingQueue<SendObject> mQueue = new LinkedBlockingDeque<SendObject>(30);
-	private Object mConnectionLock = new Object();
-
 	public VideoThread(MediaFormat format, MediaSource source, Surface surface,
 			Clock clock, Handler callback, DrmSession drmSession,
 			int videoScalingMode,
@@ -191,14 +170,6 @@ public final class VideoThread extends VideoCodecThread {
 
 		mCustomMediaFormatParams = customMediaFormatParams;
 		mHasQueuedInputBuffers = false;
-
-		// Socket
-		mSocketThread = new HandlerThread(TAG2);
-		mSocketThread.start();
-		mSocketHandler = new SocketHandler(mSocketThread.getLooper());
-		mSocketHandler.sendEmptyMessage(MSG_CONNECT);
-		Log.i(TAG, "send message MSG_CONNECT");
-		//
 	}
 
 	@Override
@@ -518,30 +489,27 @@ public final class VideoThread extends VideoCodecThread {
 				if (inputBufferIndex < 0) {
 					break;
 				}
-				//Log.i(TAG, "before take(dequeue) - "+mQueue.size());
-				SendObject sendObject= mQueue.take();
-				AccessUnit accessUnit = sendObject.makeAccessUnit();
+				AccessUnit accessUnit = mSource.dequeueAccessUnit(TrackType.VIDEO);
 				Log.i("accessV","status: "+accessUnit.status+"/ size: "+accessUnit.size+"/ timeMs: "+accessUnit.timeUs/1000);
 				//Log.i("accessV","durationUs: "+accessUnit.durationUs+"/ isSyncSample: "+accessUnit.isSyncSample+"/ trackIndex: "+accessUnit.trackIndex);
-				mSource.dequeueAccessUnit(TrackType.VIDEO);
-				//if (mSocket == null || mSocket.isClosed()) {
-				//accessUnit = mSource.dequeueAccessUnit(TrackType.VIDEO);
-				//}
-				//else{
-				//accessUnit = rau;
-				//}
 
 				if (accessUnit.status == AccessUnit.OK) {
 					if (mSkipToIframe && !accessUnit.isSyncSample) {
 						mInputBuffer = inputBufferIndex;
+						mSource.releaseAccessUnit(accessUnit);
 						if (LOGS_ENABLED)
 							Log.i(TAG, "Drop non iframe");
 					} else {
 						mSkipToIframe = false;
 
 						mInputBuffers[inputBufferIndex].position(0);
-						mInputBuffers[inputBufferIndex].put(accessUnit.data, 0,
-								accessUnit.size);
+						if (accessUnit.buffer != null) {
+							mInputBuffers[inputBufferIndex].put(accessUnit.buffer);
+						} else {
+							mInputBuffers[inputBufferIndex].put(accessUnit.data, 0,
+									accessUnit.size);
+						}
+						mSource.releaseAccessUnit(accessUnit);
 
 						if (mMediaCrypto != null) {
 							if (accessUnit.cryptoInfo == null) {
@@ -649,11 +617,6 @@ public final class VideoThread extends VideoCodecThread {
 			int error = getMediaDrmErrorCode(e.getErrorCode());
 			mCallback.obtainMessage(MSG_CODEC_NOTIFY, CODEC_ERROR, error)
 			.sendToTarget();
-		} catch (InterruptedException e) {
-			if (LOGS_ENABLED)
-				Log.e(TAG, "Queue error", e);
-			mCallback.obtainMessage(MSG_CODEC_NOTIFY, CODEC_ERROR,
-					MediaError.UNKNOWN).sendToTarget();
 		}
 	}
 
@@ -911,82 +874,6 @@ public final class VideoThread extends VideoCodecThread {
 		}
 	}
 
-	private void onConnect() {
-		try {
-			synchronized (mConnectionLock) {
-				if (mSocket == null || !mSocket.isConnected()) {
-					mSocket = new Socket();
-					mSocket.connect(new InetSocketAddress("192.168.49.1", 55000));
-					mSocketInputStream = new ObjectInputStream(mSocket.getInputStream());
-					mSocketHandler.sendEmptyMessage(MSG_READ);
-				}
-			}
-		} catch (Exception e) {
-			Log.e(TAG, e.getMessage(), e);
-			try {
-				Thread.sleep(1000);
-			} catch (Exception e2) {}
-			mSocketHandler.sendEmptyMessage(MSG_CONNECT);
-		}
-	}
-
-	private void onRead() {
-		try {
-			//Log.i(TAG, "(onRead)before read object "+mQueue.size());
-			if(mQueue.size() == 29)
-				mQueue.remove();
-			mQueue.put((SendObject)mSocketInputStream.readObject());
-			//Log.i(TAG, "(onRead)after read object "+mQueue.size());
-			mSocketHandler.sendEmptyMessage(MSG_READ);
-		} catch (Exception e) {
-			Log.e(TAG, e.getMessage(), e);
-			mSocketHandler.sendEmptyMessage(MSG_CLOSE);
-		}
-	}
-
-	private void onClose() {
-		try {
-			if (mSocket != null && mSocket.isConnected()) {
-				mSocketInputStream.close();
-				mSocketInputStream = null;
-				mSocket.close();
-				mSocket = null;
-			}
-		} catch (Exception e) {
-			Log.e(TAG, e.getMessage(), e);
-		}
-	}
-
-	private class SocketHandler extends Handler {
-		public SocketHandler(Looper looper) {
-			super(looper);
-		}
-
-		@Override
-		public void handleMessage(Message msg) {
-			switch (msg.what) {
-			case MSG_CONNECT:
-				Log.i(TAG, "before connect");
-				onConnect();
-				Log.i(TAG, "after connect");
-				break;
-			case MSG_READ:
-				//Log.i(TAG, "before read");
-				onRead();
-				//Log.i(TAG, "after read");
-				break;
-			case MSG_CLOSE:
-				Log.i(TAG, "before close");
-				onClose();
-				Log.i(TAG, "after close");
-				break;
-			default:
-				Log.w(TAG, "unknown message");
-				break;
-			}
-		}
-	}
-
 	@SuppressLint("HandlerLeak")
 	class EventHandler extends Handler {
 
@@ -27,6 +27,7 @@ import static com.sonymobile.seeder.MediaInfo.BUFFERING_END;
 import static com.sonymobile.seeder.MediaInfo.BUFFERING_START;
 import static com.sonymobile.seeder.MediaInfo.VIDEO_RENDERING_START;
 
+import java.io.File;
 import java.io.FileDescriptor;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
@@ -51,6 +52,7 @@ import android.view.SurfaceHolder;
 import com.sonymobile.seeder.internal.Configuration;
 import com.sonymobile.seeder.internal.OutputControllerUpdateListener;
 import com.sonymobile.seeder.internal.Player;
+import com.sonymobile.seeder.internal.SegmentCache;
 import com.ssm.dashlib.BuildConfig;
 
 /**
@@ -924,7 +926,9 @@ public final class MediaPlayer {
     /**
      * Creates a new MediaPlayer with a context and puts it in IDLE state.
      *
-     * @param context Context to use, only needed for OutputControl to function.
+     * @param context Context to use, needed for OutputControl to function and
+     *            for caching downloaded media on disk, see
+     *            {@link #setDiskCacheSize(int)}.
      */
     public MediaPlayer(Context context) {
         // Always print the library version for debug purpose.
@@ -933,6 +937,8 @@ public final class MediaPlayer {
         if (LOGS_ENABLED) Log.d(TAG, "MediaPlayer(Context)");
         if (context != null) {
             mContext = context.getApplicationContext();
+            SegmentCache.getInstance().setDirectory(
+                    new File(mContext.getCacheDir(), Configuration.DISK_CACHE_DIRECTORY));
         }
         mPlayerEventThread = new HandlerThread("MediaPlayerEventThread",
                 Process.THREAD_PRIORITY_MORE_FAVORABLE);
@@ -2035,6 +2041,23 @@ public final class MediaPlayer {
         }
     }
 
+    /**
+     * Sets the size of the disk cache of downloaded media. The cache is
+     * disabled until a size is set. It is shared by all MediaPlayers in the
+     * process and is only used by players created with a Context. The cache
+     * is loaded in the background, and the least recently used media is
+     * evicted when the cache is full.
+     *
+     * @param sizeMb the cache size in megabytes, 0 disables the cache.
+     * @throws IllegalArgumentException if sizeMb < 0.
+     */
+    public void setDiskCacheSize(int sizeMb) {
+        if (sizeMb < 0) {
+            throw new IllegalArgumentException("Negative values are not allowed");
+        }
+        SegmentCache.getInstance().setMaxSize((long)sizeMb * 1024 * 1024);
+    }
+
     /**
      * Set a custom video configuration parameter that will be sent to
      * MediaCodec via the injected MediaFormat in the configure function.
@@ -28,14 +28,9 @@ import static com.sonymobile.seeder.internal.HandlerHelper.sendMessageAndAwaitRe
 import static com.sonymobile.seeder.internal.Player.MSG_CODEC_NOTIFY;
 
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.net.Inet4Address;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.nio.ByteBuffer;
-import java.util.LinkedList;
 
 import android.media.AudioFormat;
 import android.media.AudioManager;
@@ -57,7 +52,8 @@ import android.os.SystemClock;
 import android.util.Log;
 
 import com.sonymobile.common.AccessUnit;
-import com.sonymobile.common.SendObject;
+import com.sonymobile.common.RelayProtocol;
+import com.sonymobile.common.RelayServer;
 import com.sonymobile.seeder.MediaError;
 import com.sonymobile.seeder.TrackInfo.TrackType;
 import com.sonymobile.seeder.internal.drm.DrmSession;
@@ -146,25 +142,10 @@ public final class AudioThread extends CodecThread implements Clock {
 
 	private Method mSetAudioTrackMethod;
 
-	/*
-	 * To send AccessUnit to seeder.
-	 */
-	private static final int MSG_ACCEPT = 1;
-	private static final int MSG_WRITE = 2;
-	private static final int MSG_CLOSE = 3;
-	private static final String TAG2 = "AideoThread.Socket";
-	private ServerSocket mServerSocket;
-	private Socket mSocket;
-	private HandlerThread mSocketThread;
-	private SocketHandler mSocketHandler;
-	private LinkedList<AccessUnit> mLinkedList = new LinkedList<AccessUnit>();
-	private ObjectOutputStream mSocketOutputStream;
-	private boolean isBinded = false;
-	private Object mBindedLock = new Object();
-	private Object mWriteLock = new Object();
+	private RelayServer mRelayServer;
 
 	public AudioThread(MediaFormat format, MediaSource source, int audioSessionId,
-			Handler callback, DrmSession drmSession) {
+			Handler callback, DrmSession drmSession, RelayServer relayServer) {
 		mEventThread = new HandlerThread("Audio", Process.THREAD_PRIORITY_MORE_FAVORABLE);
 		mEventThread.start();
 
@@ -195,10 +176,7 @@ public final class AudioThread extends CodecThread implements Clock {
 
 		mDrmSession = drmSession;
 
-		mSocketThread = new HandlerThread(TAG2);
-		mSocketThread.start();
-		mSocketHandler = new SocketHandler(mSocketThread.getLooper());
-		mSocketHandler.sendEmptyMessage(MSG_ACCEPT);
+		mRelayServer = relayServer;
 	}
 
 	public void start() {
@@ -432,15 +410,10 @@ public final class AudioThread extends CodecThread implements Clock {
 				AccessUnit accessUnit = mSource.dequeueAccessUnit(TrackType.AUDIO);
 				Log.i("accessA","status: "+accessUnit.status+"/ size: "+accessUnit.size+"/ timeMs: "+accessUnit.timeUs/1000);
 				//Log.i("accessA","durationUs: "+accessUnit.durationUs+"/ isSyncSample: "+accessUnit.isSyncSample+"/ trackIndex: "+accessUnit.trackIndex);
- 
-				//synchronized (mWriteLock) {
-					//if (mSocket != null && !mSocket.isClosed()) {
-				if(accessUnit.status == 0 && accessUnit.timeUs != -1){
-						mLinkedList.addLast(accessUnit);
-						mSocketHandler.sendEmptyMessage(MSG_WRITE);
+
+				if (mRelayServer != null) {
+					mRelayServer.publish(RelayProtocol.TRACK_AUDIO, accessUnit);
 				}
-					//}
-				//}
 
 //				if (accessUnit == null) {
 //					if (LOGS_ENABLED) Log.w(TAG, "Warning null AccessUnit");
@@ -467,6 +440,9 @@ public final class AudioThread extends CodecThread implements Clock {
 					}
 
 					mInputBuffer = -1;
+
+					// The data is in the codec, the relay holds its own reference.
+					accessUnit.recycle();
 				} else if (accessUnit.status == AccessUnit.NO_DATA_AVAILABLE) {
 					if (LOGS_ENABLED) Log.e(TAG, "No audio data available");
 					mInputBuffer = inputBufferIndex;
@@ -862,87 +838,6 @@ public final class AudioThread extends CodecThread implements Clock {
 		mLastReportedCurrentPositionUs = 0;
 	}
 
-	private void onAccept() {
-		try {
-			synchronized (mBindedLock) {
-				if (!isBinded) {
-					if (mServerSocket == null || !mServerSocket.isBound()) {
-						mServerSocket = new ServerSocket(55100, 1, Inet4Address.getByName("192.168.49.1"));
-						isBinded = true;
-					}
-				} else {
-					Log.i(TAG, "server socket already binded");
-					return;
-				}
-			}
-			if(mSocket != null && mSocket.isConnected()) {
-				Log.w(TAG, "one client already connected");
-				return;
-			}
-			try {
-				//synchronized (mWriteLock) {
-					mSocket = mServerSocket.accept();
-					mSocketOutputStream = new ObjectOutputStream(mSocket.getOutputStream());
-				//}
-			} catch (Exception e) {
-				Log.e(TAG, e.getMessage(), e);
-				mSocketHandler.sendEmptyMessage(MSG_CLOSE);
-			}
-		} catch (Exception e) {
-			Log.e(TAG, e.getMessage(), e);
-		}
-	}
-
-	private void onClose() {
-		try {
-			if (mSocket != null && mSocket.isConnected()) {
-				mSocketOutputStream.close();
-				mSocketOutputStream = null;
-				mSocket.close();
-				mSocket = null;
-			}
-		} catch (Exception e) {
-			Log.e(TAG, e.getMessage(), e);
-		}
-	}
-
-	private void onWrite() {
-		try {
-			if (mSocket == null || mSocket.isClosed()) {
-				//Log.i(TAG, "socket is closed");
-				return;
-			}
-			SendObject sobj = new SendObject(mLinkedList.removeFirst());
-			mSocketOutputStream.writeObject(sobj);
-			mSocketOutputStream.flush();
-		} catch (Exception e) {
-			Log.e(TAG, e.getMessage(), e);
-			mSocketHandler.sendEmptyMessage(MSG_CLOSE);
-		}
-	}
-
-	private class SocketHandler extends Handler {
-
-		public SocketHandler(Looper looper) {
-			super(looper);
-		}
-
-		@Override
-		public void handleMessage(Message msg) {
-			switch (msg.what) {
-			case MSG_ACCEPT:
-				onAccept();
-				break;
-			case MSG_WRITE:
-				onWrite();
-				break;
-			case MSG_CLOSE:
-				onClose();
-				break;
-			}
-		}
-	}
-
 	class EventHandler extends Handler {
 
 		public EventHandler(Looper looper) {
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2014 Sony Mobile Communications Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.sonymobile.seeder.internal;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * DataSource over a box that has been read into memory in one go, so the
+ * many small reads of parsing it are plain array accesses instead of going
+ * through the buffering, locking and I/O of the underlying source.
+ *
+ * Offsets are those of the underlying source. Reads outside the buffered
+ * box, such as auxiliary information stored in the mdat, are passed on to
+ * it.
+ */
+public class BoxDataSource extends DataSource {
+
+    private DataSource mSource;
+
+    private byte[] mBuffer;
+
+    private long mStart;
+
+    private int mLength;
+
+    private long mPosition;
+
+    private final byte[] mScratch = new byte[8];
+
+    /** Index of the bytes returned by locate. */
+    private int mIndex;
+
+    /**
+     * Reads size bytes from offset of source into memory, reusing the buffer
+     * of the previous box if it is large enough.
+     *
+     * @return false if the bytes could not be read.
+     */
+    public boolean load(DataSource source, long offset, int size) throws IOException {
+        if (mBuffer == null || mBuffer.length < size) {
+            mBuffer = new byte[size];
+        }
+        mSource = source;
+        mLength = 0;
+        if (source.readAt(offset, mBuffer, size) != size) {
+            return false;
+        }
+        mStart = offset;
+        mLength = size;
+        mPosition = offset;
+        return true;
+    }
+
+    @Override
+    public void reset() throws IOException {
+        mSource.reset();
+    }
+
+    @Override
+    public int readAt(long offset, byte[] buffer, int size) throws IOException {
+        if (offset >= mStart && offset + size <= mStart + mLength) {
+            System.arraycopy(mBuffer, (int)(offset - mStart), buffer, 0, size);
+            mPosition = offset + size;
+            return size;
+        }
+
+        int read = mSource.readAt(offset, buffer, size);
+        mPosition = offset + Math.max(read, 0);
+        return read;
+    }
+
+    @Override
+    public int read(byte[] buffer) throws IOException {
+        return readAt(mPosition, buffer, buffer.length);
+    }
+
+    @Override
+    public int readByte() throws IOException {
+        byte[] data = locate(1);
+        return data[mIndex] & 0xff;
+    }
+
+    @Override
+    public short readShort() throws IOException, EOFException {
+        byte[] data = locate(2);
+        return (short)((data[mIndex] & 0xff) << 8 | (data[mIndex + 1] & 0xff));
+    }
+
+    @Override
+    public int readInt() throws IOException, EOFException {
+        byte[] data = locate(4);
+        return readInt(data, mIndex);
+    }
+
+    @Override
+    public long readLong() throws IOException, EOFException {
+        byte[] data = locate(8);
+        return (long)readInt(data, mIndex) << 32 | (readInt(data, mIndex + 4) & 0xffffffffL);
+    }
+
+    @Override
+    public long skipBytes(long count) throws IOException {
+        mPosition += count;
+        return count;
+    }
+
+    @Override
+    public long length() throws IOException {
+        return mSource.length();
+    }
+
+    @Override
+    public long getCurrentOffset() {
+        return mPosition;
+    }
+
+    @Override
+    public String getRemoteIP() {
+        return mSource.getRemoteIP();
+    }
+
+    @Override
+    public DataAvailability hasDataAvailable(long offset, int size) {
+        return mSource.hasDataAvailable(offset, size);
+    }
+
+    @Override
+    public void seek(long offset) throws IOException {
+        mPosition = offset;
+    }
+
+    /**
+     * The underlying source is owned by the parser, it is not closed.
+     */
+    @Override
+    public void close() throws IOException {
+    }
+
+    /**
+     * Returns the array holding the next byteCount bytes, starting at mIndex,
+     * and moves past them. Bytes outside the buffered box are read from the
+     * underlying source into scratch space.
+     */
+    private byte[] locate(int byteCount) throws IOException {
+        long position = mPosition;
+        mPosition += byteCount;
+        if (position >= mStart && position + byteCount <= mStart + mLength) {
+            mIndex = (int)(position - mStart);
+            return mBuffer;
+        }
+
+        if (mSource.readAt(position, mScratch, byteCount) != byteCount) {
+            throw new EOFException();
+        }
+        mIndex = 0;
+        return mScratch;
+    }
+
+    private static int readInt(byte[] buffer, int index) {
+        return (buffer[index] & 0xff) << 24 | (buffer[index + 1] & 0xff) << 16
+                | (buffer[index + 2] & 0xff) << 8 | (buffer[index + 3] & 0xff);
+    }
+}
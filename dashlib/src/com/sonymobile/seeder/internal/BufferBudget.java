@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2014 Sony Mobile Communications Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.sonymobile.seeder.internal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import android.util.Log;
+
+/**
+ * Process-wide manager of the download buffers of all data sources. Buffers
+ * are handed out from a pool of released arrays when one of a fitting size is
+ * available, so fetching segment after segment does not allocate a new large
+ * array each time.
+ *
+ * All buffers together are kept within a budget of half the heap. A request
+ * that would go over the budget, or that comes while the heap is nearly
+ * full, first empties the pool and then gets a smaller buffer than asked
+ * for, never less than MIN_BUFFER_SIZE.
+ *
+ * Usage is accounted per owner, typically a track, with the current and the
+ * peak number of bytes in use.
+ */
+public final class BufferBudget {
+
+    private static final boolean LOGS_ENABLED = Configuration.DEBUG || false;
+
+    private static final String TAG = "BufferBudget";
+
+    public static final String DEFAULT_OWNER = "default";
+
+    private static final int MIN_BUFFER_SIZE = 256 * 1024;
+
+    /** Largest array kept in the pool, larger ones are left to the GC. */
+    private static final int MAX_POOLED_BUFFER_SIZE = 16 * 1024 * 1024;
+
+    private static final long MAX_POOLED_BYTES = 24 * 1024 * 1024;
+
+    /** Heap to leave free for everything else before buffers are shrunk. */
+    private static final long LOW_MEMORY_MARGIN = 8 * 1024 * 1024;
+
+    private static BufferBudget sInstance;
+
+    private final long mBudget;
+
+    private final ArrayList<byte[]> mPool = new ArrayList<byte[]>();
+
+    private final HashMap<String, long[]> mUsage = new HashMap<String, long[]>();
+
+    private long mPooledBytes;
+
+    private long mUsedBytes;
+
+    public static synchronized BufferBudget getInstance() {
+        if (sInstance == null) {
+            sInstance = new BufferBudget(Runtime.getRuntime().maxMemory() / 2);
+        }
+        return sInstance;
+    }
+
+    private BufferBudget(long budget) {
+        mBudget = budget;
+    }
+
+    /**
+     * Returns a buffer of at least size bytes, or a smaller one if memory is
+     * short. Only the first size bytes of a pooled buffer are meant to be
+     * used.
+     */
+    public synchronized byte[] acquire(String owner, int size) {
+        byte[] buffer = takeFromPool(size);
+        if (buffer == null) {
+            int allowed = getAllowedSize(size);
+            if (allowed < size && LOGS_ENABLED) {
+                Log.w(TAG, "Shrinking buffer for " + owner + " from " + size + " to " + allowed);
+            }
+            buffer = new byte[allowed];
+        }
+
+        mUsedBytes += buffer.length;
+        long[] usage = getUsage(owner);
+        usage[0] += buffer.length;
+        if (usage[0] > usage[1]) {
+            usage[1] = usage[0];
+        }
+        return buffer;
+    }
+
+    /**
+     * Hands back a buffer from acquire.
+     *
+     * @param reusable false if something may still write to the buffer, it
+     *            is then only accounted and left to the GC.
+     */
+    public synchronized void release(String owner, byte[] buffer, boolean reusable) {
+        mUsedBytes -= buffer.length;
+        getUsage(owner)[0] -= buffer.length;
+
+        if (reusable && buffer.length <= MAX_POOLED_BUFFER_SIZE) {
+            mPool.add(buffer);
+            mPooledBytes += buffer.length;
+            while (mPooledBytes > MAX_POOLED_BYTES) {
+                mPooledBytes -= mPool.remove(0).length;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of buffer bytes the owner currently holds.
+     */
+    public synchronized long getCurrentUsage(String owner) {
+        return getUsage(owner)[0];
+    }
+
+    /**
+     * Returns the largest number of buffer bytes the owner has held at once.
+     */
+    public synchronized long getPeakUsage(String owner) {
+        return getUsage(owner)[1];
+    }
+
+    private byte[] takeFromPool(int size) {
+        int bestIndex = -1;
+        for (int i = 0; i < mPool.size(); i++) {
+            int length = mPool.get(i).length;
+            // Don't tie up a much larger buffer for a small request.
+            if (length >= size && length - size <= Math.max(size / 4, MIN_BUFFER_SIZE)
+                    && (bestIndex == -1 || length < mPool.get(bestIndex).length)) {
+                bestIndex = i;
+            }
+        }
+
+        if (bestIndex == -1) {
+            return null;
+        }
+        byte[] buffer = mPool.remove(bestIndex);
+        mPooledBytes -= buffer.length;
+        return buffer;
+    }
+
+    /**
+     * Drops all pooled buffers, done when an allocation finds the heap
+     * nearly full.
+     */
+    private void trim() {
+        mPool.clear();
+        mPooledBytes = 0;
+    }
+
+    private int getAllowedSize(int size) {
+        long allowed = Math.min(size, mBudget - mUsedBytes);
+
+        Runtime runtime = Runtime.getRuntime();
+        long heapFree = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        if (heapFree - LOW_MEMORY_MARGIN < allowed) {
+            // Pooled buffers are the first thing to go under pressure.
+            long reclaimable = mPooledBytes;
+            trim();
+            allowed = Math.min(allowed, (heapFree + reclaimable - LOW_MEMORY_MARGIN) / 2);
+        }
+
+        return (int)Math.max(Math.min(size, MIN_BUFFER_SIZE), allowed);
+    }
+
+    private long[] getUsage(String owner) {
+        long[] usage = mUsage.get(owner);
+        if (usage == null) {
+            usage = new long[2];
+            mUsage.put(owner, usage);
+        }
+        return usage;
+    }
+}
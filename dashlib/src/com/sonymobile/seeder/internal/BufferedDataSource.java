@@ -27,7 +27,6 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
-import java.net.InetAddress;
 import java.net.MalformedURLException;
 import java.net.ProtocolException;
 import java.net.URL;
@@ -77,19 +76,39 @@ public abstract class BufferedDataSource extends DataSource {
 
     protected int mLength = -1;
 
+    /**
+     * Capacity of the current buffer, or the requested size until a stream
+     * has been opened.
+     */
     protected int mBufferSize = -1;
 
+    /**
+     * Buffer size asked for at create time, or -1 for the default.
+     */
+    protected int mRequestedBufferSize = -1;
+
     protected String mServerIP = null;
 
     protected long mStartOffset = 0;
 
+    protected String mBufferOwner;
+
     private Handler mReconnectHandler;
 
     private HandlerThread mReconnectThread;
 
+    private volatile int mWaitCount;
+
+    private volatile long mWaitTimeUs;
+
+    private volatile long mMaxWaitTimeUs;
+
+    /** Scratch space for decoding primitives, avoids an allocation per read. */
+    private final byte[] mPrimitiveBuffer = new byte[LONG];
+
     protected BufferedDataSource(String uri, long offset, int length, int bufferSize,
-            Handler notify, BandwidthEstimator bandwidthEstimator) throws FileNotFoundException,
-            IOException {
+            Handler notify, BandwidthEstimator bandwidthEstimator, String bufferOwner)
+            throws FileNotFoundException, IOException {
 
         if (LOGS_ENABLED)
             Log.v(TAG, "offset " + offset + " length " + length + " bufferSize " + bufferSize);
@@ -100,11 +119,13 @@ public abstract class BufferedDataSource extends DataSource {
         }
         mLength = length;
         mBufferSize = bufferSize;
+        mRequestedBufferSize = bufferSize;
         mUri = uri;
         mCurrentOffset = mOffset;
         mStartOffset = mOffset;
         mNotify = notify;
         mBandwidthEstimator = bandwidthEstimator;
+        mBufferOwner = bufferOwner != null ? bufferOwner : BufferBudget.DEFAULT_OWNER;
 
         if (mNotify != null) {
             mReconnectThread = new HandlerThread("Reconnect thread");
@@ -122,34 +143,55 @@ public abstract class BufferedDataSource extends DataSource {
     }
 
     @Override
-    public short readShort() throws IOException, EOFException {
-        byte[] shortBuffer = new byte[SHORT];
-        int read = readAt(mCurrentOffset, shortBuffer, shortBuffer.length);
-        if (read <= 0) {
-            // Since we know that is a error it should fit fine in a short
-            return (short)read;
+    public synchronized short readShort() throws IOException, EOFException {
+        if (!readBuffered(SHORT)) {
+            int read = readAt(mCurrentOffset, mPrimitiveBuffer, SHORT);
+            if (read <= 0) {
+                // Since we know that is a error it should fit fine in a short
+                return (short)read;
+            }
         }
-        return peekShort(shortBuffer, 0);
+        return peekShort(mPrimitiveBuffer, 0);
     }
 
     @Override
-    public int readInt() throws IOException, EOFException {
-        byte[] intBuffer = new byte[INT];
-        int read = readAt(mCurrentOffset, intBuffer, intBuffer.length);
-        if (read <= 0) {
-            return read;
+    public synchronized int readInt() throws IOException, EOFException {
+        if (!readBuffered(INT)) {
+            int read = readAt(mCurrentOffset, mPrimitiveBuffer, INT);
+            if (read <= 0) {
+                return read;
+            }
         }
-        return peekInt(intBuffer, 0);
+        return peekInt(mPrimitiveBuffer, 0);
     }
 
     @Override
-    public long readLong() throws IOException, EOFException {
-        byte[] longBuffer = new byte[LONG];
-        int read = readAt(mCurrentOffset, longBuffer, longBuffer.length);
-        if (read <= 0) {
-            return read;
+    public synchronized long readLong() throws IOException, EOFException {
+        if (!readBuffered(LONG)) {
+            int read = readAt(mCurrentOffset, mPrimitiveBuffer, LONG);
+            if (read <= 0) {
+                return read;
+            }
         }
-        return peekLong(longBuffer, 0);
+        return peekLong(mPrimitiveBuffer, 0);
+    }
+
+    /**
+     * Fast path for primitive reads at the current offset. The data already
+     * downloaded ahead of the read position is the read-ahead window, a
+     * primitive is taken from it without going through readAt as long as it
+     * holds enough bytes.
+     *
+     * @return false if readAt has to be used.
+     */
+    private boolean readBuffered(int byteCount) {
+        BufferedStream bis = mBis;
+        if (mConnectError != STATUS_OK || bis == null
+                || !bis.readBuffered(mPrimitiveBuffer, byteCount)) {
+            return false;
+        }
+        mCurrentOffset += byteCount;
+        return true;
     }
 
     @Override
@@ -189,7 +231,7 @@ public abstract class BufferedDataSource extends DataSource {
             long skipped = mBis.skip(count - totalSkipped);
 
             if (skipped == 0) {
-                mBis.compact(-1);
+                mBis.discard(-1);
             }
 
             if (skipped > -1) {
@@ -212,10 +254,7 @@ public abstract class BufferedDataSource extends DataSource {
             }
 
             if (totalSkipped < count) {
-                try {
-                    Thread.sleep(1); // Let the system take a breath....
-                } catch (InterruptedException e) {
-                }
+                awaitData(count - totalSkipped);
             }
         } while (totalSkipped < count);
 
@@ -235,6 +274,56 @@ public abstract class BufferedDataSource extends DataSource {
         }
     }
 
+    /**
+     * Returns the number of times a read had to wait for data to be
+     * downloaded.
+     */
+    public int getWaitCount() {
+        return mWaitCount;
+    }
+
+    /**
+     * Returns the total time reads have waited for data to be downloaded, in
+     * microseconds.
+     */
+    public long getWaitTimeUs() {
+        return mWaitTimeUs;
+    }
+
+    /**
+     * Returns the longest single wait for data to be downloaded, in
+     * microseconds.
+     */
+    public long getMaxWaitTimeUs() {
+        return mMaxWaitTimeUs;
+    }
+
+    /**
+     * Returns the average number of bytes per network read of the current
+     * connection, or 0 if nothing has been read yet.
+     */
+    public int getAverageBytesPerRead() {
+        BufferedStream bis = mBis;
+        return bis != null ? bis.getAverageBytesPerRead() : 0;
+    }
+
+    /**
+     * Waits until byteCount more bytes are buffered or the stream cannot
+     * deliver more right now, and accounts the time spent. Only to be called
+     * from the reading thread.
+     */
+    protected void awaitData(long byteCount) {
+        long startNs = System.nanoTime();
+        mBis.awaitData(byteCount);
+        long waitTimeUs = (System.nanoTime() - startNs) / 1000;
+
+        mWaitCount++;
+        mWaitTimeUs += waitTimeUs;
+        if (waitTimeUs > mMaxWaitTimeUs) {
+            mMaxWaitTimeUs = waitTimeUs;
+        }
+    }
+
     @Override
     public String getRemoteIP() {
         return mServerIP;
@@ -299,8 +388,13 @@ public abstract class BufferedDataSource extends DataSource {
             if (mCurrentOffset < mOffset + mLength) {
                 length -= (mCurrentOffset - mOffset);
             }
-            mHttpURLConnection = openHttpConnection(mUri, mCurrentOffset, length);
-            in = mHttpURLConnection.getInputStream();
+            in = openHttpStream(mCurrentOffset, length);
+
+            if (mCurrentOffset == mStartOffset && (mLength != -1 || mStartOffset == 0)) {
+                // The whole range is about to be downloaded, keep a copy.
+                in = SegmentCache.getInstance().wrap(in, mHttpURLConnection, mUri,
+                        mStartOffset, mLength, mContentLength);
+            }
         } else if (mUri.startsWith("/") || mUri.startsWith("file")) {
             File f = new File(mUri);
             in = new FileInputStream(f);
@@ -310,33 +404,45 @@ public abstract class BufferedDataSource extends DataSource {
         // Set bufferSize to the default size.
         int bufferSize = Configuration.DEFAULT_HTTP_BUFFER_SIZE;
 
-        if (mBufferSize != -1) {
+        if (mRequestedBufferSize != -1) {
             // Size specified at create time.
-            bufferSize = mBufferSize;
+            bufferSize = mRequestedBufferSize;
         }
 
         if (mLength != -1 && mLength < bufferSize) {
             // We got a length smaller than set buffer size.
             // Use length + 200 bytes as bufferSize
             bufferSize = mLength + 200;
+        } else if (mLength == -1 && mContentLength > 0 && mContentLength < bufferSize) {
+            // The whole resource is smaller than the buffer.
+            bufferSize = (int)mContentLength + 200;
         }
-        mBufferSize = bufferSize;
-
-        // TODO: We need to check if we run on a low memory device and adjust
-        // the buffer size.
+        // The BufferBudget hands out a smaller buffer if memory is short,
+        // decisions on what is buffered are made against what was allocated.
         if (in != null) {
-            mBis = new BufferedStream(in, bufferSize, mBandwidthEstimator, mReconnectHandler);
+            mBis = new BufferedStream(in, bufferSize, mBandwidthEstimator, mReconnectHandler,
+                    mBufferOwner);
+            mBufferSize = mBis.getBufferSize();
         } else {
             throw new IOException("Unable to open data stream");
         }
     }
 
-    private HttpURLConnection openHttpConnection(String http, long offset, int length)
+    /**
+     * Opens the stream the buffer is filled from, setting mHttpURLConnection.
+     * Subclasses may spread the download over several connections.
+     */
+    protected InputStream openHttpStream(long offset, int length) throws IOException {
+        mHttpURLConnection = openHttpConnection(mUri, offset, length);
+        return mHttpURLConnection.getInputStream();
+    }
+
+    protected HttpURLConnection openHttpConnection(String http, long offset, int length)
             throws IOException {
         try {
             URL url = new URL(http);
-            HttpURLConnection httpConnection = (HttpURLConnection)url.openConnection();
-            httpConnection.setConnectTimeout(5000); // 5s timeout
+            HttpKeepAlive keepAlive = HttpKeepAlive.getInstance();
+            HttpURLConnection httpConnection = keepAlive.open(url);
             httpConnection.setRequestProperty("Accept-Encoding", "identity");
 
             if (offset > 0 || length != -1) {
@@ -349,8 +455,7 @@ public abstract class BufferedDataSource extends DataSource {
 
             httpConnection.connect();
 
-            InetAddress address = InetAddress.getByName(url.getHost());
-            mServerIP = address.getHostAddress();
+            mServerIP = keepAlive.getHostAddress(url.getHost());
 
             int responseCode = httpConnection.getResponseCode();
 
@@ -437,11 +542,12 @@ public abstract class BufferedDataSource extends DataSource {
     }
 
     protected void doCloseSync() {
+        boolean bodyConsumed = mBis != null && mBis.isEndOfStreamReached();
         doCloseSilently(mBis);
         mBis = null;
 
         if (mHttpURLConnection != null) {
-            mHttpURLConnection.disconnect();
+            HttpKeepAlive.getInstance().release(mHttpURLConnection, bodyConsumed);
             mHttpURLConnection = null;
         }
     }
@@ -449,27 +555,30 @@ public abstract class BufferedDataSource extends DataSource {
     /**
      * Closes the BufferStream and underlying streams asynchronously. This is
      * due to a bug in okHTTP: https://github.com/square/okhttp/pull/430
+     * The close runs on a download worker of the owner, not a new thread.
      */
     protected void doCloseAsync() {
-        final Thread closer = new Thread() {
+        Runnable closer = new Runnable() {
             @Override
             public void run() {
+                boolean bodyConsumed = mBis != null && mBis.isEndOfStreamReached();
                 doCloseSilently(mBis);
                 mBis = null;
 
                 if (mHttpURLConnection != null) {
                     try {
-                        mHttpURLConnection.disconnect();
+                        HttpKeepAlive.getInstance().release(mHttpURLConnection,
+                                bodyConsumed);
                     } catch (NullPointerException e) {
                         if (LOGS_ENABLED)
-                            Log.e(TAG, "NullPointerException from mHttpURLConnection.disconnect()"
+                            Log.e(TAG, "NullPointerException when releasing mHttpURLConnection"
                                     , e);
                     }
                     mHttpURLConnection = null;
                 }
             }
         };
-        closer.start();
+        DownloadWorker.execute(mBufferOwner, closer);
     }
 
     protected void doCloseSilently(Closeable c) {
@@ -18,6 +18,7 @@ package com.sonymobile.seeder.internal;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.locks.LockSupport;
 
 import android.os.Handler;
 import android.os.SystemClock;
@@ -50,24 +51,49 @@ public class BufferedStream extends InputStream {
 
     private static final int HIGH_THRESHOLD_PERCENT = 85;
 
+    /**
+     * Longest a reader or the downloader parks before looking again, so a
+     * reconnect or a missed signal never leaves it stuck.
+     */
+    private static final long MAX_WAIT_NS = 100000000;
+
+    /**
+     * Bounds of the adaptive network read size. Reads start small, grow while
+     * the network fills every read and shrink when the buffer runs low so
+     * the reader gets data sooner.
+     */
+    private static final int MIN_READ_SIZE = 1024;
+
+    private static final int MAX_READ_SIZE = 64 * 1024;
+
     // TODO: Maybe should we wrap a BufferedInputStream since we do a lot of
     // small reads, however this could mess up bandwidth measure.
     private InputStream mInputStream;
 
     private int mBufferSize;
 
-    private Buffer mDataBuffer;
+    private RingBuffer mDataBuffer;
 
-    private DownloaderThread mDownloaderThread;
+    private byte[] mStorage;
+
+    private String mOwner;
+
+    private Downloader mDownloader;
 
     private BandwidthEstimator mBandwidthEstimator;
 
     private ThresholdListener mThresholdListener;
 
-    private boolean mClosed = false;
+    private volatile boolean mClosed = false;
+
+    private volatile Thread mWaitingReader;
+
+    private volatile Thread mWaitingWriter;
 
     private long mTotalBytesLoaded = 0;
 
+    private volatile long mReadCount = 0;
+
     private Handler mCallback;
 
     public BufferedStream(InputStream in, int bufferSize) {
@@ -76,18 +102,29 @@ public class BufferedStream extends InputStream {
 
     public BufferedStream(InputStream in, int bufferSize, BandwidthEstimator estimator,
             Handler handler) {
+        this(in, bufferSize, estimator, handler, BufferBudget.DEFAULT_OWNER);
+    }
+
+    /**
+     * @param owner the owner the buffer is accounted to in the BufferBudget.
+     *            The buffer may be smaller than bufferSize if memory is
+     *            short.
+     */
+    public BufferedStream(InputStream in, int bufferSize, BandwidthEstimator estimator,
+            Handler handler, String owner) {
         super();
         mInputStream = in;
-        mBufferSize = bufferSize;
+        mOwner = owner;
 
         mBandwidthEstimator = estimator;
 
-        mDataBuffer = new Buffer(mBufferSize);
-
-        mDownloaderThread = new DownloaderThread();
-        mDownloaderThread.start();
+        mStorage = BufferBudget.getInstance().acquire(owner, bufferSize);
+        mBufferSize = Math.min(bufferSize, mStorage.length);
+        mDataBuffer = new RingBuffer(mStorage, mBufferSize);
 
         mCallback = handler;
+
+        startDownloader();
     }
 
     @Override
@@ -106,13 +143,12 @@ public class BufferedStream extends InputStream {
         }
 
         mClosed = true; // Mark as closed so we will exit ASAP
+        signal(mWaitingReader);
+        signal(mWaitingWriter);
 
-        if (mDownloaderThread != null) {
-            try {
-                // Wait for the thread to exit.
-                mDownloaderThread.join(500);
-            } catch (InterruptedException e1) {
-            }
+        if (mDownloader != null) {
+            // Wait for the download to return its worker.
+            mDownloader.awaitFinished(500);
         }
 
         if (mInputStream != null) {
@@ -127,7 +163,14 @@ public class BufferedStream extends InputStream {
             mDataBuffer.close();
         }
 
-        mDownloaderThread = null;
+        if (mStorage != null) {
+            // A downloader that did not exit in time may still write to it.
+            boolean reusable = mDownloader == null || mDownloader.isFinished();
+            BufferBudget.getInstance().release(mOwner, mStorage, reusable);
+            mStorage = null;
+        }
+
+        mDownloader = null;
         mDataBuffer = null;
         mCallback = null;
         mBandwidthEstimator = null;
@@ -151,7 +194,8 @@ public class BufferedStream extends InputStream {
         }
 
         int data = mDataBuffer.get();
-        if (data == 0 && (mDownloaderThread == null || mDownloaderThread.isAtEndOfStream())) {
+        signal(mWaitingWriter);
+        if (data == 0 && (mDownloader == null || mDownloader.isAtEndOfStream())) {
             data = -1;
         }
 
@@ -165,7 +209,8 @@ public class BufferedStream extends InputStream {
         }
 
         int read = mDataBuffer.get(buffer, byteOffset, byteCount);
-        if (read == 0 && (mDownloaderThread == null || mDownloaderThread.isAtEndOfStream())) {
+        signal(mWaitingWriter);
+        if (read == 0 && (mDownloader == null || mDownloader.isAtEndOfStream())) {
             return -1;
         }
 
@@ -179,13 +224,30 @@ public class BufferedStream extends InputStream {
         }
 
         int read = mDataBuffer.get(buffer, 0, buffer.length);
-        if (read == 0 && (mDownloaderThread == null || mDownloaderThread.isAtEndOfStream())) {
+        signal(mWaitingWriter);
+        if (read == 0 && (mDownloader == null || mDownloader.isAtEndOfStream())) {
             return -1;
         }
 
         return read;
     }
 
+    /**
+     * Reads byteCount bytes only if all of them are already buffered. Never
+     * blocks and never returns part of the bytes.
+     *
+     * @return true if the bytes were read.
+     */
+    public synchronized boolean readBuffered(byte[] buffer, int byteCount) {
+        if (mClosed || mDataBuffer.available() < byteCount) {
+            return false;
+        }
+
+        mDataBuffer.get(buffer, 0, byteCount);
+        signal(mWaitingWriter);
+        return true;
+    }
+
     @Override
     public synchronized void reset() throws IOException {
         if (mClosed) {
@@ -200,7 +262,8 @@ public class BufferedStream extends InputStream {
         }
 
         long skipped = mDataBuffer.skip((int)byteCount);
-        if (skipped == 0 && (mDownloaderThread == null || mDownloaderThread.isAtEndOfStream())) {
+        signal(mWaitingWriter);
+        if (skipped == 0 && (mDownloader == null || mDownloader.isAtEndOfStream())) {
             skipped = -1;
         }
 
@@ -225,6 +288,7 @@ public class BufferedStream extends InputStream {
         }
 
         mDataBuffer.fastForward(fastForwardBytes);
+        signal(mWaitingWriter);
     }
 
     protected synchronized int freeSpace() {
@@ -259,36 +323,127 @@ public class BufferedStream extends InputStream {
         return mDataBuffer.canFastForward(bytesToFastForward);
     }
 
-    protected synchronized void compact(int bytesToDiscard) {
+    /**
+     * Drops data retained for rewinding to make room for downloaded data.
+     *
+     * @param bytesToDiscard number of bytes to drop, -1 to drop all.
+     */
+    protected synchronized void discard(int bytesToDiscard) {
         if (mClosed) {
             return;
         }
 
-        mDataBuffer.compact(bytesToDiscard);
+        mDataBuffer.discard(bytesToDiscard);
+        signal(mWaitingWriter);
+    }
+
+    /**
+     * Blocks the calling reader until byteCount bytes ahead of the read
+     * position are buffered, or no more data can come right now because the
+     * buffer is full, the download has ended or the stream is closed. Wakes
+     * as soon as the downloader stores data, never waits longer than
+     * MAX_WAIT_NS. Only one reader may wait at a time.
+     *
+     * Not synchronized, so other threads can still query the stream.
+     */
+    public void awaitData(long byteCount) {
+        if (isDataReady(byteCount)) {
+            return;
+        }
+
+        mWaitingReader = Thread.currentThread();
+        try {
+            long deadline = System.nanoTime() + MAX_WAIT_NS;
+            while (!isDataReady(byteCount)) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    break;
+                }
+                LockSupport.parkNanos(this, remaining);
+            }
+        } finally {
+            mWaitingReader = null;
+        }
+    }
+
+    private boolean isDataReady(long byteCount) {
+        RingBuffer dataBuffer = mDataBuffer;
+        Downloader downloader = mDownloader;
+        return mClosed || dataBuffer == null || downloader == null
+                || downloader.isAtEndOfStream()
+                || dataBuffer.available() >= byteCount || dataBuffer.freeSpace() == 0;
+    }
+
+    private static void signal(Thread thread) {
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
     }
 
     public void reconnect(InputStream in) {
         mInputStream = in;
 
-        mDownloaderThread = new DownloaderThread();
-        mDownloaderThread.start();
+        startDownloader();
+    }
+
+    /**
+     * Runs the download on a long-lived worker of the owner rather than a
+     * thread of its own.
+     */
+    private void startDownloader() {
+        mDownloader = new Downloader();
+        DownloadWorker.execute(mOwner, mDownloader);
     }
 
     public long getTotalBytesLoaded() {
         return mTotalBytesLoaded;
     }
 
+    /**
+     * Returns the number of reads from the network stream.
+     */
+    public long getReadCount() {
+        return mReadCount;
+    }
+
+    /**
+     * Returns the capacity of the buffer, which is less than asked for if
+     * the BufferBudget was short of memory.
+     */
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+
+    /**
+     * Returns the average number of bytes returned by one network read.
+     */
+    public int getAverageBytesPerRead() {
+        long readCount = mReadCount;
+        return readCount > 0 ? (int)(mTotalBytesLoaded / readCount) : 0;
+    }
+
     private IOException streamIsClosed() {
         return new IOException("Stream is closed");
     }
 
+    /**
+     * Returns true once the whole input stream has been downloaded and
+     * closed, which lets an HTTP connection be kept alive.
+     */
+    public boolean isEndOfStreamReached() {
+        Downloader downloader = mDownloader;
+        return downloader != null && downloader.isAtEndOfStream();
+    }
+
     public synchronized boolean isStreamClosed() {
         return mClosed;
     }
 
-    private class DownloaderThread extends Thread {
+    private class Downloader implements Runnable {
+
+        private volatile boolean mEos = false;
 
-        private boolean mEos = false;
+        private boolean mFinished = false;
 
         private boolean mPaused = false;
 
@@ -302,6 +457,23 @@ public class BufferedStream extends InputStream {
             return mEos;
         }
 
+        public synchronized boolean isFinished() {
+            return mFinished;
+        }
+
+        public synchronized void awaitFinished(long timeoutMs) {
+            long deadline = SystemClock.uptimeMillis() + timeoutMs;
+            long remaining = timeoutMs;
+            while (!mFinished && remaining > 0) {
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                remaining = deadline - SystemClock.uptimeMillis();
+            }
+        }
+
         public void pauseProduction() {
             // We are closed or at end of stream, can't pause.
             if (mClosed || mEos) {
@@ -333,26 +505,48 @@ public class BufferedStream extends InputStream {
 
         @Override
         public void run() {
-            // TODO: What is the best read size ??
-            byte[] data = new byte[1024];
+            try {
+                download();
+            } finally {
+                synchronized (this) {
+                    mFinished = true;
+                    notifyAll();
+                }
+            }
+        }
+
+        private void download() {
+            int readSize = MIN_READ_SIZE;
 
             mTotalBytesLoaded = 0;
+            mReadCount = 0;
 
             if (mBandwidthEstimator != null) {
                 mBandwidthEstimator.onDataTransferStarted();
             }
 
-            if (LOGS_ENABLED) Log.v(TAG, "DownloaderThread will now start.");
+            if (LOGS_ENABLED) Log.v(TAG, "Downloader will now start.");
             while (!mClosed && !mEos && mInputStream != null) {
                 try {
                     if (!mPaused) {
                         mInPauseState = false;
-                        int read = mInputStream.read(data);
+                        RingBuffer dataBuffer = mDataBuffer;
+                        if (dataBuffer == null) {
+                            break;
+                        }
+                        if (dataBuffer.freeSpace() == 0) {
+                            awaitSpace(dataBuffer);
+                            continue;
+                        }
+
+                        // Read straight into the ring, no intermediate copy.
+                        int read = dataBuffer.write(mInputStream, readSize);
 
                         if (read == -1 || mClosed) {
                             mEos = true;
                             break;
                         }
+                        signal(mWaitingReader);
 
                         // TODO: Do not use outer class member. Should be passed
                         // to the DownloadThread instead.
@@ -362,20 +556,9 @@ public class BufferedStream extends InputStream {
                         }
 
                         mTotalBytesLoaded += read;
+                        mReadCount++;
 
-                        int totalSaved = 0;
-                        do {
-                            if (mDataBuffer != null) {
-                                totalSaved += mDataBuffer.put(data, totalSaved, read - totalSaved);
-                                if (totalSaved < read) {
-                                    try {
-                                        // Let the system take a breath.
-                                        Thread.sleep(1);
-                                    } catch (Exception e) {
-                                    }
-                                }
-                            }
-                        } while (!mClosed && totalSaved < read);
+                        readSize = getNextReadSize(readSize, read, dataBuffer);
                         checkAndPostThresholdCallback();
                     } else {
                         synchronized (mPausedLock) {
@@ -405,6 +588,9 @@ public class BufferedStream extends InputStream {
                 }
             }
 
+            // Readers waiting for data must see the end of stream.
+            signal(mWaitingReader);
+
             if (mBandwidthEstimator != null) {
                 mBandwidthEstimator.onDataTransferEnded();
             }
@@ -417,39 +603,66 @@ public class BufferedStream extends InputStream {
                 }
             }
 
-            data = null;
-
             if (LOGS_ENABLED)
-                Log.v(TAG, "DownloaderThread will now exit, stream should be closed by now.");
+                Log.v(TAG, "Downloader will now exit, stream should be closed by now.");
+        }
+
+        /**
+         * Returns the size of the next network read. A read that filled the
+         * request means the network keeps up, so the size is doubled. When
+         * the buffer is close to running dry the size is halved, letting the
+         * reader see data after a shorter read.
+         */
+        private int getNextReadSize(int readSize, int read, RingBuffer dataBuffer) {
+            int bufferSize = dataBuffer.getBufferSize();
+            if (bufferSize > 0
+                    && (long)dataBuffer.available() * 100 < (long)bufferSize
+                            * LOW_THRESHOLD_PERCENT) {
+                return Math.max(MIN_READ_SIZE, readSize / 2);
+            }
+            if (read >= readSize) {
+                return Math.min(MAX_READ_SIZE, readSize * 2);
+            }
+            return readSize;
+        }
+
+        /**
+         * Parks until the reader has made room in the buffer.
+         */
+        private void awaitSpace(RingBuffer dataBuffer) {
+            mWaitingWriter = Thread.currentThread();
+            try {
+                if (!mClosed && dataBuffer.freeSpace() == 0) {
+                    LockSupport.parkNanos(this, MAX_WAIT_NS);
+                }
+            } finally {
+                mWaitingWriter = null;
+            }
         }
 
         private void checkAndPostThresholdCallback() {
             if (mThresholdListener != null && !mEos) {
-                try {
-                    int bytesAvailble = mDataBuffer.available();
-                    int totalBuffer = mDataBuffer.getBufferSize();
+                int bytesAvailble = mDataBuffer.available();
+                int totalBuffer = mDataBuffer.getBufferSize();
 
-                    double percent = ((double)bytesAvailble / (double)totalBuffer) * 100;
+                double percent = ((double)bytesAvailble / (double)totalBuffer) * 100;
 
-                    if (percent > LOW_THRESHOLD_PERCENT) {
-                        mHasPassedLowThreshold = true;
-                    }
+                if (percent > LOW_THRESHOLD_PERCENT) {
+                    mHasPassedLowThreshold = true;
+                }
 
-                    Runnable post = null;
+                Runnable post = null;
 
-                    if (percent > HIGH_THRESHOLD_PERCENT) {
-                        post = new HighThreshold();
-                    } else if (mHasPassedLowThreshold && percent < LOW_THRESHOLD_PERCENT) {
-                        post = new LowThreshold();
-                        mHasPassedLowThreshold = false;
-                    }
+                if (percent > HIGH_THRESHOLD_PERCENT) {
+                    post = new HighThreshold();
+                } else if (mHasPassedLowThreshold && percent < LOW_THRESHOLD_PERCENT) {
+                    post = new LowThreshold();
+                    mHasPassedLowThreshold = false;
+                }
 
-                    if (post != null) {
-                        Thread t = new Thread(post);
-                        t.start();
-                    }
-                } catch (IOException e) {
-                    if (LOGS_ENABLED) Log.w(TAG, "IOException occured during threshold check.");
+                if (post != null) {
+                    Thread t = new Thread(post);
+                    t.start();
                 }
             }
         }
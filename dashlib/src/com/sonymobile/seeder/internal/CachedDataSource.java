@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2014 Sony Mobile Communications Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.sonymobile.seeder.internal;
+
+import static com.sonymobile.seeder.internal.MediaSource.SOURCE_BUFFERING_UPDATE;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+
+import android.os.Handler;
+import android.util.Log;
+
+import com.sonymobile.seeder.BandwidthEstimator;
+
+/**
+ * DataSource over a range of an HTTP resource found in the SegmentCache.
+ * Reads go to the cached file as long as the range is not widened. A parser
+ * that widens it with setRange beyond the cached bytes, as the DASH parser
+ * does after sniffing the start of a segment, gets the range from the
+ * network instead, so a sniff that was cached never cuts the wider read
+ * short.
+ *
+ * Nothing is downloaded while reading cached bytes, so a non-DASH source
+ * reports the range as fully buffered once instead of sending buffering
+ * start, end and progress messages.
+ */
+public class CachedDataSource extends DataSource {
+
+    private static final boolean LOGS_ENABLED = Configuration.DEBUG || false;
+
+    private static final String TAG = "CachedDataSource";
+
+    private final String mUri;
+
+    private final long mCachedOffset;
+
+    private final long mCachedLength;
+
+    private final int mBufferSize;
+
+    private final Handler mNotify;
+
+    private final boolean mIsDash;
+
+    private final String mBufferOwner;
+
+    private DataSource mSource;
+
+    private boolean mFromNetwork;
+
+    /**
+     * @param cached the cache file holding the range that starts at offset
+     *            of uri.
+     */
+    public CachedDataSource(File cached, String uri, long offset, int bufferSize,
+            Handler notify, BandwidthEstimator bandwidthEstimator, boolean isDash,
+            String bufferOwner) {
+        mUri = uri;
+        mCachedOffset = Math.max(0, offset);
+        mCachedLength = cached.length();
+        mBufferSize = bufferSize;
+        mNotify = notify;
+        mBandwidthEstimator = bandwidthEstimator;
+        mIsDash = isDash;
+        mBufferOwner = bufferOwner;
+        mSource = new DirectDataSource(cached, mCachedOffset);
+
+        if (!isDash && notify != null) {
+            notify.obtainMessage(SOURCE_BUFFERING_UPDATE, 100, 0).sendToTarget();
+        }
+    }
+
+    @Override
+    public void setRange(long offset, long length) {
+        if (mFromNetwork) {
+            mSource.setRange(offset, length);
+            return;
+        }
+        if (offset >= mCachedOffset && length >= 0
+                && offset + length <= mCachedOffset + mCachedLength) {
+            // Still within the cached bytes.
+            return;
+        }
+
+        if (LOGS_ENABLED) Log.d(TAG, "Range " + offset + "+" + length + " of " + mUri
+                + " not cached, reading from network");
+        long position = mSource.getCurrentOffset();
+        DataSource network;
+        try {
+            network = createHttp(mUri, offset, length < Integer.MAX_VALUE ? (int)length : -1,
+                    mBufferSize, mNotify, mBandwidthEstimator, mIsDash, mBufferOwner);
+            // Skip rather than seek, seeking reconnects the new source.
+            if (position >= offset) {
+                network.skipBytes(position - offset);
+            } else {
+                network.seek(position);
+            }
+        } catch (IOException e) {
+            // Reads beyond the cached bytes will fail as they would have.
+            if (LOGS_ENABLED) Log.e(TAG, "Could not open " + mUri, e);
+            return;
+        }
+        closeSilently(mSource);
+        mSource = network;
+        mFromNetwork = true;
+    }
+
+    @Override
+    public void reset() throws IOException {
+        mSource.reset();
+    }
+
+    @Override
+    public int readAt(long offset, byte[] buffer, int size) throws IOException {
+        return mSource.readAt(offset, buffer, size);
+    }
+
+    @Override
+    public int read(byte[] buffer) throws IOException {
+        return mSource.read(buffer);
+    }
+
+    @Override
+    public int readByte() throws IOException {
+        return mSource.readByte();
+    }
+
+    @Override
+    public short readShort() throws IOException, EOFException {
+        return mSource.readShort();
+    }
+
+    @Override
+    public int readInt() throws IOException, EOFException {
+        return mSource.readInt();
+    }
+
+    @Override
+    public long readLong() throws IOException, EOFException {
+        return mSource.readLong();
+    }
+
+    @Override
+    public long skipBytes(long count) throws IOException {
+        return mSource.skipBytes(count);
+    }
+
+    @Override
+    public long length() throws IOException {
+        return mSource.length();
+    }
+
+    @Override
+    public long getCurrentOffset() {
+        return mSource.getCurrentOffset();
+    }
+
+    @Override
+    public String getRemoteIP() {
+        return mSource.getRemoteIP();
+    }
+
+    @Override
+    public DataAvailability hasDataAvailable(long offset, int size) {
+        return mSource.hasDataAvailable(offset, size);
+    }
+
+    @Override
+    public void seek(long offset) throws IOException {
+        mSource.seek(offset);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mSource.close();
+    }
+
+    private static void closeSilently(DataSource source) {
+        try {
+            source.close();
+        } catch (IOException e) {
+            if (LOGS_ENABLED) Log.e(TAG, "Exception when closing cached source", e);
+        }
+    }
+}
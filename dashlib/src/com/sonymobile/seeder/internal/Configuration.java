@@ -27,4 +27,14 @@ public class Configuration {
     public static final boolean DO_COMPENSATE_AUDIO_TIMESTAMP_LATENCY = false;
 
     public static final int DEFAULT_HTTP_BUFFER_SIZE = 40 * 1024 * 1024;
+
+    public static final int HTTP_RANGE_CONNECTIONS = 3;
+
+    public static final int HTTP_RANGE_SIZE = 1024 * 1024;
+
+    public static final long DEFAULT_DISK_CACHE_SIZE = 0;
+
+    public static final long DISK_CACHE_MAX_AGE_MS = 60 * 60 * 1000;
+
+    public static final String DISK_CACHE_DIRECTORY = "seeder-segments";
 }
@@ -34,10 +34,10 @@ public class DASHBufferedDataSource extends BufferedDataSource {
      * (non-Javadoc) Protected to force use of DataSource.create(....)
      */
     protected DASHBufferedDataSource(String uri, long offset, int length, int bufferSize,
-            Handler notify, BandwidthEstimator bandwidthEstimator) throws FileNotFoundException,
-            IOException {
+            Handler notify, BandwidthEstimator bandwidthEstimator, String bufferOwner)
+            throws FileNotFoundException, IOException {
 
-        super(uri, offset, length, bufferSize, notify, bandwidthEstimator);
+        super(uri, offset, length, bufferSize, notify, bandwidthEstimator, bufferOwner);
 
         if (LOGS_ENABLED)
             Log.v(TAG, "Created DASHBufferedDataSource");
@@ -75,7 +75,7 @@ public class DASHBufferedDataSource extends BufferedDataSource {
             int read = mBis.read(buffer, totalRead, size - totalRead);
 
             if (read == 0) {
-                mBis.compact(-1);
+                mBis.discard(-1);
             }
 
             if (read > -1) {
@@ -94,10 +94,7 @@ public class DASHBufferedDataSource extends BufferedDataSource {
             }
 
             if (totalRead < size) {
-                try {
-                    Thread.sleep(1); // Let the system take a breath....
-                } catch (InterruptedException e) {
-                }
+                awaitData(size - totalRead);
             }
         } while (totalRead < size);
 
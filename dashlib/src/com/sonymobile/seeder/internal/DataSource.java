@@ -40,6 +40,7 @@ package com.sonymobile.seeder.internal;
 
 import java.io.Closeable;
 import java.io.EOFException;
+import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -102,19 +103,44 @@ public abstract class DataSource implements Closeable {
      */
     public static DataSource create(String uri, long offset, int length, int bufferSize,
             Handler notify, BandwidthEstimator bandwidthEstimator, boolean isDash) {
+        return create(uri, offset, length, bufferSize, notify, bandwidthEstimator, isDash, null);
+    }
+
+    /**
+     * Create a new DataSource.
+     *
+     * @param uri The Uri to connect to.
+     * @param offset The offset to start reading at or -1 for the beginning.
+     *            Only supported for http.
+     * @param length The number of bytes to request or -1 for all. Only
+     *            supported for http.
+     * @param bufferSize The size of the buffer in bytes, or -1 for default /
+     *            automatic.
+     * @param notify A handler to send source related messages to, e.g IO
+     *            problems.
+     * @param bandwidthEstimator The BandwidthEstimator to use.
+     * @param isDash If a DASH related data source should be created.
+     * @param bufferOwner The owner, e.g. a track, the buffer is accounted to
+     *            in the BufferBudget, or null for the default owner.
+     */
+    public static DataSource create(String uri, long offset, int length, int bufferSize,
+            Handler notify, BandwidthEstimator bandwidthEstimator, boolean isDash,
+            String bufferOwner) {
         if (uri == null) {
             throw new IllegalArgumentException("Null uri is not allowed!");
         }
 
         try {
             if (uri.startsWith("http")) {
-                if (isDash) {
-                    return new DASHBufferedDataSource(uri, offset, length, bufferSize, null,
-                            bandwidthEstimator);
-                } else {
-                    return new HttpBufferedDataSource(uri, offset, length, bufferSize, notify,
-                            bandwidthEstimator);
+                File cached = SegmentCache.getInstance().get(uri, offset, length);
+                if (cached != null) {
+                    if (LOGS_ENABLED) Log.d(TAG, "Cache hit for " + uri);
+                    return new CachedDataSource(cached, uri, offset, bufferSize, notify,
+                            bandwidthEstimator, isDash, bufferOwner);
                 }
+
+                return createHttp(uri, offset, length, bufferSize, notify, bandwidthEstimator,
+                        isDash, bufferOwner);
             } else if (uri.startsWith("/") || uri.startsWith("file")) {
                 return new DirectDataSource(uri);
             }
@@ -128,6 +154,22 @@ public abstract class DataSource implements Closeable {
         throw new IllegalArgumentException("Create Failed! Unsupported uri: " + uri);
     }
 
+    /**
+     * Creates a DataSource downloading from an http uri, bypassing the
+     * SegmentCache lookup.
+     */
+    static DataSource createHttp(String uri, long offset, int length, int bufferSize,
+            Handler notify, BandwidthEstimator bandwidthEstimator, boolean isDash,
+            String bufferOwner) throws IOException {
+        if (isDash) {
+            return new DASHBufferedDataSource(uri, offset, length, bufferSize, null,
+                    bandwidthEstimator, bufferOwner);
+        } else {
+            return new HttpBufferedDataSource(uri, offset, length, bufferSize, notify,
+                    bandwidthEstimator, bufferOwner);
+        }
+    }
+
     /**
      * Create a new DataSource.
      *
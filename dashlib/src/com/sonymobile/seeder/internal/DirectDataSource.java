@@ -24,10 +24,22 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Arrays;
 
 import android.util.Log;
 
+/**
+ * DataSource for local files. The file is read through memory mapped
+ * windows, so parsing and sample reads are plain memory accesses rather than
+ * a system call per read. Files larger than a window, including files above
+ * 2 GB that cannot be mapped in one go, are mapped on demand. A few windows
+ * are kept, so reads alternating between regions far apart, such as the
+ * audio and video of a file that is not interleaved, each keep theirs. If the
+ * file cannot be mapped, or windows keep being replaced after only a few
+ * reads, reads go through the FileChannel instead.
+ */
 public class DirectDataSource extends DataSource {
 
     private static final boolean LOGS_ENABLED = Configuration.DEBUG || false;
@@ -40,6 +52,18 @@ public class DirectDataSource extends DataSource {
 
     private static final int SIZE_SHORT = 2;
 
+    private static final long MAP_WINDOW_SIZE = 16 * 1024 * 1024;
+
+    private static final int MAP_WINDOW_COUNT = 2;
+
+    private static final long MAP_ALIGNMENT = 4096;
+
+    /** A window replaced after fewer reads than this did not pay off. */
+    private static final int MIN_READS_PER_WINDOW = 64;
+
+    /** Windows in a row that did not pay off before mapping is given up. */
+    private static final int MAX_SHORT_LIVED_WINDOWS = 8;
+
     private FileDescriptor mFd;
 
     private FileInputStream mFis;
@@ -54,6 +78,37 @@ public class DirectDataSource extends DataSource {
 
     private long mLength;
 
+    /** File position after the last byte of the data, for mapping. */
+    private long mDataEnd;
+
+    /** The window used by the last read, one of mWindows. */
+    private MappedByteBuffer mMap;
+
+    /** File position of the first byte of mMap. */
+    private long mMapStart;
+
+    private int mWindow;
+
+    private final MappedByteBuffer[] mWindows = new MappedByteBuffer[MAP_WINDOW_COUNT];
+
+    private final long[] mWindowStarts = new long[MAP_WINDOW_COUNT];
+
+    private final int[] mWindowReads = new int[MAP_WINDOW_COUNT];
+
+    private final long[] mWindowLastUse = new long[MAP_WINDOW_COUNT];
+
+    private long mWindowUseCount;
+
+    private int mShortLivedWindows;
+
+    private boolean mMapSupported = true;
+
+    /**
+     * Position in the original resource of the first byte, for a file that
+     * holds a range of another resource.
+     */
+    private long mRangeOffset;
+
     public DirectDataSource(FileDescriptor fd, long offset, long length) {
         if (LOGS_ENABLED) Log.d(TAG, "Create DirectFDDataSource");
 
@@ -82,6 +137,15 @@ public class DirectDataSource extends DataSource {
         }
     }
 
+    /**
+     * Creates a DataSource over a file holding the range of another resource
+     * that starts at rangeOffset. Offsets are those of the original resource.
+     */
+    public DirectDataSource(File file, long rangeOffset) {
+        this(file.getPath());
+        mRangeOffset = rangeOffset;
+    }
+
     private void setup(FileDescriptor fd, long offset, long length) throws IOException {
         mFd = fd;
         mFis = new FileInputStream(mFd);
@@ -90,10 +154,15 @@ public class DirectDataSource extends DataSource {
         mLength = length > 0 ? length : Long.MAX_VALUE;
         mFileChannel = mFileChannel.position(mStartOffset);
         mCurrentPosition = mStartOffset;
+
+        long fileSize = mFileChannel.size();
+        mDataEnd = mLength < fileSize - mStartOffset ? mStartOffset + mLength : fileSize;
     }
 
     @Override
     public void close() throws IOException {
+        mMap = null;
+        Arrays.fill(mWindows, null);
         mFileChannel.close();
         mFis.close();
 
@@ -104,6 +173,10 @@ public class DirectDataSource extends DataSource {
 
     @Override
     public int readAt(long offset, byte[] buffer, int size) throws IOException {
+        return readAtPosition(offset - mRangeOffset, buffer, size);
+    }
+
+    private int readAtPosition(long offset, byte[] buffer, int size) throws IOException {
         if (offset >= mLength) {
             return -1;
         }
@@ -115,6 +188,16 @@ public class DirectDataSource extends DataSource {
         if (offset + bytesToRead >= mLength) {
             bytesToRead = (int)(mLength - offset);
         }
+
+        long position = offset + mStartOffset;
+        if (mapWindow(position, Math.min(bytesToRead, mDataEnd - position))) {
+            bytesToRead = (int)Math.min(bytesToRead, mDataEnd - position);
+            mMap.position((int)(position - mMapStart));
+            mMap.get(buffer, 0, bytesToRead);
+            mCurrentPosition = offset + bytesToRead;
+            return bytesToRead;
+        }
+
         ByteBuffer bBuffer = ByteBuffer.wrap(buffer, 0, bytesToRead);
         int read = mFileChannel.read(bBuffer, offset + mStartOffset);
         mCurrentPosition = offset + read;
@@ -124,7 +207,7 @@ public class DirectDataSource extends DataSource {
     @Override
     public int read(byte[] buffer) throws IOException {
         int bytesToRead = buffer.length;
-        return readAt(mCurrentPosition, buffer, bytesToRead);
+        return readAtPosition(mCurrentPosition, buffer, bytesToRead);
     }
 
     @Override
@@ -132,8 +215,13 @@ public class DirectDataSource extends DataSource {
         if (mCurrentPosition >= mLength) {
             return -1;
         }
+        long position = mCurrentPosition + mStartOffset;
+        if (position < mDataEnd && mapWindow(position, 1)) {
+            mCurrentPosition++;
+            return mMap.get((int)(position - mMapStart));
+        }
         byte[] data = new byte[1];
-        int read = readAt(mCurrentPosition, data, 1);
+        int read = readAtPosition(mCurrentPosition, data, 1);
         if (read > 0) {
             return data[0];
         }
@@ -146,8 +234,13 @@ public class DirectDataSource extends DataSource {
         if (mCurrentPosition + SIZE_SHORT >= mLength) {
             return -1;
         }
+        long position = mCurrentPosition + mStartOffset;
+        if (position + SIZE_SHORT <= mDataEnd && mapWindow(position, SIZE_SHORT)) {
+            mCurrentPosition += SIZE_SHORT;
+            return mMap.getShort((int)(position - mMapStart));
+        }
         byte[] shortBuffer = new byte[SIZE_SHORT];
-        int read = readAt(mCurrentPosition, shortBuffer, shortBuffer.length);
+        int read = readAtPosition(mCurrentPosition, shortBuffer, shortBuffer.length);
         if (read <= 0) {
             // Since we know that is a error it should fit fine in a short
             return (short)read;
@@ -160,8 +253,13 @@ public class DirectDataSource extends DataSource {
         if (mCurrentPosition + SIZE_INT >= mLength) {
             return -1;
         }
+        long position = mCurrentPosition + mStartOffset;
+        if (position + SIZE_INT <= mDataEnd && mapWindow(position, SIZE_INT)) {
+            mCurrentPosition += SIZE_INT;
+            return mMap.getInt((int)(position - mMapStart));
+        }
         byte[] intBuffer = new byte[SIZE_INT];
-        int read = readAt(mCurrentPosition, intBuffer, intBuffer.length);
+        int read = readAtPosition(mCurrentPosition, intBuffer, intBuffer.length);
         if (read <= 0) {
             return read;
         }
@@ -173,8 +271,13 @@ public class DirectDataSource extends DataSource {
         if (mCurrentPosition + SIZE_LONG >= mLength) {
             return -1;
         }
+        long position = mCurrentPosition + mStartOffset;
+        if (position + SIZE_LONG <= mDataEnd && mapWindow(position, SIZE_LONG)) {
+            mCurrentPosition += SIZE_LONG;
+            return mMap.getLong((int)(position - mMapStart));
+        }
         byte[] longBuffer = new byte[SIZE_LONG];
-        int read = readAt(mCurrentPosition, longBuffer, longBuffer.length);
+        int read = readAtPosition(mCurrentPosition, longBuffer, longBuffer.length);
         if (read <= 0) {
             return read;
         }
@@ -199,7 +302,7 @@ public class DirectDataSource extends DataSource {
 
     @Override
     public long getCurrentOffset() {
-        return mCurrentPosition;
+        return mCurrentPosition + mRangeOffset;
     }
 
     @Override
@@ -212,7 +315,83 @@ public class DirectDataSource extends DataSource {
     }
 
     public void seek(long offset) throws IOException {
-        mFileChannel = mFileChannel.position(offset);
+        mFileChannel = mFileChannel.position(offset - mRangeOffset);
         mCurrentPosition = mFileChannel.position();
     }
+
+    /**
+     * Makes mMap a mapped window covering byteCount bytes from the file
+     * position, mapping one in place of the least recently used window if
+     * none does.
+     *
+     * @return false if the bytes must be read through the FileChannel.
+     */
+    private boolean mapWindow(long position, long byteCount) {
+        if (!mMapSupported || byteCount <= 0 || byteCount > MAP_WINDOW_SIZE / 2) {
+            return false;
+        }
+
+        if (mMap != null && position >= mMapStart
+                && position + byteCount <= mMapStart + mMap.capacity()) {
+            mWindowReads[mWindow]++;
+            return true;
+        }
+
+        int leastRecentlyUsed = 0;
+        for (int i = 0; i < MAP_WINDOW_COUNT; i++) {
+            MappedByteBuffer window = mWindows[i];
+            if (window != null && position >= mWindowStarts[i]
+                    && position + byteCount <= mWindowStarts[i] + window.capacity()) {
+                useWindow(i);
+                return true;
+            }
+            if (mWindowLastUse[i] < mWindowLastUse[leastRecentlyUsed]) {
+                leastRecentlyUsed = i;
+            }
+        }
+
+        if (mWindows[leastRecentlyUsed] != null) {
+            // A window only pays off if it serves a number of reads before
+            // it is replaced, mapping is more expensive than a read.
+            if (mWindowReads[leastRecentlyUsed] < MIN_READS_PER_WINDOW) {
+                mShortLivedWindows++;
+            } else {
+                mShortLivedWindows = 0;
+            }
+            if (mShortLivedWindows >= MAX_SHORT_LIVED_WINDOWS) {
+                if (LOGS_ENABLED) Log.d(TAG, "Windows replaced too often, reading through channel");
+                mMap = null;
+                Arrays.fill(mWindows, null);
+                mMapSupported = false;
+                return false;
+            }
+        }
+
+        long mapStart = Math.max(mStartOffset, position & ~(MAP_ALIGNMENT - 1));
+        long mapSize = Math.min(MAP_WINDOW_SIZE, mDataEnd - mapStart);
+        try {
+            // Drop the replaced window before mapping, so it can be unmapped.
+            mWindows[leastRecentlyUsed] = null;
+            mMap = null;
+            mWindows[leastRecentlyUsed] =
+                    mFileChannel.map(FileChannel.MapMode.READ_ONLY, mapStart, mapSize);
+            mWindowStarts[leastRecentlyUsed] = mapStart;
+            mWindowReads[leastRecentlyUsed] = 0;
+        } catch (IOException e) {
+            if (LOGS_ENABLED) Log.w(TAG, "Could not map file, reading through channel", e);
+            Arrays.fill(mWindows, null);
+            mMapSupported = false;
+            return false;
+        }
+        useWindow(leastRecentlyUsed);
+        return true;
+    }
+
+    private void useWindow(int window) {
+        mWindow = window;
+        mMap = mWindows[window];
+        mMapStart = mWindowStarts[window];
+        mWindowReads[window]++;
+        mWindowLastUse[window] = ++mWindowUseCount;
+    }
 }
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2014 Sony Mobile Communications Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.sonymobile.seeder.internal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import android.util.Log;
+
+/**
+ * Long-lived thread that runs the downloads of one owner, typically a track,
+ * so fetching segment after segment does not start a new thread each time.
+ *
+ * A job is handed to an idle worker of the owner. A new worker is only
+ * started when all of them are busy, which happens when a download is still
+ * running while the next one starts. Workers that have been idle for
+ * IDLE_TIMEOUT_MS exit.
+ */
+public final class DownloadWorker extends Thread {
+
+    private static final boolean LOGS_ENABLED = Configuration.DEBUG || false;
+
+    private static final String TAG = "DownloadWorker";
+
+    private static final long IDLE_TIMEOUT_MS = 30000;
+
+    private static final HashMap<String, ArrayList<DownloadWorker>> sIdleWorkers =
+            new HashMap<String, ArrayList<DownloadWorker>>();
+
+    private static int sStartedCount;
+
+    private final String mOwner;
+
+    private Runnable mJob;
+
+    /**
+     * Runs job on an idle worker of owner, starting a new worker if there is
+     * none.
+     */
+    public static void execute(String owner, Runnable job) {
+        DownloadWorker worker = null;
+        synchronized (sIdleWorkers) {
+            ArrayList<DownloadWorker> idle = sIdleWorkers.get(owner);
+            if (idle != null && !idle.isEmpty()) {
+                worker = idle.remove(idle.size() - 1);
+            }
+        }
+
+        if (worker == null) {
+            synchronized (sIdleWorkers) {
+                sStartedCount++;
+            }
+            worker = new DownloadWorker(owner, job);
+            worker.start();
+        } else {
+            worker.post(job);
+        }
+    }
+
+    /**
+     * Returns the number of workers started so far, in steady state this
+     * stays at one per owner.
+     */
+    public static int getStartedCount() {
+        synchronized (sIdleWorkers) {
+            return sStartedCount;
+        }
+    }
+
+    private DownloadWorker(String owner, Runnable job) {
+        super("DownloadWorker-" + owner);
+        mOwner = owner;
+        mJob = job;
+    }
+
+    private synchronized void post(Runnable job) {
+        mJob = job;
+        notify();
+    }
+
+    @Override
+    public void run() {
+        Runnable job = takeJob();
+        while (job != null) {
+            try {
+                job.run();
+            } catch (RuntimeException e) {
+                if (LOGS_ENABLED) Log.e(TAG, "Job failed on " + getName(), e);
+            }
+
+            synchronized (sIdleWorkers) {
+                ArrayList<DownloadWorker> idle = sIdleWorkers.get(mOwner);
+                if (idle == null) {
+                    idle = new ArrayList<DownloadWorker>();
+                    sIdleWorkers.put(mOwner, idle);
+                }
+                idle.add(this);
+            }
+
+            job = awaitJob();
+        }
+
+        if (LOGS_ENABLED) Log.v(TAG, getName() + " idle, exiting");
+    }
+
+    private synchronized Runnable takeJob() {
+        Runnable job = mJob;
+        mJob = null;
+        return job;
+    }
+
+    /**
+     * Waits for the next job, returns null if none came within
+     * IDLE_TIMEOUT_MS and the worker is no longer handed out.
+     */
+    private Runnable awaitJob() {
+        long deadline = System.currentTimeMillis() + IDLE_TIMEOUT_MS;
+        while (true) {
+            synchronized (this) {
+                if (mJob != null) {
+                    return takeJob();
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining > 0) {
+                    try {
+                        wait(remaining);
+                    } catch (InterruptedException e) {
+                    }
+                    continue;
+                }
+            }
+
+            synchronized (sIdleWorkers) {
+                ArrayList<DownloadWorker> idle = sIdleWorkers.get(mOwner);
+                if (idle != null && idle.remove(this)) {
+                    if (idle.isEmpty()) {
+                        sIdleWorkers.remove(mOwner);
+                    }
+                    return null;
+                }
+            }
+            // Handed a job while timing out, it is on its way.
+            deadline = System.currentTimeMillis() + IDLE_TIMEOUT_MS;
+        }
+    }
+}
@@ -22,6 +22,9 @@ import static com.sonymobile.seeder.internal.MediaSource.SOURCE_BUFFERING_UPDATE
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
 
 import android.os.Handler;
 import android.util.Log;
@@ -37,9 +40,8 @@ public class HttpBufferedDataSource extends BufferedDataSource implements Thresh
      * This class act as the DataSource for HTTP progressive download.
      * The logic for buffer handling / readAt function work like this:
      *
-     * If the free space in the underlying BufferedStream is less than 0.5% of the buffer size
-     * the underlying buffer is compacted and up to 5% of the buffer data is removed. This data
-     * should already have been consumed.
+     * The underlying BufferedStream is a ring buffer that retains a window of already
+     * consumed data behind the read position, older data is overwritten as new data arrives.
      *
      * If the requested read position is the same as current read position the requested readAt
      * operation is performed directly.
@@ -56,7 +58,14 @@ public class HttpBufferedDataSource extends BufferedDataSource implements Thresh
      * availability.
      *
      * In all other cases where the data is not available the HTTP connection is reestablished
-     * at the requested read position.
+     * at the requested read position. A jump into the tail of the file, typically to a moov
+     * box stored after the media data, instead parks the current stream and reads the tail
+     * over a second, small stream. The parked stream keeps downloading and is taken back when
+     * reading returns to its position, so reading the moov costs no reconnect of the main
+     * stream.
+     *
+     * When the server supports byte ranges the stream is downloaded as adjacent ranges over
+     * several connections at once, see ParallelRangeInputStream.
      *
      */
 
@@ -66,14 +75,26 @@ public class HttpBufferedDataSource extends BufferedDataSource implements Thresh
 
     private BufferingUpdateThread mBufferingThread;
 
+    private BufferedStream mParkedBis;
+
+    private HttpURLConnection mParkedConnection;
+
+    private long mParkedCurrentOffset;
+
+    private long mParkedOffset;
+
+    private int mParkedBufferSize;
+
+    private int mParkedRequestedBufferSize;
+
     /*
      * (non-Javadoc) Protected to force use of DataSource.create(....)
      */
     protected HttpBufferedDataSource(String uri, long offset, int length, int bufferSize,
-            Handler notify, BandwidthEstimator bandwidthEstimator) throws FileNotFoundException,
-            IOException {
+            Handler notify, BandwidthEstimator bandwidthEstimator, String bufferOwner)
+            throws FileNotFoundException, IOException {
 
-        super(uri, offset, length, bufferSize, notify, bandwidthEstimator);
+        super(uri, offset, length, bufferSize, notify, bandwidthEstimator, bufferOwner);
 
         if (LOGS_ENABLED)
             Log.v(TAG, "Created HttpBufferedDataSource");
@@ -90,41 +111,49 @@ public class HttpBufferedDataSource extends BufferedDataSource implements Thresh
 
         checkConnectionAndStream();
 
-        if (mBis.freeSpace() < (mBufferSize / 200)) {
-            // Less than 0.5% buffer left, compact and remove 5%.
-            mBis.compact((mBufferSize / 5));
-        }
-
         if (mCurrentOffset > offset && mBis.canRewind(mCurrentOffset - offset)) {
             mBis.rewind(mCurrentOffset - offset);
         } else if (mCurrentOffset < offset) {
+            boolean fastForwarded = false;
             if (mBis.canFastForward(offset - mCurrentOffset)) {
                 mBis.fastForward(offset - mCurrentOffset);
-            } else {
-                if (!mBis.canDataFit((offset - mCurrentOffset) + size)) {
-                    mBis.compact((mBufferSize / 5));
-                }
-
-                if (mBis.canDataFit((offset - mCurrentOffset) + size) &&
-                        offset - mCurrentOffset < mBufferSize / 3) {
-                    // Data will fit in the buffer and we need to wait for a buffer smaller than
-                    // 1/3 of the length. Send buffering start and wait here...
-                    sendMessage(SOURCE_BUFFERING_START);
-                    Object waiterLock = new Object();
-                    while (!mBis.canFastForward(offset - mCurrentOffset)) {
-                        synchronized (waiterLock) {
-                            try {
-                                waiterLock.wait(50);
-                                if (mBis.isStreamClosed()) {
-                                    sendMessage(SOURCE_BUFFERING_END);
-                                    return -1;
-                                }
-                            } catch (InterruptedException e) {
-                            }
-                        }
+                fastForwarded = true;
+            } else if (mBis.canDataFit((offset - mCurrentOffset) + size) &&
+                    offset - mCurrentOffset < mBufferSize / 3) {
+                // Data will fit in the buffer and we need to wait for a buffer smaller than
+                // 1/3 of the length. Send buffering start and wait here...
+                sendMessage(SOURCE_BUFFERING_START);
+                while (!mBis.canFastForward(offset - mCurrentOffset)) {
+                    if (mBis.isStreamClosed() || (mBis.isEndOfStreamReached()
+                            && !mBis.canFastForward(offset - mCurrentOffset))) {
+                        // The stream ends before the offset.
+                        sendMessage(SOURCE_BUFFERING_END);
+                        return -1;
                     }
-                    sendMessage(SOURCE_BUFFERING_END);
+                    if (mBis.freeSpace() == 0) {
+                        // Full without reaching the offset, awaitData would
+                        // not wait. Reconnect below instead.
+                        break;
+                    }
+                    awaitData(offset - mCurrentOffset + 1);
+                }
+                sendMessage(SOURCE_BUFFERING_END);
+                if (mBis.canFastForward(offset - mCurrentOffset)) {
                     mBis.fastForward(offset - mCurrentOffset);
+                    fastForwarded = true;
+                }
+            }
+
+            if (!fastForwarded) {
+                if (restoreParkedStream(offset)) {
+                    return readAt(offset, buffer, size);
+                } else if (isTailRead(offset)) {
+                    parkStream(offset);
+                    mCurrentOffset = offset;
+                    mOffset = offset;
+                    openConnectionsAndStreams();
+                    // Only the tail stream is sized for the tail.
+                    mRequestedBufferSize = mParkedRequestedBufferSize;
                 } else {
                     mCurrentOffset = offset;
                     mOffset = offset;
@@ -133,6 +162,9 @@ public class HttpBufferedDataSource extends BufferedDataSource implements Thresh
                 }
             }
         } else if (mCurrentOffset != offset) {
+            if (restoreParkedStream(offset)) {
+                return readAt(offset, buffer, size);
+            }
             mCurrentOffset = offset;
             mOffset = offset;
 
@@ -152,10 +184,7 @@ public class HttpBufferedDataSource extends BufferedDataSource implements Thresh
             }
 
             if (totalRead < size) {
-                try {
-                    Thread.sleep(1); // Let the system take a breath....
-                } catch (InterruptedException e) {
-                }
+                awaitData(size - totalRead);
             }
         } while (totalRead < size);
 
@@ -196,6 +225,43 @@ public class HttpBufferedDataSource extends BufferedDataSource implements Thresh
         }
     }
 
+    @Override
+    protected InputStream openHttpStream(long offset, int length) throws IOException {
+        if (length != -1 || Configuration.HTTP_RANGE_CONNECTIONS < 2) {
+            return super.openHttpStream(offset, length);
+        }
+
+        // Ask for the first range only, the response tells if the server
+        // supports ranges and how long the resource is.
+        mHttpURLConnection = openHttpConnection(mUri, offset, Configuration.HTTP_RANGE_SIZE);
+        if (mHttpURLConnection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+            // The range was ignored and the whole resource follows, skip to
+            // the offset.
+            InputStream in = mHttpURLConnection.getInputStream();
+            skipFully(in, offset);
+            return in;
+        }
+
+        long end = getResourceLength(mHttpURLConnection);
+        if (end == -1) {
+            // The ranges can't be planned without the length, use a single
+            // connection.
+            doCloseSilently(mHttpURLConnection.getInputStream());
+            mHttpURLConnection.disconnect();
+            return super.openHttpStream(offset, length);
+        }
+
+        mContentLength = end;
+        return new ParallelRangeInputStream(new URL(mUri), mBufferOwner, mHttpURLConnection,
+                offset, end, Configuration.HTTP_RANGE_SIZE, Configuration.HTTP_RANGE_CONNECTIONS);
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeParkedStream();
+        super.close();
+    }
+
     protected void doCloseAsync() {
         super.doCloseAsync();
 
@@ -245,6 +311,118 @@ public class HttpBufferedDataSource extends BufferedDataSource implements Thresh
         // Not used.
     }
 
+    /**
+     * Returns true if offset is in the last part of the resource, small
+     * enough to be read over a second stream while the current one is parked.
+     */
+    private boolean isTailRead(long offset) {
+        return mContentLength > 0 && offset < mContentLength
+                && mContentLength - offset <= mBufferSize / 4;
+    }
+
+    /**
+     * Sets the current stream aside, still downloading, and prepares for
+     * opening a stream sized for the tail of the resource from offset.
+     */
+    private void parkStream(long offset) {
+        closeParkedStream();
+
+        if (LOGS_ENABLED) Log.d(TAG, "Parking stream at " + mCurrentOffset);
+        mBis.setThresholdListener(null);
+        mParkedBis = mBis;
+        mParkedConnection = mHttpURLConnection;
+        mParkedCurrentOffset = mCurrentOffset;
+        mParkedOffset = mOffset;
+        mParkedBufferSize = mBufferSize;
+        mParkedRequestedBufferSize = mRequestedBufferSize;
+        mBis = null;
+        mHttpURLConnection = null;
+
+        // Large enough for the tail of the resource only.
+        mRequestedBufferSize = (int)(mContentLength - offset) + 200;
+        mBufferSize = mRequestedBufferSize;
+    }
+
+    /**
+     * Takes the parked stream back if it holds, or will soon hold, the data
+     * at offset.
+     */
+    private boolean restoreParkedStream(long offset) {
+        if (mParkedBis == null || mParkedBis.isStreamClosed()) {
+            return false;
+        }
+
+        boolean covered;
+        if (offset <= mParkedCurrentOffset) {
+            covered = mParkedBis.canRewind(mParkedCurrentOffset - offset);
+        } else {
+            covered = offset - mParkedCurrentOffset < mParkedBufferSize / 3;
+        }
+        if (!covered) {
+            return false;
+        }
+
+        if (LOGS_ENABLED) Log.d(TAG, "Restoring parked stream at " + mParkedCurrentOffset);
+        doCloseSync();
+        mBis = mParkedBis;
+        mHttpURLConnection = mParkedConnection;
+        mCurrentOffset = mParkedCurrentOffset;
+        mOffset = mParkedOffset;
+        mBufferSize = mParkedBufferSize;
+        mRequestedBufferSize = mParkedRequestedBufferSize;
+        mParkedBis = null;
+        mParkedConnection = null;
+        mBis.setThresholdListener(this);
+        return true;
+    }
+
+    private void closeParkedStream() {
+        if (mParkedBis != null) {
+            doCloseSilently(mParkedBis);
+            mParkedBis = null;
+        }
+        if (mParkedConnection != null) {
+            mParkedConnection.disconnect();
+            mParkedConnection = null;
+        }
+    }
+
+    private static void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                if (in.read() == -1) {
+                    throw new IOException("End of stream before offset");
+                }
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+    /**
+     * Returns the full length of the resource from the Content-Range header
+     * of a partial response, or -1 if it is not known.
+     */
+    static long getResourceLength(HttpURLConnection connection) {
+        String contentRange = connection.getHeaderField("Content-Range");
+        if (contentRange == null) {
+            return -1;
+        }
+
+        int slash = contentRange.lastIndexOf('/');
+        if (slash == -1) {
+            return -1;
+        }
+
+        try {
+            return Long.parseLong(contentRange.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            // "*", the length is unknown.
+            return -1;
+        }
+    }
+
     private void sendMessage(int what) {
         if (mNotify != null) {
             mNotify.sendEmptyMessage(what);
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2014 Sony Mobile Communications Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.sonymobile.seeder.internal;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Keep-alive policy for the HTTP connections of all data sources in the
+ * process, so that consecutive DASH segments of all tracks can reuse sockets
+ * instead of doing a new TCP handshake per segment.
+ *
+ * The sockets are owned and reused by the keep-alive pool of the platform
+ * HTTP stack, which decides on its own whether a request goes out on an idle
+ * socket. It can only do so if the response body was read to the end and
+ * the stream closed, and the connection was not disconnected, which would
+ * close the socket. A connection must therefore be released with
+ * {@link #release(HttpURLConnection, boolean)} instead of being
+ * disconnected. Host name lookups are cached as well.
+ */
+public final class HttpKeepAlive {
+
+    private static final boolean LOGS_ENABLED = Configuration.DEBUG || false;
+
+    private static final String TAG = "HttpKeepAlive";
+
+    private static final long DNS_CACHE_DURATION_MS = 60 * 1000;
+
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+
+    private static HttpKeepAlive sInstance;
+
+    private final HashMap<String, Host> mHosts = new HashMap<String, Host>();
+
+    private int mKeptAliveCount;
+
+    private int mDisconnectedCount;
+
+    private int mDnsCacheHitCount;
+
+    public static synchronized HttpKeepAlive getInstance() {
+        if (sInstance == null) {
+            sInstance = new HttpKeepAlive();
+        }
+        return sInstance;
+    }
+
+    private HttpKeepAlive() {
+    }
+
+    /**
+     * Opens a keep-alive connection to url. The request is not sent until the
+     * connection is connected.
+     */
+    public HttpURLConnection open(URL url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection)url.openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setRequestProperty("Connection", "keep-alive");
+        return connection;
+    }
+
+    /**
+     * Hands a connection back once its input stream has been closed.
+     *
+     * @param connection the connection returned by open.
+     * @param bodyConsumed true if the whole response body was read, which
+     *            lets the platform keep the socket alive. Otherwise the
+     *            connection is disconnected, since the rest of the body
+     *            would have to be read before the socket could carry a new
+     *            request.
+     */
+    public void release(HttpURLConnection connection, boolean bodyConsumed) {
+        if (!bodyConsumed) {
+            connection.disconnect();
+        }
+
+        synchronized (mHosts) {
+            if (bodyConsumed) {
+                mKeptAliveCount++;
+            } else {
+                mDisconnectedCount++;
+            }
+        }
+
+        if (LOGS_ENABLED) Log.v(TAG, (bodyConsumed ? "Keeping alive" : "Disconnecting")
+                + " connection to " + connection.getURL().getHost());
+    }
+
+    /**
+     * Returns the address of hostName, resolving it at most once per cache
+     * period.
+     */
+    public String getHostAddress(String hostName) throws UnknownHostException {
+        long nowMs = SystemClock.elapsedRealtime();
+        synchronized (mHosts) {
+            Host host = mHosts.get(hostName);
+            if (host != null && host.address != null
+                    && nowMs - host.resolvedAtMs < DNS_CACHE_DURATION_MS) {
+                mDnsCacheHitCount++;
+                return host.address;
+            }
+        }
+
+        // Resolve outside the lock, a slow lookup must not block other hosts.
+        String address = InetAddress.getByName(hostName).getHostAddress();
+
+        synchronized (mHosts) {
+            Host host = mHosts.get(hostName);
+            if (host == null) {
+                host = new Host();
+                mHosts.put(hostName, host);
+            }
+            host.address = address;
+            host.resolvedAtMs = nowMs;
+        }
+        return address;
+    }
+
+    /**
+     * Returns the number of connections released with their body read to
+     * the end, whose sockets the platform may reuse.
+     */
+    public int getKeptAliveCount() {
+        synchronized (mHosts) {
+            return mKeptAliveCount;
+        }
+    }
+
+    /**
+     * Returns the number of connections disconnected because their body was
+     * not read to the end.
+     */
+    public int getDisconnectedCount() {
+        synchronized (mHosts) {
+            return mDisconnectedCount;
+        }
+    }
+
+    /**
+     * Returns the number of host name lookups answered from the cache.
+     */
+    public int getDnsCacheHitCount() {
+        synchronized (mHosts) {
+            return mDnsCacheHitCount;
+        }
+    }
+
+    private static class Host {
+
+        String address;
+
+        long resolvedAtMs;
+    }
+}
@@ -37,6 +37,7 @@ import android.media.MediaFormat;
 import android.util.Log;
 
 import com.sonymobile.common.AccessUnit;
+import com.sonymobile.common.AccessUnitPool;
 import com.sonymobile.seeder.AudioTrackRepresentation;
 import com.sonymobile.seeder.MetaData;
 import com.sonymobile.seeder.TrackInfo;
@@ -245,6 +246,14 @@ public class ISOBMFFParser extends MediaParser {
 
     protected static final int HEVC_NAL_UNIT_TYPE_CRA_PICTURE = 21;
 
+    /**
+     * Codec of a track as far as sample rewriting is concerned, resolved from
+     * the mime type once instead of per sample.
+     */
+    protected enum CodecType {
+        AVC, HEVC, OTHER
+    }
+
     protected IsoTrack mCurrentAudioTrack;
 
     protected IsoTrack mCurrentVideoTrack;
@@ -299,6 +308,16 @@ public class ISOBMFFParser extends MediaParser {
 
     protected int mNALLengthSize;
 
+    /**
+     * Largest moof read into memory before parsing it, larger ones are
+     * parsed straight from the source.
+     */
+    private static final int MAX_BUFFERED_MOOF_SIZE = 1024 * 1024;
+
+    private final BoxDataSource mMoofDataSource = new BoxDataSource();
+
+    private final byte[] mBoxHeaderBuffer = new byte[8];
+
     private static final int[] ISOBMFF_COMPATIBLE_BRANDS = {
             fourCC('i', 's', 'o', 'm'), fourCC('m', 'p', '4', '1'), fourCC('m', 'p', '4', '2'),
             fourCC('a', 'v', 'c', '1'), fourCC('3', 'g', 'p', '5'), fourCC('h', 'v', 'c', '1')
@@ -470,7 +489,7 @@ public class ISOBMFFParser extends MediaParser {
 
     protected BoxHeader getNextBoxHeader() {
         long startOffset = mCurrentOffset;
-        byte[] buffer = new byte[8];
+        byte[] buffer = mBoxHeaderBuffer;
         try {
             if (mDataSource.readAt(mCurrentOffset, buffer, 8) != 8) {
                 if (LOGS_ENABLED) Log.e(TAG, "could not read 8 bytes for header");
@@ -974,9 +993,24 @@ public class ISOBMFFParser extends MediaParser {
             }
             mCurrentMoofOffset = header.startOffset;
             mMoofDataSize = 0;
-            while (mCurrentOffset < boxEndOffset && parseOK) {
-                BoxHeader nextBoxHeader = getNextBoxHeader();
-                parseOK = parseBox(nextBoxHeader);
+            // The moof is small and complete before its samples, parse it
+            // from memory rather than with a source read per field.
+            DataSource source = mDataSource;
+            try {
+                if (header.boxDataSize <= MAX_BUFFERED_MOOF_SIZE && mMoofDataSource.load(
+                        source, mCurrentOffset, (int)header.boxDataSize)) {
+                    mDataSource = mMoofDataSource;
+                }
+            } catch (IOException e) {
+                if (LOGS_ENABLED) Log.w(TAG, "Could not buffer 'moof', parsing from source", e);
+            }
+            try {
+                while (mCurrentOffset < boxEndOffset && parseOK) {
+                    BoxHeader nextBoxHeader = getNextBoxHeader();
+                    parseOK = parseBox(nextBoxHeader);
+                }
+            } finally {
+                mDataSource = source;
             }
         } else if (header.boxType == BOX_ID_TRAF) {
             mParsedSencData = false;
@@ -1124,46 +1158,8 @@ public class ISOBMFFParser extends MediaParser {
 
                     int sampleCount = mDataSource.readInt();
 
-                    ArrayList<CryptoInfo> cryptoInfos = new ArrayList<CryptoInfo>(sampleCount);
-
-                    for (int i = 0; i < sampleCount; i++) {
-                        CryptoInfo info = new CryptoInfo();
-                        info.mode = MediaCodec.CRYPTO_MODE_AES_CTR;
-                        info.iv = new byte[16];
-                        if (mCurrentTrack.mDefaultIVSize == 16) {
-                            mDataSource.read(info.iv);
-                        } else {
-                            // pad IV data to 128 bits
-                            byte[] iv = new byte[8];
-                            mDataSource.read(iv);
-                            System.arraycopy(iv, 0, info.iv, 0, 8);
-                        }
-                        if ((versionFlags & 0x00000002) > 0) {
-                            short subSampleCount = mDataSource.readShort();
-                            info.numSubSamples = subSampleCount;
-                            info.numBytesOfClearData = new int[subSampleCount];
-                            info.numBytesOfEncryptedData = new int[subSampleCount];
-                            for (int j = 0; j < subSampleCount; j++) {
-                                info.numBytesOfClearData[j] = mDataSource.readShort();
-                                info.numBytesOfEncryptedData[j] = mDataSource.readInt();
-                            }
-                        } else {
-                            info.numSubSamples = 1;
-                            info.numBytesOfClearData = new int[1];
-                            info.numBytesOfClearData[0] = 0;
-                            info.numBytesOfEncryptedData = new int[1];
-                            info.numBytesOfEncryptedData[0] = -1;
-                        }
-
-                        if (info.numBytesOfClearData[0] == 0 && mCurrentTrack
-                                .getTrackType() == TrackType.VIDEO) {
-                            info.iv[15] = (byte)mNALLengthSize;
-                        }
-
-                        cryptoInfos.add(info);
-                    }
-
-                    mCurrentTrack.addCryptoInfos(cryptoInfos);
+                    parseSampleEncryptionEntries(versionFlags, sampleCount,
+                            mCurrentTrack.mDefaultIVSize, null);
                 } catch (EOFException e) {
                     if (LOGS_ENABLED) Log.e(TAG, "Error parsing 'senc' box", e);
 
@@ -1810,74 +1806,85 @@ public class ISOBMFFParser extends MediaParser {
         if (mCurrentMoofTrackId != mCurrentTrackId || mSkipInsertSamples) {
             return true;
         }
+        FragmentSampleTable samples = null;
+        int queuedCount = 0;
         try {
             int versionFlags = mDataSource.readInt();
             int sampleCount = mDataSource.readInt();
             int dataOffset = 0;
-            ArrayList<FragmentSample> fragmentSamples = new ArrayList<FragmentSample>(sampleCount);
             if ((versionFlags & 0x000001) != 0) {
                 dataOffset = mDataSource.readInt();
             }
             if ((versionFlags & 0x000004) != 0) {
                 mDataSource.skipBytes(4);
             }
-            long sumSampleSizes = 0;
-            for (int i = 0; i < sampleCount; i++) {
-                FragmentSample sample = new FragmentSample();
-                if ((versionFlags & 0x000100) != 0) {
-                    sample.durationTicks = mDataSource.readInt();
-                } else if (mCurrentTrackFragment.defaultSampleDuration != Integer.MIN_VALUE) {
-                    sample.durationTicks = mCurrentTrackFragment.defaultSampleDuration;
+
+            boolean hasDuration = (versionFlags & 0x000100) != 0;
+            boolean hasSize = (versionFlags & 0x000200) != 0;
+            boolean hasFlags = (versionFlags & 0x000400) != 0;
+            boolean hasCompositionOffset = (versionFlags & 0x000800) != 0;
+
+            // Resolve the defaults once rather than per sample.
+            Trex trex = mCurrentTrack.getTrex();
+            int defaultDuration = 0;
+            int defaultSize = 0;
+            if (!hasDuration && sampleCount > 0) {
+                if (mCurrentTrackFragment.defaultSampleDuration != Integer.MIN_VALUE) {
+                    defaultDuration = mCurrentTrackFragment.defaultSampleDuration;
+                } else if (trex != null) {
+                    defaultDuration = trex.defaultSampleDuration;
                 } else {
-                    Trex trex = mCurrentTrack.getTrex();
-                    if (trex != null) {
-                        sample.durationTicks = trex.defaultSampleDuration;
-                    } else {
-                        if (LOGS_ENABLED)
-                            Log.e(TAG,
-                                    "no applicable values for fragment sample duration available");
+                    if (LOGS_ENABLED)
+                        Log.e(TAG, "no applicable values for fragment sample duration available");
 
-                        mCurrentBoxSequence.removeLast();
-                        return false;
-                    }
+                    mCurrentBoxSequence.removeLast();
+                    return false;
                 }
-                if ((versionFlags & 0x000200) != 0) {
-                    sample.size = mDataSource.readInt();
-                } else if (mCurrentTrackFragment.defaultSampleSize != Integer.MIN_VALUE) {
-                    sample.size = mCurrentTrackFragment.defaultSampleSize;
+            }
+            if (!hasSize && sampleCount > 0) {
+                if (mCurrentTrackFragment.defaultSampleSize != Integer.MIN_VALUE) {
+                    defaultSize = mCurrentTrackFragment.defaultSampleSize;
+                } else if (trex != null) {
+                    defaultSize = trex.defaultSampleSize;
                 } else {
-                    Trex trex = mCurrentTrack.getTrex();
-                    if (trex != null) {
-                        sample.size = trex.defaultSampleSize;
-                    } else {
-                        if (LOGS_ENABLED)
-                            Log.e(TAG, "no applicable values for fragment sample size available");
+                    if (LOGS_ENABLED)
+                        Log.e(TAG, "no applicable values for fragment sample size available");
 
-                        mCurrentBoxSequence.removeLast();
-                        return false;
-                    }
+                    mCurrentBoxSequence.removeLast();
+                    return false;
                 }
-                if ((versionFlags & 0x000400) != 0) {
+            }
+
+            long sampleOffset = mCurrentTrackFragment.baseDataOffset;
+            if ((versionFlags & 0x000001) != 0) {
+                sampleOffset += dataOffset;
+            } else {
+                sampleOffset += mPrevTrunDataSize;
+            }
+
+            samples = mCurrentTrack.getFragmentSampleTable();
+            samples.ensureCapacity(sampleCount);
+            // Capacity is ensured, so adding samples does not move the queued ones.
+            queuedCount = samples.getCount();
+            long sumSampleSizes = 0;
+            for (int i = 0; i < sampleCount; i++) {
+                int duration = hasDuration ? mDataSource.readInt() : defaultDuration;
+                int size = hasSize ? mDataSource.readInt() : defaultSize;
+                if (hasFlags) {
                     mDataSource.skipBytes(4);
                 }
-                if ((versionFlags & 0x000800) != 0) {
-                    sample.compositionTimeOffset = mDataSource.readInt();
-                }
-                if ((versionFlags & 0x000001) != 0) {
-                    sample.dataOffset = mCurrentTrackFragment.baseDataOffset + dataOffset
-                            + sumSampleSizes;
-                } else {
-                    sample.dataOffset = mCurrentTrackFragment.baseDataOffset
-                            + mPrevTrunDataSize + sumSampleSizes;
-                }
-                sumSampleSizes += sample.size;
-                fragmentSamples.add(sample);
+                int compositionOffset = hasCompositionOffset ? mDataSource.readInt() : 0;
+                samples.add(sampleOffset + sumSampleSizes, size, duration, compositionOffset);
+                sumSampleSizes += size;
             }
             mPrevTrunDataSize += sumSampleSizes;
             mMoofDataSize += sumSampleSizes;
-            mCurrentTrack.addFragmentSamples(fragmentSamples);
         } catch (IOException e) {
             if (LOGS_ENABLED) Log.e(TAG, "IOException while parsing 'trun' box", e);
+            if (samples != null) {
+                // Drop the samples of the incomplete run.
+                samples.truncate(queuedCount);
+            }
             mCurrentBoxSequence.removeLast();
             return false;
         }
@@ -1945,6 +1952,33 @@ public class ISOBMFFParser extends MediaParser {
         return true;
     }
 
+    /**
+     * Reads the per sample IVs and subsample ranges of a 'senc' box, or its
+     * PIFF uuid counterpart, into the crypto table of the current track.
+     *
+     * @param key key id to set on the samples, may be null.
+     */
+    protected void parseSampleEncryptionEntries(int versionFlags, int sampleCount, int ivSize,
+            byte[] key) throws IOException {
+        CryptoSampleTable table = mCurrentTrack.getCryptoSampleTable();
+        for (int i = 0; i < sampleCount; i++) {
+            // IVs of 8 bytes are padded to 128 bits.
+            long ivHigh = mDataSource.readLong();
+            long ivLow = ivSize == 16 ? mDataSource.readLong() : 0;
+            table.add(ivHigh, ivLow, key);
+            if ((versionFlags & 0x00000002) > 0) {
+                int subSampleCount = mDataSource.readShort() & 0xffff;
+                for (int j = 0; j < subSampleCount; j++) {
+                    int clearBytes = mDataSource.readShort() & 0xffff;
+                    table.addSubSample(clearBytes, mDataSource.readInt());
+                }
+            } else {
+                // Whole sample encrypted, the size is set when dequeued.
+                table.addSubSample(0, -1);
+            }
+        }
+    }
+
     private boolean parseHdlr(BoxHeader header) {
         byte[] data = new byte[(int)header.boxDataSize];
         try {
@@ -2447,9 +2481,10 @@ public class ISOBMFFParser extends MediaParser {
 
         protected ArrayList<Tfra> mTfraList;
 
-        protected ArrayDeque<FragmentSample> mCurrentFragmentSampleQueue;
+        /** Parsed samples of the current fragments not yet dequeued. */
+        protected FragmentSampleTable mFragmentSamples;
 
-        protected ArrayDeque<CryptoInfo> mCurrentCryptoInfoQueue;
+        protected CryptoSampleTable mCryptoSamples;
 
         public long mTimeTicks = 0;
 
@@ -2469,10 +2504,16 @@ public class ISOBMFFParser extends MediaParser {
 
         protected long mLastTimestampUs = 0;
 
+        protected AccessUnitPool mAccessUnitPool = new AccessUnitPool();
+
+        protected CodecType mCodecType;
+
+        protected NalUnitConverter mNalUnitConverter = new NalUnitConverter();
+
         public IsoTrack() {
             mMetaData = new MetaDataImpl();
             mSampleTable = new SampleTable();
-            mCurrentFragmentSampleQueue = null;
+            mFragmentSamples = null;
             mSampleDescriptionList = new ArrayList<MediaFormat>(1);
         }
 
@@ -2487,6 +2528,7 @@ public class ISOBMFFParser extends MediaParser {
         public void addSampleDescriptionEntry(MediaFormat mediaFormat) {
             if (mMediaFormat == null) {
                 mMediaFormat = mediaFormat;
+                mCodecType = null;
             }
             mSampleDescriptionList.add(mediaFormat);
         }
@@ -2495,24 +2537,24 @@ public class ISOBMFFParser extends MediaParser {
             return mTfraList;
         }
 
-        public void addFragmentSamples(ArrayList<FragmentSample> fragmentSamples) {
-            int numNewSamples = fragmentSamples.size();
-            if (mCurrentFragmentSampleQueue == null) {
-                mCurrentFragmentSampleQueue = new ArrayDeque<FragmentSample>(numNewSamples);
-            }
-            for (int i = 0; i < numNewSamples; i++) {
-                mCurrentFragmentSampleQueue.add(fragmentSamples.get(i));
+        /**
+         * Returns the table parsed fragment samples are added to.
+         */
+        public FragmentSampleTable getFragmentSampleTable() {
+            if (mFragmentSamples == null) {
+                mFragmentSamples = new FragmentSampleTable();
             }
+            return mFragmentSamples;
         }
 
-        public void addCryptoInfos(ArrayList<CryptoInfo> cryptoInfos) {
-            int numNewSamples = cryptoInfos.size();
-            if (mCurrentCryptoInfoQueue == null) {
-                mCurrentCryptoInfoQueue = new ArrayDeque<CryptoInfo>(numNewSamples);
-            }
-            for (int i = 0; i < numNewSamples; i++) {
-                mCurrentCryptoInfoQueue.add(cryptoInfos.get(i));
+        /**
+         * Returns the table parsed sample encryption entries are added to.
+         */
+        public CryptoSampleTable getCryptoSampleTable() {
+            if (mCryptoSamples == null) {
+                mCryptoSamples = new CryptoSampleTable();
             }
+            return mCryptoSamples;
         }
 
         public void setTfraList(ArrayList<Tfra> tfraEntryList) {
@@ -2528,7 +2570,7 @@ public class ISOBMFFParser extends MediaParser {
             if (readFragmented && mCurrentSampleIndex >= mSampleTable.getSampleCount()) {
                 return dequeueAccessUnitFragmented();
             }
-            AccessUnit accessUnit = new AccessUnit();
+            AccessUnit accessUnit = mAccessUnitPool.obtain();
 
             if (mCurrentSampleIndex >= mSampleTable.getSampleCount()) {
                 accessUnit.status = AccessUnit.END_OF_STREAM;
@@ -2570,32 +2612,12 @@ public class ISOBMFFParser extends MediaParser {
                 accessUnit.status = AccessUnit.ERROR;
                 return accessUnit;
             }
-            if (mMediaFormat.getString(MediaFormat.KEY_MIME).equals(MimeType.AVC) ||
-                    mMediaFormat.getString(MediaFormat.KEY_MIME).equals(MimeType.HEVC)) {
+            if (getCodecType() != CodecType.OTHER) {
                 // add NAL Header
-                int srcOffset = 0;
-                int dstOffset = 0;
-                int nalLengthSize = 4;
-                // TODO: Support files with nalLengthSize other than 4
-                while (srcOffset < dataSize) {
-                    if ((srcOffset + nalLengthSize) > dataSize) {
-                        accessUnit.status = AccessUnit.ERROR;
-                        return accessUnit;
-                    }
-                    int nalLength = (accessUnit.data[srcOffset++] & 0xff) << 24
-                            | (accessUnit.data[srcOffset++] & 0xff) << 16
-                            | (accessUnit.data[srcOffset++] & 0xff) << 8
-                            | (accessUnit.data[srcOffset++] & 0xff);
-                    if (srcOffset + nalLength > dataSize) {
-                        accessUnit.status = AccessUnit.ERROR;
-                        return accessUnit;
-                    }
-                    accessUnit.data[dstOffset++] = 0;
-                    accessUnit.data[dstOffset++] = 0;
-                    accessUnit.data[dstOffset++] = 0;
-                    accessUnit.data[dstOffset++] = 1;
-                    srcOffset += nalLength;
-                    dstOffset += nalLength;
+                int nalLengthSize = mNALLengthSize != 0 ? mNALLengthSize : sNALHeaderSize;
+                if (!mNalUnitConverter.toAnnexB(accessUnit, nalLengthSize, CodecType.OTHER)) {
+                    accessUnit.status = AccessUnit.ERROR;
+                    return accessUnit;
                 }
             }
             accessUnit.isSyncSample = mSampleTable.isSyncSample(mCurrentSampleIndex);
@@ -2610,7 +2632,7 @@ public class ISOBMFFParser extends MediaParser {
             // if (LOGS_ENABLED) Log.v(TAG, "dequeueAccessUnitFragmented track "
             // + mTrackId);
 
-            AccessUnit accessUnit = new AccessUnit();
+            AccessUnit accessUnit = mAccessUnitPool.obtain();
 
             // load moof box when necessary
 
@@ -2619,25 +2641,29 @@ public class ISOBMFFParser extends MediaParser {
                 return accessUnit;
             }
 
-            if (mCurrentFragmentSampleQueue == null || mCurrentFragmentSampleQueue.isEmpty()) {
+            FragmentSampleTable samples = mFragmentSamples;
+            if (samples == null || samples.isEmpty()) {
                 if (LOGS_ENABLED) Log.i(TAG, "No more fragments in queue, end of stream");
                 accessUnit.status = AccessUnit.END_OF_STREAM;
                 return accessUnit;
             }
-            FragmentSample sample = mCurrentFragmentSampleQueue.removeFirst();
+            int sample = samples.getPosition();
+            long dataOffset = samples.offsets[sample];
+            int dataSize = samples.sizes[sample];
+            int durationTicks = samples.durations[sample];
+            int compositionOffset = samples.compositionOffsets[sample];
+            samples.advance();
             accessUnit.status = AccessUnit.OK;
             accessUnit.timeUs = (mTimeTicks
-                    + sample.compositionTimeOffset - mEditMediaTimeTicks) * 1000000 / mTimeScale;
+                    + compositionOffset - mEditMediaTimeTicks) * 1000000 / mTimeScale;
             accessUnit.timeUs += mSampleTable.getDurationUs();
 
             if (accessUnit.timeUs < 0) {
                 if (LOGS_ENABLED) Log.w(TAG, "Negative sampletime!");
                 accessUnit.timeUs = 0;
             }
-            accessUnit.durationUs = (long)sample.durationTicks * 1000000L / mTimeScale;
-            mTimeTicks += sample.durationTicks;
-            long dataOffset = sample.dataOffset;
-            int dataSize = sample.size;
+            accessUnit.durationUs = (long)durationTicks * 1000000L / mTimeScale;
+            mTimeTicks += durationTicks;
             if (accessUnit.data == null || accessUnit.data.length < dataSize) {
                 accessUnit.data = null;
                 accessUnit.data = new byte[dataSize];
@@ -2655,93 +2681,35 @@ public class ISOBMFFParser extends MediaParser {
                 return accessUnit;
             }
 
-            if (mCurrentCryptoInfoQueue != null) {
-                accessUnit.cryptoInfo = mCurrentCryptoInfoQueue.removeFirst();
+            if (mCryptoSamples != null) {
+                CryptoInfo info = mCryptoSamples.poll();
+                accessUnit.cryptoInfo = info;
 
-                if (accessUnit.cryptoInfo != null && accessUnit.cryptoInfo.numSubSamples == 1 &&
-                        accessUnit.cryptoInfo.numBytesOfEncryptedData[0] == -1) {
-                    accessUnit.cryptoInfo.numBytesOfEncryptedData[0] = dataSize;
+                if (info != null && info.numSubSamples == 1
+                        && info.numBytesOfEncryptedData[0] == -1) {
+                    info.numBytesOfEncryptedData[0] = dataSize;
+                }
+                if (info != null && info.numBytesOfClearData[0] == 0
+                        && mType == TrackType.VIDEO) {
+                    info.iv[15] = (byte)mNALLengthSize;
                 }
             }
 
-            boolean isAVC = mMediaFormat.getString(MediaFormat.KEY_MIME).equals(MimeType.AVC);
-            boolean isHEVC = mMediaFormat.getString(MediaFormat.KEY_MIME).equals(MimeType.HEVC);
+            CodecType codecType = getCodecType();
+            boolean isAVC = codecType == CodecType.AVC;
+            boolean isHEVC = codecType == CodecType.HEVC;
 
             // Add NAL header. If we have no clearbytes, we need to
             // let the platform set NAL header
             if ((isAVC || isHEVC)
                     && (accessUnit.cryptoInfo == null
                     || accessUnit.cryptoInfo.numBytesOfClearData[0] > 0)) {
-                int srcOffset = 0;
-                int dstOffset = 0;
-                while (srcOffset < dataSize) {
-                    if ((srcOffset + mNALLengthSize) > dataSize) {
-                        if (LOGS_ENABLED) Log.e(TAG, "no room to add nal length");
-                        accessUnit.status = AccessUnit.ERROR;
-                        return accessUnit;
-                    }
-                    int nalLength = 0;
-
-                    if (mNALLengthSize == 1 || mNALLengthSize == 2) {
-                        if (mNALLengthSize == 1) {
-                            nalLength = accessUnit.data[srcOffset];
-                        } else if (mNALLengthSize == 2) {
-                            nalLength = ((accessUnit.data[srcOffset] & 0xff) << 8
-                                    | (accessUnit.data[srcOffset + 1] & 0xff));
-                        }
-                        byte[] tmpData = new byte[dataSize + (sNALHeaderSize -
-                                mNALLengthSize)];
-                        if (srcOffset > 0) {
-                            System.arraycopy(accessUnit.data, 0, tmpData, 0,
-                                    srcOffset);
-                        }
-                        System.arraycopy(accessUnit.data, srcOffset, tmpData,
-                                (sNALHeaderSize - mNALLengthSize) + srcOffset,
-                                accessUnit.data.length - srcOffset);
-                        accessUnit.data = tmpData;
-                        dataSize = accessUnit.data.length;
-                        accessUnit.size = dataSize;
-                    } else if (mNALLengthSize == 4) {
-                        nalLength = ((accessUnit.data[srcOffset] & 0xff) << 24
-                                | (accessUnit.data[srcOffset + 1] & 0xff) << 16
-                                | (accessUnit.data[srcOffset + 2] & 0xff) << 8
-                                | (accessUnit.data[srcOffset + 3] & 0xff));
-                    } else {
-                        if (LOGS_ENABLED)
-                            Log.e(TAG, "unsupported nal length size" + mNALLengthSize);
-                        accessUnit.status = AccessUnit.ERROR;
-                        return accessUnit;
-                    }
-                    srcOffset += sNALHeaderSize;
-                    if (accessUnit.cryptoInfo != null) {
-                        accessUnit.cryptoInfo.numBytesOfClearData[0] +=
-                                (sNALHeaderSize - mNALLengthSize);
-                    }
-                    if (srcOffset + nalLength > dataSize) {
-                        if (LOGS_ENABLED) Log.e(TAG, "error writing nal length");
-                        accessUnit.status = AccessUnit.ERROR;
-                        return accessUnit;
-                    }
-                    accessUnit.data[dstOffset++] = 0;
-                    accessUnit.data[dstOffset++] = 0;
-                    accessUnit.data[dstOffset++] = 0;
-                    accessUnit.data[dstOffset++] = 1;
-
-                    if (isAVC && (accessUnit.data[srcOffset] & 0x1f)
-                            == AVC_NAL_UNIT_TYPE_IDR_PICTURE) {
-                        accessUnit.isSyncSample = true;
-                    } else if (isHEVC) {
-                        int nalType = (accessUnit.data[srcOffset] & 0x7e) >> 1;
-
-                        if (nalType == HEVC_NAL_UNIT_TYPE_IDR_PICTURE_W_RADL
-                                || nalType == HEVC_NAL_UNIT_TYPE_IDR_PICTURE_N_LP
-                                || nalType == HEVC_NAL_UNIT_TYPE_CRA_PICTURE) {
-                            accessUnit.isSyncSample = true;
-                        }
-                    }
-
-                    srcOffset += nalLength;
-                    dstOffset += nalLength;
+                if (!mNalUnitConverter.toAnnexB(accessUnit, mNALLengthSize, codecType)) {
+                    if (LOGS_ENABLED)
+                        Log.e(TAG, "could not add nal headers, nal length size "
+                                + mNALLengthSize);
+                    accessUnit.status = AccessUnit.ERROR;
+                    return accessUnit;
                 }
             } else if ((isAVC || isHEVC)
                     && accessUnit.cryptoInfo != null
@@ -2814,6 +2782,26 @@ public class ISOBMFFParser extends MediaParser {
 
         public void setMediaFormat(MediaFormat format) {
             mMediaFormat = format;
+            mCodecType = null;
+        }
+
+        /**
+         * Returns the codec type of the track. Resolved on first use since the
+         * mime type is set after the sample description is added.
+         */
+        protected CodecType getCodecType() {
+            if (mCodecType == null) {
+                String mime = mMediaFormat != null ? mMediaFormat.getString(MediaFormat.KEY_MIME)
+                        : null;
+                if (MimeType.AVC.equals(mime)) {
+                    mCodecType = CodecType.AVC;
+                } else if (MimeType.HEVC.equals(mime)) {
+                    mCodecType = CodecType.HEVC;
+                } else {
+                    mCodecType = CodecType.OTHER;
+                }
+            }
+            return mCodecType;
         }
 
         @Override
@@ -2830,8 +2818,8 @@ public class ISOBMFFParser extends MediaParser {
         }
 
         public long seekTo(long seekTimeUs, boolean isFragmented) {
-            if (mCurrentCryptoInfoQueue != null) {
-                mCurrentCryptoInfoQueue.clear();
+            if (mCryptoSamples != null) {
+                mCryptoSamples.clear();
             }
             if (!isFragmented
                     || (mSampleTable != null && seekTimeUs < mSampleTable.getDurationUs())) {
@@ -2847,15 +2835,15 @@ public class ISOBMFFParser extends MediaParser {
                     // Need to reset next moof offset
                     Tfra tfra = mTfraList.get(0);
                     mNextMoofOffset = tfra.moofOffset;
-                    if (mCurrentFragmentSampleQueue != null) {
-                        mCurrentFragmentSampleQueue.clear();
+                    if (mFragmentSamples != null) {
+                        mFragmentSamples.clear();
                     }
                     mTimeTicks = 0;
                 }
                 return mSampleTable.getTimeOfSample(mCurrentSampleIndex);
             } else {
                 if (mTfraList == null) {
-                    mCurrentFragmentSampleQueue = null;
+                    mFragmentSamples = null;
                     mNextMoofOffset = 0;
                     mTimeTicks = 0;
                     return 0;
@@ -2887,8 +2875,8 @@ public class ISOBMFFParser extends MediaParser {
                             + " at offset " + tfra.moofOffset);
                 }
 
-                if (mCurrentFragmentSampleQueue != null) {
-                    mCurrentFragmentSampleQueue.clear();
+                if (mFragmentSamples != null) {
+                    mFragmentSamples.clear();
                 }
 
                 long contentLength = 0;
@@ -2918,29 +2906,31 @@ public class ISOBMFFParser extends MediaParser {
                 mTimeTicks = tfra.timeTicks + mEditMediaTimeTicks
                         - (mSampleTable.getDurationUs() * mTimeScale / 1000000);
 
-                if (mCurrentFragmentSampleQueue != null) {
+                FragmentSampleTable samples = mFragmentSamples;
+                if (samples != null) {
                     long sampleNumber = tfra.sampleNumber;
-                    if (mCurrentFragmentSampleQueue.size() >= sampleNumber) {
-                        while (sampleNumber > 1) {
-                            mCurrentFragmentSampleQueue.removeFirst();
-                            sampleNumber--;
+                    if (samples.remaining() >= sampleNumber) {
+                        if (sampleNumber > 1) {
+                            samples.skip((int)sampleNumber - 1);
+                            if (mCryptoSamples != null) {
+                                mCryptoSamples.skip((int)sampleNumber - 1);
+                            }
                         }
-                        FragmentSample sample = mCurrentFragmentSampleQueue.peekFirst();
-                        if (sample != null) {
-                            mTimeTicks -= sample.compositionTimeOffset;
+                        if (!samples.isEmpty()) {
+                            mTimeTicks -= samples.compositionOffsets[samples.getPosition()];
                         }
                     }
 
                     if (mType != TrackType.VIDEO) {
-                        while (!mCurrentFragmentSampleQueue.isEmpty()) {
-                            FragmentSample sample = mCurrentFragmentSampleQueue.peekFirst();
+                        while (!samples.isEmpty()) {
+                            int sample = samples.getPosition();
                             if (seekTimeUs * mTimeScale / 1000000L > mTimeTicks
-                                    + sample.compositionTimeOffset
-                                    - mEditMediaTimeTicks + sample.durationTicks) {
-                                mTimeTicks += sample.durationTicks;
-                                mCurrentFragmentSampleQueue.removeFirst();
-                                if (mCurrentCryptoInfoQueue != null) {
-                                    mCurrentCryptoInfoQueue.removeFirst();
+                                    + samples.compositionOffsets[sample]
+                                    - mEditMediaTimeTicks + samples.durations[sample]) {
+                                mTimeTicks += samples.durations[sample];
+                                samples.skip(1);
+                                if (mCryptoSamples != null) {
+                                    mCryptoSamples.skip(1);
                                 }
                             } else {
                                 break;
@@ -2985,11 +2975,12 @@ public class ISOBMFFParser extends MediaParser {
                     return false;
                 }
 
-                if (mCurrentFragmentSampleQueue == null) {
+                FragmentSampleTable samples = mFragmentSamples;
+                if (samples == null) {
                     return false;
                 }
 
-                if (mCurrentFragmentSampleQueue.isEmpty()) {
+                if (samples.isEmpty()) {
                     if (mNextMoofOffset < 0) {
                         // End of stream, return true so other tracks can run to
                         // completion
@@ -2999,11 +2990,11 @@ public class ISOBMFFParser extends MediaParser {
                     }
                 }
 
-                FragmentSample sample = mCurrentFragmentSampleQueue.peek();
+                int sample = samples.getPosition();
                 DataAvailability hasData = mDataSource
-                        .hasDataAvailable(sample.dataOffset, sample.size);
+                        .hasDataAvailable(samples.offsets[sample], samples.sizes[sample]);
                 if (hasData == DataAvailability.NOT_AVAILABLE) {
-                    mDataSource.seek(sample.dataOffset);
+                    mDataSource.seek(samples.offsets[sample]);
                 }
                 return hasData != DataAvailability.IN_FUTURE;
             } else {
@@ -3030,8 +3021,8 @@ public class ISOBMFFParser extends MediaParser {
                 if (LOGS_ENABLED) Log.e(TAG, "IOException when retrieving content length", e);
             }
 
-            while (mCurrentFragmentSampleQueue == null
-                    || (mCurrentFragmentSampleQueue.isEmpty() && mNextMoofOffset > 0
+            while (mFragmentSamples == null
+                    || (mFragmentSamples.isEmpty() && mNextMoofOffset > 0
                     && (mNextMoofOffset < contentLength || contentLength == -1))) {
                 mCurrentTrackId = mTrackId;
 
@@ -3081,21 +3072,241 @@ public class ISOBMFFParser extends MediaParser {
         public int defaultSampleSize = Integer.MIN_VALUE;
     }
 
-    static class FragmentSample {
-        public int durationTicks = 0;
+    /**
+     * Samples of the parsed track fragments kept in parallel primitive
+     * arrays, one entry per sample, instead of an object per sample. Samples
+     * are appended at the end as fragments are parsed and consumed from the
+     * position. The arrays are reused for the next fragments; consumed
+     * entries are dropped when the table is emptied or has to make room.
+     */
+    static class FragmentSampleTable {
+        long[] offsets = new long[0];
 
-        public int size = 0;
+        int[] sizes = new int[0];
 
-        public int compositionTimeOffset = 0;
+        int[] durations = new int[0];
 
-        public long dataOffset = 0;
+        int[] compositionOffsets = new int[0];
 
-        public String toString() {
-            StringBuilder sb = new StringBuilder();
-            sb.append("offset = " + dataOffset);
-            sb.append(", size = " + size);
-            sb.append(", duration = " + durationTicks);
-            return sb.toString();
+        private int mCount;
+
+        private int mPosition;
+
+        /**
+         * Returns the index of the next sample in the arrays.
+         */
+        public int getPosition() {
+            return mPosition;
+        }
+
+        /**
+         * Returns the index after the last sample in the arrays.
+         */
+        public int getCount() {
+            return mCount;
+        }
+
+        public int remaining() {
+            return mCount - mPosition;
+        }
+
+        public boolean isEmpty() {
+            return mPosition == mCount;
+        }
+
+        public void advance() {
+            skip(1);
+        }
+
+        public void skip(int count) {
+            mPosition = Math.min(mCount, mPosition + count);
+            if (mPosition == mCount) {
+                clear();
+            }
+        }
+
+        public void clear() {
+            mCount = 0;
+            mPosition = 0;
+        }
+
+        /**
+         * Drops the samples added after the table held count of them.
+         */
+        public void truncate(int count) {
+            mCount = Math.max(mPosition, Math.min(mCount, count));
+            if (mPosition == mCount) {
+                clear();
+            }
+        }
+
+        public void add(long offset, int size, int duration, int compositionOffset) {
+            if (mCount == sizes.length) {
+                ensureCapacity(Math.max(16, remaining()));
+            }
+            offsets[mCount] = offset;
+            sizes[mCount] = size;
+            durations[mCount] = duration;
+            compositionOffsets[mCount] = compositionOffset;
+            mCount++;
+        }
+
+        /**
+         * Makes room for count more samples, first by dropping consumed ones.
+         */
+        public void ensureCapacity(int count) {
+            if (mCount + count <= sizes.length) {
+                return;
+            }
+
+            int remaining = remaining();
+            if (mPosition > 0) {
+                System.arraycopy(offsets, mPosition, offsets, 0, remaining);
+                System.arraycopy(sizes, mPosition, sizes, 0, remaining);
+                System.arraycopy(durations, mPosition, durations, 0, remaining);
+                System.arraycopy(compositionOffsets, mPosition, compositionOffsets, 0,
+                        remaining);
+                mCount = remaining;
+                mPosition = 0;
+            }
+
+            if (mCount + count > sizes.length) {
+                int capacity = Math.max(mCount + count, sizes.length * 2);
+                offsets = Arrays.copyOf(offsets, capacity);
+                sizes = Arrays.copyOf(sizes, capacity);
+                durations = Arrays.copyOf(durations, capacity);
+                compositionOffsets = Arrays.copyOf(compositionOffsets, capacity);
+            }
+        }
+    }
+
+    /**
+     * Sample encryption entries of the parsed track fragments, in step with
+     * the FragmentSampleTable of the track. IVs are packed 16 bytes per
+     * sample and the subsamples of all samples share two packed arrays, so
+     * a CryptoInfo is only created for the sample being dequeued.
+     */
+    static class CryptoSampleTable {
+        private static final int IV_SIZE = 16;
+
+        private byte[] mIvs = new byte[0];
+
+        private byte[][] mKeys = new byte[0][];
+
+        private int[] mSubSampleStarts = new int[0];
+
+        private int[] mClearBytes = new int[0];
+
+        private int[] mEncryptedBytes = new int[0];
+
+        private int mCount;
+
+        private int mPosition;
+
+        private int mSubSampleCount;
+
+        public boolean isEmpty() {
+            return mPosition == mCount;
+        }
+
+        public void clear() {
+            mCount = 0;
+            mPosition = 0;
+            mSubSampleCount = 0;
+        }
+
+        public void skip(int count) {
+            mPosition = Math.min(mCount, mPosition + count);
+            if (mPosition == mCount) {
+                clear();
+            }
+        }
+
+        /**
+         * Appends a sample, its subsamples are added with addSubSample.
+         */
+        public void add(long ivHigh, long ivLow, byte[] key) {
+            if (mCount == mKeys.length) {
+                makeRoom();
+            }
+            int ivOffset = mCount * IV_SIZE;
+            for (int i = 0; i < 8; i++) {
+                mIvs[ivOffset + i] = (byte)(ivHigh >>> (56 - 8 * i));
+                mIvs[ivOffset + 8 + i] = (byte)(ivLow >>> (56 - 8 * i));
+            }
+            mKeys[mCount] = key;
+            mSubSampleStarts[mCount] = mSubSampleCount;
+            mCount++;
+        }
+
+        public void addSubSample(int clearBytes, int encryptedBytes) {
+            if (mSubSampleCount == mClearBytes.length) {
+                int capacity = Math.max(16, mSubSampleCount * 2);
+                mClearBytes = Arrays.copyOf(mClearBytes, capacity);
+                mEncryptedBytes = Arrays.copyOf(mEncryptedBytes, capacity);
+            }
+            mClearBytes[mSubSampleCount] = clearBytes;
+            mEncryptedBytes[mSubSampleCount] = encryptedBytes;
+            mSubSampleCount++;
+        }
+
+        /**
+         * Returns the crypto info of the next sample and moves past it, or
+         * null if there is none.
+         */
+        public CryptoInfo poll() {
+            if (isEmpty()) {
+                return null;
+            }
+
+            int sample = mPosition;
+            int subSampleStart = mSubSampleStarts[sample];
+            int subSampleEnd = sample + 1 < mCount ? mSubSampleStarts[sample + 1]
+                    : mSubSampleCount;
+            int numSubSamples = subSampleEnd - subSampleStart;
+
+            CryptoInfo info = new CryptoInfo();
+            info.mode = MediaCodec.CRYPTO_MODE_AES_CTR;
+            info.iv = Arrays.copyOfRange(mIvs, sample * IV_SIZE, (sample + 1) * IV_SIZE);
+            info.key = mKeys[sample];
+            info.numSubSamples = numSubSamples;
+            info.numBytesOfClearData = Arrays.copyOfRange(mClearBytes, subSampleStart,
+                    subSampleEnd);
+            info.numBytesOfEncryptedData = Arrays.copyOfRange(mEncryptedBytes, subSampleStart,
+                    subSampleEnd);
+
+            skip(1);
+            return info;
+        }
+
+        /**
+         * Drops consumed samples, growing the tables if that does not free
+         * anything.
+         */
+        private void makeRoom() {
+            if (mPosition > 0) {
+                int remaining = mCount - mPosition;
+                int subSampleBase = mSubSampleStarts[mPosition];
+                System.arraycopy(mIvs, mPosition * IV_SIZE, mIvs, 0, remaining * IV_SIZE);
+                System.arraycopy(mKeys, mPosition, mKeys, 0, remaining);
+                Arrays.fill(mKeys, remaining, mCount, null);
+                for (int i = 0; i < remaining; i++) {
+                    mSubSampleStarts[i] = mSubSampleStarts[mPosition + i] - subSampleBase;
+                }
+                mSubSampleCount -= subSampleBase;
+                System.arraycopy(mClearBytes, subSampleBase, mClearBytes, 0, mSubSampleCount);
+                System.arraycopy(mEncryptedBytes, subSampleBase, mEncryptedBytes, 0,
+                        mSubSampleCount);
+                mCount = remaining;
+                mPosition = 0;
+            }
+
+            if (mCount == mKeys.length) {
+                int capacity = Math.max(16, mCount * 2);
+                mIvs = Arrays.copyOf(mIvs, capacity * IV_SIZE);
+                mKeys = Arrays.copyOf(mKeys, capacity);
+                mSubSampleStarts = Arrays.copyOf(mSubSampleStarts, capacity);
+            }
         }
     }
 
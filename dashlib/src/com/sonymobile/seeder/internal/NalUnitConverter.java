@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2014 Sony Mobile Communications Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.sonymobile.seeder.internal;
+
+import static com.sonymobile.seeder.internal.ISOBMFFParser.AVC_NAL_UNIT_TYPE_IDR_PICTURE;
+import static com.sonymobile.seeder.internal.ISOBMFFParser.HEVC_NAL_UNIT_TYPE_CRA_PICTURE;
+import static com.sonymobile.seeder.internal.ISOBMFFParser.HEVC_NAL_UNIT_TYPE_IDR_PICTURE_N_LP;
+import static com.sonymobile.seeder.internal.ISOBMFFParser.HEVC_NAL_UNIT_TYPE_IDR_PICTURE_W_RADL;
+
+import android.media.MediaCodec.CryptoInfo;
+
+import com.sonymobile.common.AccessUnit;
+import com.sonymobile.seeder.internal.ISOBMFFParser.CodecType;
+
+/**
+ * Rewrites AVC and HEVC samples from length prefixed NAL units, as stored in
+ * ISO BMFF files, to Annex B start codes as expected by the decoders.
+ *
+ * The sample is walked once to validate it and compute the converted size,
+ * then once more to write it, so the cost is linear in the sample size
+ * whatever the number of NAL units. With 4 byte lengths the start codes
+ * simply replace the lengths in place. Shorter lengths make the sample grow
+ * and it is written to a second array that is swapped with the data of the
+ * access unit, so the converter and the access unit pool keep trading the
+ * same two arrays.
+ *
+ * Owned by a track, not thread safe.
+ */
+public final class NalUnitConverter {
+
+    private static final int START_CODE_SIZE = 4;
+
+    private byte[] mBuffer;
+
+    /**
+     * Converts the NAL units of accessUnit to Annex B, updating its data and
+     * size. Sets isSyncSample if an IDR or CRA picture is found. When the
+     * sample grows, the clear byte count of each subsample of the crypto info
+     * grows with the NAL units starting in it, so the encrypted ranges stay
+     * where they were.
+     *
+     * @param nalLengthSize size of the NAL unit lengths, 1, 2 or 4.
+     * @return false if the sample is malformed or the length size is not
+     *         supported, the access unit is then left untouched.
+     */
+    public boolean toAnnexB(AccessUnit accessUnit, int nalLengthSize, CodecType codecType) {
+        if (nalLengthSize != 1 && nalLengthSize != 2 && nalLengthSize != 4) {
+            return false;
+        }
+
+        byte[] src = accessUnit.data;
+        int size = accessUnit.size;
+
+        // Validate and compute the converted size.
+        int srcOffset = 0;
+        int nalCount = 0;
+        while (srcOffset < size) {
+            if (srcOffset + nalLengthSize > size) {
+                return false;
+            }
+            int nalLength = readLength(src, srcOffset, nalLengthSize);
+            srcOffset += nalLengthSize;
+            if (nalLength < 0 || nalLength > size - srcOffset) {
+                return false;
+            }
+            srcOffset += nalLength;
+            nalCount++;
+        }
+
+        int growth = START_CODE_SIZE - nalLengthSize;
+        int convertedSize = size + nalCount * growth;
+        byte[] dst = src;
+        if (growth > 0) {
+            if (mBuffer == null || mBuffer.length < convertedSize) {
+                mBuffer = new byte[convertedSize];
+            }
+            dst = mBuffer;
+        }
+
+        CryptoInfo cryptoInfo = growth > 0 ? accessUnit.cryptoInfo : null;
+        int subSample = 0;
+        int subSampleEnd = cryptoInfo != null ? getSubSampleSize(cryptoInfo, 0) : 0;
+
+        srcOffset = 0;
+        int dstOffset = 0;
+        while (srcOffset < size) {
+            int nalLength = readLength(src, srcOffset, nalLengthSize);
+
+            if (cryptoInfo != null) {
+                while (srcOffset >= subSampleEnd && subSample < cryptoInfo.numSubSamples - 1) {
+                    subSample++;
+                    subSampleEnd += getSubSampleSize(cryptoInfo, subSample);
+                }
+                cryptoInfo.numBytesOfClearData[subSample] += growth;
+            }
+
+            srcOffset += nalLengthSize;
+            dst[dstOffset++] = 0;
+            dst[dstOffset++] = 0;
+            dst[dstOffset++] = 0;
+            dst[dstOffset++] = 1;
+            if (dst != src) {
+                System.arraycopy(src, srcOffset, dst, dstOffset, nalLength);
+            }
+
+            if (nalLength > 0 && isSyncNalUnit(src[srcOffset], codecType)) {
+                accessUnit.isSyncSample = true;
+            }
+
+            srcOffset += nalLength;
+            dstOffset += nalLength;
+        }
+
+        if (dst != src) {
+            mBuffer = src;
+            accessUnit.data = dst;
+        }
+        accessUnit.size = convertedSize;
+        return true;
+    }
+
+    private static int readLength(byte[] data, int offset, int nalLengthSize) {
+        switch (nalLengthSize) {
+            case 1:
+                return data[offset] & 0xff;
+            case 2:
+                return (data[offset] & 0xff) << 8 | (data[offset + 1] & 0xff);
+            default:
+                return (data[offset] & 0xff) << 24 | (data[offset + 1] & 0xff) << 16
+                        | (data[offset + 2] & 0xff) << 8 | (data[offset + 3] & 0xff);
+        }
+    }
+
+    private static int getSubSampleSize(CryptoInfo cryptoInfo, int subSample) {
+        int encrypted = cryptoInfo.numBytesOfEncryptedData[subSample];
+        // -1 marks a single subsample encrypted up to the end of the sample.
+        return cryptoInfo.numBytesOfClearData[subSample]
+                + (encrypted < 0 ? Integer.MAX_VALUE / 2 : encrypted);
+    }
+
+    private static boolean isSyncNalUnit(byte header, CodecType codecType) {
+        if (codecType == CodecType.AVC) {
+            return (header & 0x1f) == AVC_NAL_UNIT_TYPE_IDR_PICTURE;
+        } else if (codecType == CodecType.HEVC) {
+            int nalType = (header & 0x7e) >> 1;
+            return nalType == HEVC_NAL_UNIT_TYPE_IDR_PICTURE_W_RADL
+                    || nalType == HEVC_NAL_UNIT_TYPE_IDR_PICTURE_N_LP
+                    || nalType == HEVC_NAL_UNIT_TYPE_CRA_PICTURE;
+        }
+        return false;
+    }
+}
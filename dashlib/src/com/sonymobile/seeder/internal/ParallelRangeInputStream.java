@@ -0,0 +1,327 @@
+/*
+ * Copyright (C) 2014 Sony Mobile Communications Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.sonymobile.seeder.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayDeque;
+
+import android.util.Log;
+
+/**
+ * InputStream over an HTTP resource that downloads adjacent byte ranges over
+ * several connections at once and returns the bytes in order.
+ *
+ * Ranges are handed to the workers in file order and at most one range per
+ * worker is held ahead of the reader, so the range the reader is blocked on
+ * is always the first one being fetched. Its bytes are returned as they
+ * arrive rather than once the whole range is done.
+ *
+ * The range buffers come from the BufferBudget and go back to it once read,
+ * and the ranges are fetched by jobs on the DownloadWorkers of the owner, so
+ * a new stream neither allocates its buffers nor starts threads.
+ */
+public class ParallelRangeInputStream extends InputStream {
+
+    private static final boolean LOGS_ENABLED = Configuration.DEBUG || false;
+
+    private static final String TAG = "ParallelRangeInputStream";
+
+    private final URL mUrl;
+
+    private final String mOwner;
+
+    private final long mEnd;
+
+    private final int mRangeSize;
+
+    private final ArrayDeque<Range> mRanges = new ArrayDeque<Range>();
+
+    private final RangeJob[] mJobs;
+
+    private final byte[] mSingleByte = new byte[1];
+
+    private long mNextRangeOffset;
+
+    private int mHeadPosition;
+
+    private boolean mClosed;
+
+    /**
+     * @param url the resource to download.
+     * @param owner owner of the buffers and workers, typically a track.
+     * @param firstRange connection with the response for the first range,
+     *            from offset.
+     * @param offset position of the first byte to return.
+     * @param end length of the resource, the position after the last byte.
+     * @param rangeSize number of bytes in each range, including the first.
+     * @param connectionCount number of ranges downloaded at once.
+     */
+    public ParallelRangeInputStream(URL url, String owner, HttpURLConnection firstRange,
+            long offset, long end, int rangeSize, int connectionCount) {
+        mUrl = url;
+        mOwner = owner;
+        mEnd = end;
+        mRangeSize = rangeSize;
+
+        // If the buffer is shrunk, the rest of the requested first range is
+        // left unread and fetched as the next range.
+        int firstLength = (int)Math.min(rangeSize, end - offset);
+        byte[] data = BufferBudget.getInstance().acquire(mOwner, firstLength);
+        Range first = new Range(offset, Math.min(firstLength, data.length), data);
+        first.connection = firstRange;
+        mRanges.add(first);
+        mNextRangeOffset = offset + first.length;
+
+        mJobs = new RangeJob[connectionCount];
+        for (int i = 0; i < mJobs.length; i++) {
+            mJobs[i] = new RangeJob();
+            DownloadWorker.execute(mOwner, mJobs[i]);
+        }
+    }
+
+    @Override
+    public synchronized int read() throws IOException {
+        int read = read(mSingleByte, 0, 1);
+        return read == -1 ? -1 : mSingleByte[0] & 0xff;
+    }
+
+    @Override
+    public synchronized int read(byte[] buffer, int byteOffset, int byteCount)
+            throws IOException {
+        if (byteCount == 0) {
+            return 0;
+        }
+
+        while (true) {
+            if (mClosed) {
+                throw new IOException("Stream is closed");
+            }
+
+            Range head = mRanges.peekFirst();
+            if (head == null && mNextRangeOffset >= mEnd) {
+                return -1;
+            }
+            int available = head != null ? head.filled - mHeadPosition : 0;
+            if (available > 0) {
+                int read = Math.min(byteCount, available);
+                System.arraycopy(head.data, mHeadPosition, buffer, byteOffset, read);
+                mHeadPosition += read;
+                if (mHeadPosition == head.length) {
+                    mRanges.removeFirst();
+                    mHeadPosition = 0;
+                    // Fully written, nothing refers to the buffer anymore.
+                    BufferBudget.getInstance().release(mOwner, head.data, true);
+                    // A slot ahead of the reader is free, schedule the next range.
+                    notifyAll();
+                }
+                return read;
+            }
+
+            if (head != null && head.failed) {
+                throw new IOException("Range at " + head.offset + " failed");
+            }
+
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted");
+            }
+        }
+    }
+
+    @Override
+    public synchronized int available() {
+        Range head = mRanges.peekFirst();
+        return head != null ? head.filled - mHeadPosition : 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            notifyAll();
+
+            BufferBudget budget = BufferBudget.getInstance();
+            for (Range range : mRanges) {
+                // A job may still be writing to a range it has not finished.
+                budget.release(mOwner, range.data, !range.taken || range.filled == range.length);
+            }
+            mRanges.clear();
+        }
+
+        for (RangeJob job : mJobs) {
+            job.cancel();
+        }
+    }
+
+    /**
+     * Returns the next range for a worker, blocking while the workers are a
+     * full window ahead of the reader. Returns null once closed or when the
+     * whole resource has been scheduled.
+     */
+    private synchronized Range takeRange() throws InterruptedException {
+        while (true) {
+            if (mClosed) {
+                return null;
+            }
+
+            for (Range range : mRanges) {
+                if (!range.taken) {
+                    range.taken = true;
+                    return range;
+                }
+            }
+
+            if (mNextRangeOffset >= mEnd) {
+                return null;
+            }
+
+            if (mRanges.size() <= mJobs.length) {
+                int length = (int)Math.min(mRangeSize, mEnd - mNextRangeOffset);
+                byte[] data = BufferBudget.getInstance().acquire(mOwner, length);
+                // Under memory pressure the range shrinks to the buffer.
+                Range range = new Range(mNextRangeOffset, Math.min(length, data.length), data);
+                mNextRangeOffset += range.length;
+                range.taken = true;
+                mRanges.addLast(range);
+                return range;
+            }
+
+            wait();
+        }
+    }
+
+    private synchronized void onProgress(Range range, int filled, boolean failed) {
+        range.filled = filled;
+        range.failed = failed;
+        notifyAll();
+    }
+
+    private static class Range {
+
+        final long offset;
+
+        final int length;
+
+        /** Buffer from the budget, may be larger than length. */
+        final byte[] data;
+
+        /** Connection already fetching the range, set for the first range only. */
+        HttpURLConnection connection;
+
+        boolean taken;
+
+        int filled;
+
+        boolean failed;
+
+        Range(long offset, int length, byte[] data) {
+            this.offset = offset;
+            this.length = length;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Fetches ranges until the stream is closed or fully scheduled. Runs on a
+     * shared worker, so it is stopped by closing its connection rather than
+     * by interrupting the thread.
+     */
+    private class RangeJob implements Runnable {
+
+        private volatile HttpURLConnection mConnection;
+
+        private volatile boolean mCancelled;
+
+        public void cancel() {
+            mCancelled = true;
+            HttpURLConnection connection = mConnection;
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                Range range;
+                while (!mCancelled && (range = takeRange()) != null) {
+                    fetch(range);
+                }
+            } catch (InterruptedException e) {
+                // Closed.
+            }
+        }
+
+        private void fetch(Range range) {
+            HttpKeepAlive keepAlive = HttpKeepAlive.getInstance();
+            HttpURLConnection connection = range.connection;
+            InputStream in = null;
+            int filled = 0;
+            try {
+                if (connection != null) {
+                    mConnection = connection;
+                    if (mCancelled) {
+                        throw new IOException("Cancelled");
+                    }
+                    in = connection.getInputStream();
+                } else {
+                    connection = keepAlive.open(mUrl);
+                    mConnection = connection;
+                    if (mCancelled) {
+                        throw new IOException("Cancelled");
+                    }
+                    connection.setRequestProperty("Accept-Encoding", "identity");
+                    connection.setRequestProperty("Range", "bytes=" + range.offset + "-"
+                            + (range.offset + range.length - 1));
+                    if (connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+                        throw new IOException("Range not supported by server");
+                    }
+                    in = connection.getInputStream();
+                }
+
+                while (filled < range.length && !mCancelled) {
+                    int read = in.read(range.data, filled, range.length - filled);
+                    if (read == -1) {
+                        throw new IOException("End of stream inside range");
+                    }
+                    filled += read;
+                    onProgress(range, filled, false);
+                }
+                in.close();
+                keepAlive.release(connection, filled == range.length);
+            } catch (IOException e) {
+                if (LOGS_ENABLED && !mCancelled) {
+                    Log.e(TAG, "Failed to download range at " + range.offset, e);
+                }
+                if (connection != null) {
+                    connection.disconnect();
+                }
+                onProgress(range, filled, true);
+            } finally {
+                mConnection = null;
+            }
+        }
+    }
+}
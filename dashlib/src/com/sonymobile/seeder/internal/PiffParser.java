@@ -20,15 +20,11 @@ import java.io.EOFException;
 import java.io.FileDescriptor;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
 
-import android.media.MediaCodec;
-import android.media.MediaCodec.CryptoInfo;
 import android.media.MediaFormat;
 import android.util.Log;
 
 import com.sonymobile.seeder.MetaData;
-import com.sonymobile.seeder.TrackInfo.TrackType;
 
 public class PiffParser extends ISOBMFFParser {
 
@@ -143,48 +139,8 @@ public class PiffParser extends ISOBMFFParser {
                         try {
                             int sampleCount = mDataSource.readInt();
 
-                            ArrayList<CryptoInfo> cryptoInfos =
-                                    new ArrayList<CryptoInfo>(sampleCount);
-
-                            for (int i = 0; i < sampleCount; i++) {
-                                CryptoInfo info = new CryptoInfo();
-                                info.mode = MediaCodec.CRYPTO_MODE_AES_CTR;
-                                info.iv = new byte[16];
-                                info.key = kID;
-                                if (ivSize == 16) {
-                                    mDataSource.read(info.iv);
-                                } else {
-                                    // pad IV data to 128 bits
-                                    byte[] iv = new byte[8];
-                                    mDataSource.read(iv);
-                                    System.arraycopy(iv, 0, info.iv, 0, 8);
-                                }
-                                if ((versionFlags & 0x00000002) > 0) {
-                                    short subSampleCount = mDataSource.readShort();
-                                    info.numSubSamples = subSampleCount;
-                                    info.numBytesOfClearData = new int[subSampleCount];
-                                    info.numBytesOfEncryptedData = new int[subSampleCount];
-                                    for (int j = 0; j < subSampleCount; j++) {
-                                        info.numBytesOfClearData[j] = mDataSource.readShort();
-                                        info.numBytesOfEncryptedData[j] = mDataSource.readInt();
-                                    }
-                                } else {
-                                    info.numSubSamples = 1;
-                                    info.numBytesOfClearData = new int[1];
-                                    info.numBytesOfClearData[0] = 0;
-                                    info.numBytesOfEncryptedData = new int[1];
-                                    info.numBytesOfEncryptedData[0] = -1;
-                                }
-
-                                if (info.numBytesOfClearData[0] == 0 &&
-                                        mCurrentTrack.getTrackType() == TrackType.VIDEO) {
-                                    info.iv[15] = (byte)mNALLengthSize;
-                                }
-
-                                cryptoInfos.add(info);
-                            }
-                            mCurrentTrack.addCryptoInfos(cryptoInfos);
-
+                            parseSampleEncryptionEntries(versionFlags, sampleCount, ivSize,
+                                    kID);
                         } catch (EOFException e) {
                             if (LOGS_ENABLED) Log.e(TAG, "Error parsing 'senc' uuid box", e);
 
@@ -222,46 +178,8 @@ public class PiffParser extends ISOBMFFParser {
 
                     int sampleCount = mDataSource.readInt();
 
-                    ArrayList<CryptoInfo> cryptoInfos = new ArrayList<CryptoInfo>(sampleCount);
-
-                    for (int i = 0; i < sampleCount; i++) {
-                        CryptoInfo info = new CryptoInfo();
-                        info.mode = MediaCodec.CRYPTO_MODE_AES_CTR;
-                        info.iv = new byte[16];
-                        if (mCurrentTrack.mDefaultIVSize == 16) {
-                            mDataSource.read(info.iv);
-                        } else {
-                            // pad IV data to 128 bits
-                            byte[] iv = new byte[8];
-                            mDataSource.read(iv);
-                            System.arraycopy(iv, 0, info.iv, 0, 8);
-                        }
-                        if ((versionFlags & 0x00000002) > 0) {
-                            short subSampleCount = mDataSource.readShort();
-                            info.numSubSamples = subSampleCount;
-                            info.numBytesOfClearData = new int[subSampleCount];
-                            info.numBytesOfEncryptedData = new int[subSampleCount];
-                            for (int j = 0; j < subSampleCount; j++) {
-                                info.numBytesOfClearData[j] = mDataSource.readShort();
-                                info.numBytesOfEncryptedData[j] = mDataSource.readInt();
-                            }
-                        } else {
-                            info.numSubSamples = 1;
-                            info.numBytesOfClearData = new int[1];
-                            info.numBytesOfClearData[0] = 0;
-                            info.numBytesOfEncryptedData = new int[1];
-                            info.numBytesOfEncryptedData[0] = -1;
-                        }
-
-                        if (info.numBytesOfClearData[0] == 0 && mCurrentTrack
-                                .getTrackType() == TrackType.VIDEO) {
-                            info.iv[15] = (byte)mNALLengthSize;
-                        }
-
-                        cryptoInfos.add(info);
-                    }
-
-                    mCurrentTrack.addCryptoInfos(cryptoInfos);
+                    parseSampleEncryptionEntries(versionFlags, sampleCount,
+                            mCurrentTrack.mDefaultIVSize, null);
                 } catch (EOFException e) {
                     if (LOGS_ENABLED) {
                         Log.e(TAG, "Error parsing 'senc' box", e);
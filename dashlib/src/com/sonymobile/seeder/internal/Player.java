@@ -36,6 +36,8 @@ import android.os.SystemClock;
 import android.util.Log;
 import android.view.Surface;
 
+import com.sonymobile.common.RelayProtocol;
+import com.sonymobile.common.RelayServer;
 import com.sonymobile.seeder.BandwidthEstimator;
 import com.sonymobile.seeder.MediaError;
 import com.sonymobile.seeder.MediaPlayer.Statistics;
@@ -145,6 +147,8 @@ public final class Player {
 
     private MediaSource mSource;
 
+    private RelayServer mRelayServer;
+
     private Handler mCallbacks;
 
     private float mLeftVolume = -1;
@@ -531,6 +535,10 @@ public final class Player {
                     if (msg.obj != null) {
                         thiz.mPrepareHandler = (Handler)msg.obj;
                     }
+                    if (thiz.mRelayServer == null) {
+                        thiz.mRelayServer = new RelayServer();
+                        thiz.mRelayServer.start();
+                    }
                     if (thiz.mDataSourceFd != null) {
                         thiz.mSource = new SimpleSource(thiz.mDataSourceFd, thiz.mDataSourceOffset,
                                 thiz.mDataSourceLength, thiz.mEventHandler);
@@ -598,7 +606,8 @@ public final class Player {
 
                         if (audioFormat != null) {
                             thiz.mAudioThread = new AudioThread(audioFormat, thiz.mSource,
-                                    thiz.mAudioSessionId, thiz.mEventHandler, thiz.mDrmSession);
+                                    thiz.mAudioSessionId, thiz.mEventHandler, thiz.mDrmSession,
+                                    thiz.mRelayServer);
                             if (thiz.mLeftVolume != -1 && thiz.mRightVolume != -1) {
                                 thiz.mAudioThread.setVolume(thiz.mLeftVolume, thiz.mRightVolume);
                             }
@@ -621,7 +630,7 @@ public final class Player {
                                 thiz.mVideoThread = new VideoThread(videoFormat, thiz.mSource,
                                         thiz.mSurface, thiz.mClockSource, thiz.mEventHandler,
                                         thiz.mDrmSession, thiz.mVideoScalingMode,
-                                        thiz.mCustomVideoMediaFormatParams);
+                                        thiz.mCustomVideoMediaFormatParams, thiz.mRelayServer);
 
                                 if (thiz.mVideoWidth != 0 || thiz.mVideoHeight != 0) {
                                     // We have already found a video size,
@@ -643,7 +652,7 @@ public final class Player {
                         if (subtitleFormat != null) {
                             thiz.mSubtitleThread = new
                                     SubtitleThread(thiz.mSource, thiz.mClockSource,
-                                            thiz.mEventHandler);
+                                            thiz.mEventHandler, thiz.mRelayServer);
                         }
                     }
 
@@ -660,6 +669,7 @@ public final class Player {
                         Message nMsg = thiz.mEventHandler.obtainMessage(MSG_SCAN_SOURCES);
                         thiz.mEventHandler.sendMessageDelayed(nMsg, 100);
                     } else {
+                        thiz.announceFormats();
                         sendEmptyMessageAtTime(MSG_WAIT_FOR_SETUP_COMPLETE,
                                 SystemClock.uptimeMillis() + 50);
                     }
@@ -794,6 +804,10 @@ public final class Player {
                     if (thiz.mSource != null) {
                         thiz.mSource.release();
                     }
+                    if (thiz.mRelayServer != null) {
+                        thiz.mRelayServer.stop();
+                        thiz.mRelayServer = null;
+                    }
                     if (thiz.mDrmSession != null) {
                         thiz.mDrmSession.close();
                         thiz.mDrmSession = null;
@@ -849,7 +863,8 @@ public final class Player {
                                     thiz.mSubtitleThread.stop();
                                 }
                                 thiz.mSubtitleThread = new SubtitleThread(thiz.mSource,
-                                        thiz.mClockSource, thiz.mEventHandler);
+                                        thiz.mClockSource, thiz.mEventHandler,
+                                        thiz.mRelayServer);
                                 thiz.mSubtitleThread.start();
                             }
                         } else {
@@ -1057,7 +1072,7 @@ public final class Player {
                                     && thiz.mClockSource != null) {
                                 thiz.mSubtitleThread = new
                                         SubtitleThread(thiz.mSource, thiz.mClockSource,
-                                                thiz.mEventHandler);
+                                                thiz.mEventHandler, thiz.mRelayServer);
                                 thiz.mSubtitleThread.start();
                             } else if (thiz.mSubtitleThread != null && !haveSubtitle) {
                                 thiz.mSubtitleThread.stop();
@@ -1093,6 +1108,31 @@ public final class Player {
         }
     }
 
+    private void announceFormats() {
+        // Peers have no source of their own and set up their codecs and DRM
+        // from these announcements, a null format tells them the track is
+        // absent.
+        MetaData fileMeta = mSource.getMetaData();
+        byte[] drmSystemId = null;
+        byte[] drmInitData = null;
+        if (fileMeta.containsKey(MetaData.KEY_DRM_UUID)) {
+            drmSystemId = fileMeta.getByteBuffer(MetaData.KEY_DRM_UUID);
+            if (fileMeta.containsKey(MetaData.KEY_DRM_PSSH_DATA)) {
+                drmInitData = fileMeta.getByteBuffer(MetaData.KEY_DRM_PSSH_DATA);
+            }
+        }
+
+        mRelayServer.setFormat(RelayProtocol.TRACK_AUDIO,
+                mAudioThread != null ? mSource.getFormat(TrackType.AUDIO) : null,
+                drmSystemId, drmInitData);
+        mRelayServer.setFormat(RelayProtocol.TRACK_VIDEO,
+                mVideoThread != null ? mSource.getFormat(TrackType.VIDEO) : null,
+                drmSystemId, drmInitData);
+        mRelayServer.setFormat(RelayProtocol.TRACK_SUBTITLE,
+                mSubtitleThread != null ? mSource.getFormat(TrackType.SUBTITLE) : null,
+                drmSystemId, drmInitData);
+    }
+
     private void onError(int what) {
         if(!mErrorHasOccured) {
             mErrorHasOccured = true;
@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2014 Sony Mobile Communications Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.sonymobile.seeder.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.util.Log;
+
+/**
+ * Byte ring buffer with one producer, the thread downloading data, and one
+ * consumer, the thread parsing it. Positions are absolute byte counts kept in
+ * volatile fields, so neither side ever takes a lock and nothing is ever
+ * moved within the array.
+ *
+ * Consumed data is not dropped right away. Up to the rewind window of bytes
+ * behind the read position is retained so the consumer can step back, which
+ * is what backward readAt calls on a data source need. The producer may only
+ * overwrite data that has fallen out of that window.
+ *
+ * put() and write() may only be called from the producer thread. All other methods that
+ * move positions may only be called from the consumer thread.
+ */
+public class RingBuffer {
+
+    private static final boolean LOGS_ENABLED = Configuration.DEBUG || false;
+
+    private static final String TAG = "RingBuffer";
+
+    /**
+     * Default part of the buffer, as a divisor, retained behind the read
+     * position for rewinding.
+     */
+    private static final int DEFAULT_REWIND_WINDOW_DIVISOR = 5;
+
+    private final byte[] mByteBuffer;
+
+    private final int mCapacity;
+
+    private final int mRewindWindow;
+
+    /** Total number of bytes written, only updated by the producer. */
+    private volatile long mWritePosition;
+
+    /** Position of the next byte to read, only updated by the consumer. */
+    private volatile long mReadPosition;
+
+    /** Oldest byte still retained, only updated by the consumer. */
+    private volatile long mDiscardPosition;
+
+    private volatile boolean mClosed = false;
+
+    public RingBuffer(int size) {
+        this(size, size / DEFAULT_REWIND_WINDOW_DIVISOR);
+    }
+
+    /**
+     * @param size capacity in bytes.
+     * @param rewindWindow number of consumed bytes to retain for rewind.
+     */
+    public RingBuffer(int size, int rewindWindow) {
+        this(new byte[size], size, rewindWindow);
+    }
+
+    /**
+     * Creates a ring over the first capacity bytes of storage, with the
+     * default rewind window.
+     */
+    public RingBuffer(byte[] storage, int capacity) {
+        this(storage, capacity, capacity / DEFAULT_REWIND_WINDOW_DIVISOR);
+    }
+
+    private RingBuffer(byte[] storage, int capacity, int rewindWindow) {
+        mByteBuffer = storage;
+        mCapacity = Math.min(capacity, storage.length);
+        mRewindWindow = Math.min(rewindWindow, mCapacity);
+    }
+
+    public void close() {
+        mClosed = true;
+    }
+
+    public long skip(int byteCount) {
+        if (mClosed) {
+            if (LOGS_ENABLED) Log.e(TAG, "Can't skip, buffer is closed!");
+            return -1;
+        }
+
+        int bytesSkipped = Math.min(byteCount, available());
+        if (bytesSkipped <= 0) {
+            return 0;
+        }
+
+        advanceReadPosition(mReadPosition + bytesSkipped);
+        return bytesSkipped;
+    }
+
+    public int available() {
+        if (mClosed) {
+            if (LOGS_ENABLED) Log.e(TAG, "Can't check availble, buffer is closed!");
+            return 0;
+        }
+
+        return (int)Math.max(0, mWritePosition - mReadPosition);
+    }
+
+    public int getBufferSize() {
+        if (mClosed) {
+            if (LOGS_ENABLED) Log.e(TAG, "Can't get buffer size, buffer is closed!");
+            return 0;
+        }
+
+        return mCapacity;
+    }
+
+    /**
+     * Returns the next byte, sign extended, or 0 if no data is buffered.
+     */
+    public int get() {
+        if (mClosed) {
+            if (LOGS_ENABLED) Log.e(TAG, "Can't get, buffer is closed!");
+            return -1;
+        }
+
+        long readPosition = mReadPosition;
+        if (mWritePosition - readPosition < 1) {
+            return 0;
+        }
+
+        byte data = mByteBuffer[(int)(readPosition % mCapacity)];
+        advanceReadPosition(readPosition + 1);
+        return data;
+    }
+
+    public int get(byte[] buffer, int byteOffset, int byteCount) {
+        if (mClosed) {
+            if (LOGS_ENABLED) Log.e(TAG, "Can't get(array), buffer is closed!");
+            return -1;
+        }
+
+        int bytesRead = Math.min(byteCount, available());
+        if (bytesRead <= 0) {
+            return 0;
+        }
+
+        long readPosition = mReadPosition;
+        copyOut(readPosition, buffer, byteOffset, bytesRead);
+        advanceReadPosition(readPosition + bytesRead);
+        return bytesRead;
+    }
+
+    /**
+     * Stores as much of the data as there is room for. Only to be called from
+     * the producer thread.
+     *
+     * @return the number of bytes stored, or -1 if the buffer is closed.
+     */
+    public int put(byte[] buffer, int offset, int byteCount) {
+        if (mClosed) {
+            if (LOGS_ENABLED) Log.e(TAG, "Can't put, buffer is closed!");
+            return -1;
+        }
+
+        int savedData = Math.min(byteCount, freeSpace());
+        if (savedData <= 0) {
+            return 0;
+        }
+
+        long writePosition = mWritePosition;
+        int start = (int)(writePosition % mCapacity);
+        int firstPart = Math.min(savedData, mCapacity - start);
+        System.arraycopy(buffer, offset, mByteBuffer, start, firstPart);
+        if (firstPart < savedData) {
+            System.arraycopy(buffer, offset + firstPart, mByteBuffer, 0, savedData - firstPart);
+        }
+        mWritePosition = writePosition + savedData;
+
+        return savedData;
+    }
+
+    /**
+     * Reads up to maxBytes from in straight into the buffer storage, without
+     * wrapping, so a read never needs an intermediate copy. Only to be
+     * called from the producer thread.
+     *
+     * @return the number of bytes stored, 0 if the buffer is full or closed
+     *         and -1 at the end of in.
+     */
+    public int write(InputStream in, int maxBytes) throws IOException {
+        int free = Math.min(maxBytes, freeSpace());
+        if (mClosed || free <= 0) {
+            return 0;
+        }
+
+        long writePosition = mWritePosition;
+        int start = (int)(writePosition % mCapacity);
+        int read = in.read(mByteBuffer, start, Math.min(free, mCapacity - start));
+        if (read > 0) {
+            mWritePosition = writePosition + read;
+        }
+        return read;
+    }
+
+    /**
+     * Returns the number of bytes the producer can store right now.
+     */
+    protected int freeSpace() {
+        long writePosition = mWritePosition;
+        // The consumer may have fast forwarded past the written data.
+        long retainedFrom = Math.min(mDiscardPosition, writePosition);
+        return (int)(mCapacity - (writePosition - retainedFrom));
+    }
+
+    protected boolean canRewind(long bytesToRewind) {
+        return mReadPosition - mDiscardPosition >= bytesToRewind;
+    }
+
+    protected boolean canFastForward(long bytesToFastForward) {
+        return mReadPosition + bytesToFastForward < mWritePosition;
+    }
+
+    /**
+     * Returns true if bytes of data ahead of the read position can be
+     * buffered at the same time.
+     */
+    protected boolean canDataFit(long bytes) {
+        return mCapacity - mRewindWindow >= bytes;
+    }
+
+    /**
+     * Drops retained data behind the read position, making room for the
+     * producer.
+     *
+     * @param bytesToDiscard number of retained bytes to drop, -1 to drop all.
+     */
+    protected void discard(int bytesToDiscard) {
+        long readPosition = mReadPosition;
+        if (bytesToDiscard == -1) {
+            mDiscardPosition = readPosition;
+        } else {
+            mDiscardPosition = Math.min(readPosition, mDiscardPosition + bytesToDiscard);
+        }
+    }
+
+    /**
+     * Moves current read position back rewindBytes bytes, if they are still
+     * retained.
+     *
+     * @param rewindBytes The number of bytes to move backwards in this buffer
+     */
+    protected boolean rewind(long rewindBytes) {
+        if (canRewind(rewindBytes)) {
+            mReadPosition -= rewindBytes;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Moves current read position forward fastForwardBytes bytes. This means
+     * that the read position could be higher than write position, but any calls
+     * to get() while this is the case will return 0, same as when we have no
+     * data buffered.
+     *
+     * @param fastForwardBytes The number of bytes to move forward in this
+     *            buffer
+     */
+    protected void fastForward(long fastForwardBytes) {
+        advanceReadPosition(mReadPosition + fastForwardBytes);
+    }
+
+    private void advanceReadPosition(long readPosition) {
+        mReadPosition = readPosition;
+        long discardPosition = readPosition - mRewindWindow;
+        if (discardPosition > mDiscardPosition) {
+            mDiscardPosition = discardPosition;
+        }
+    }
+
+    private void copyOut(long position, byte[] buffer, int offset, int byteCount) {
+        int start = (int)(position % mCapacity);
+        int firstPart = Math.min(byteCount, mCapacity - start);
+        System.arraycopy(mByteBuffer, start, buffer, offset, firstPart);
+        if (firstPart < byteCount) {
+            System.arraycopy(mByteBuffer, 0, buffer, offset + firstPart, byteCount - firstPart);
+        }
+    }
+}
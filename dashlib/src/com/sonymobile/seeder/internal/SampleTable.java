@@ -18,6 +18,7 @@ package com.sonymobile.seeder.internal;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import android.util.Log;
 
@@ -27,6 +28,13 @@ class SampleTable {
 
     private static final String TAG = "SampleTable";
 
+    /**
+     * Sample count from which the stts, ctts and stsc tables are kept run
+     * length encoded instead of being expanded per sample, about 55 minutes
+     * of 30 fps video or 35 minutes of 48 kHz AAC.
+     */
+    private static final int COMPACT_SAMPLE_COUNT_THRESHOLD = 100000;
+
     ByteBuffer mSttsData;
 
     ByteBuffer mCttsData;
@@ -59,10 +67,65 @@ class SampleTable {
 
     private long[] mSampleDurationUs;
 
+    private boolean mForceCompact;
+
+    private boolean mCompact;
+
+    // Sample indices of the sync samples and the running maximum of their
+    // timestamps, which is sorted and binary searched when seeking. Null when
+    // every sample is a sync sample and the timestamps themselves are sorted.
+    private int[] mSyncSampleIndex;
+
+    private long[] mSyncSampleTimeUs;
+
+    // Run length encoded tables used in compact mode, indexed by run.
+    private int mConstantSampleSize;
+
+    private int[] mSttsFirstSample;
+
+    private long[] mSttsFirstTimeUs;
+
+    private long[] mSttsDeltaUs;
+
+    private int[] mCttsFirstSample;
+
+    private int[] mCttsOffsetUs;
+
+    private int[] mStscFirstSample;
+
+    private int[] mStscFirstChunk;
+
+    private int[] mStscSamplesPerChunk;
+
+    private int[] mStscDescriptionIndex;
+
+    // The chunk whose sample offsets were last materialized in compact mode.
+    private int mChunkFirstSample;
+
+    private int mChunkSampleCount;
+
+    private int mChunkDescriptionIndex;
+
+    private long[] mChunkSampleOffset;
+
     public SampleTable() {
 
     }
 
+    /**
+     * Keeps the stts, ctts and stsc tables run length encoded whatever the
+     * sample count. Per sample values are then computed on access, and the
+     * sample offsets of a chunk when one of its samples is first accessed.
+     * Takes effect on the next buildSampleTable.
+     */
+    public void setCompactMode(boolean compact) {
+        mForceCompact = compact;
+    }
+
+    public boolean isCompact() {
+        return mCompact;
+    }
+
     public boolean isUsingLongChunkOffsets() {
         return mUseLongChunkOffsets;
     }
@@ -98,26 +161,53 @@ class SampleTable {
     }
 
     public long getTimestampUs(int i) {
+        if (mCompact) {
+            int run = findRun(mSttsFirstSample, i);
+            long timestampUs = mSttsFirstTimeUs[run]
+                    + (i - mSttsFirstSample[run]) * mSttsDeltaUs[run];
+            if (mCttsFirstSample != null && mCttsFirstSample.length > 0) {
+                timestampUs += mCttsOffsetUs[findRun(mCttsFirstSample, i)];
+            }
+            return timestampUs;
+        }
         return mSampleTimestampUs[i];
     }
 
     public long getDurationUs(int i) {
+        if (mCompact) {
+            return mSttsDeltaUs[findRun(mSttsFirstSample, i)];
+        }
         return mSampleDurationUs[i];
     }
 
     public long getOffset(int i) {
+        if (mCompact) {
+            int index = loadChunk(i);
+            return mChunkSampleOffset[index];
+        }
         return mSampleOffset[i];
     }
 
     public int getSize(int i) {
+        if (mCompact) {
+            return mConstantSampleSize != 0 ? mConstantSampleSize
+                    : mStszData.getInt(12 + 4 * i);
+        }
         return mSampleSize[i];
     }
 
     public int getSampleDescriptionIndex(int i) {
+        if (mCompact) {
+            loadChunk(i);
+            return mChunkDescriptionIndex;
+        }
         return mSampleDescriptionIndex[i];
     }
 
     public boolean isSyncSample(int i) {
+        if (mCompact) {
+            return mStssData == null || Arrays.binarySearch(mSyncSampleIndex, i) >= 0;
+        }
         return mSampleIsSyncSample[i];
     }
 
@@ -214,6 +304,13 @@ class SampleTable {
         if (mSampleCount == 0) {
             return false;
         }
+
+        mCompact = mForceCompact || mSampleCount >= COMPACT_SAMPLE_COUNT_THRESHOLD;
+        if (mCompact) {
+            mConstantSampleSize = sampleSize;
+            return buildCompactSampleTable();
+        }
+
         mSampleSize = new int[mSampleCount];
         mSampleDescriptionIndex = new int[mSampleCount];
         mSampleOffset = new long[mSampleCount];
@@ -351,9 +448,214 @@ class SampleTable {
             }
         }
         mDurationUs = sttsCurrentSampleTimeToSample;
+        buildSyncSampleIndex();
+        return true;
+    }
+
+    /**
+     * Decodes the run length tables into per run arrays, leaving the stsz
+     * and stco tables in their buffers. The buffers must be positioned after
+     * the stsz header.
+     */
+    private boolean buildCompactSampleTable() {
+        if (mConstantSampleSize == 0 && mStszData.remaining() / 4 < mSampleCount) {
+            if (LOGS_ENABLED) Log.e(TAG, "stsz shorter than sample count");
+            return false;
+        }
+
+        // stts data
+        mSttsData.getInt(); // version and flags
+        int sttsEntryCount = Math.min(mSttsData.getInt(), mSttsData.remaining() / 8);
+        mSttsFirstSample = new int[sttsEntryCount];
+        mSttsFirstTimeUs = new long[sttsEntryCount];
+        mSttsDeltaUs = new long[sttsEntryCount];
+        int sttsRunCount = 0;
+        long sampleNumber = 0;
+        long timeUs = 0;
+        for (int i = 0; i < sttsEntryCount && sampleNumber < mSampleCount; i++) {
+            int sampleCount = mSttsData.getInt(); // sample_count
+            long deltaUs = (long)mSttsData.getInt() * 1000000 / mTimeScale; // sample_delta
+            if (sampleCount == 0) {
+                continue;
+            }
+            sampleCount = (int)Math.min(0xFFFFFFFFL & sampleCount, mSampleCount - sampleNumber);
+            mSttsFirstSample[sttsRunCount] = (int)sampleNumber;
+            mSttsFirstTimeUs[sttsRunCount] = timeUs;
+            mSttsDeltaUs[sttsRunCount] = deltaUs;
+            sttsRunCount++;
+            sampleNumber += sampleCount;
+            timeUs += sampleCount * deltaUs;
+        }
+        if (sampleNumber < mSampleCount) {
+            if (LOGS_ENABLED) Log.e(TAG, "stts shorter than sample count");
+            return false;
+        }
+        mSttsFirstSample = Arrays.copyOf(mSttsFirstSample, sttsRunCount);
+        mSttsFirstTimeUs = Arrays.copyOf(mSttsFirstTimeUs, sttsRunCount);
+        mSttsDeltaUs = Arrays.copyOf(mSttsDeltaUs, sttsRunCount);
+        mDurationUs = timeUs;
+
+        // ctts data
+        if (mCttsData != null) {
+            mCttsData.getInt(); // version and flags
+            int cttsEntryCount = Math.min(mCttsData.getInt(), mCttsData.remaining() / 8);
+            mCttsFirstSample = new int[cttsEntryCount];
+            mCttsOffsetUs = new int[cttsEntryCount];
+            int cttsRunCount = 0;
+            sampleNumber = 0;
+            for (int i = 0; i < cttsEntryCount && sampleNumber < mSampleCount; i++) {
+                int sampleCount = mCttsData.getInt(); // sample_count
+                int sampleOffset = mCttsData.getInt(); // sample_offset
+                if (sampleCount == 0) {
+                    continue;
+                }
+                mCttsFirstSample[cttsRunCount] = (int)sampleNumber;
+                mCttsOffsetUs[cttsRunCount] =
+                        (int)((long)sampleOffset * 1000000 / mTimeScale);
+                cttsRunCount++;
+                sampleNumber += 0xFFFFFFFFL & sampleCount;
+            }
+            mCttsFirstSample = Arrays.copyOf(mCttsFirstSample, cttsRunCount);
+            mCttsOffsetUs = Arrays.copyOf(mCttsOffsetUs, cttsRunCount);
+        }
+
+        // stco data
+        mStcoData.getInt(); // version and flags
+        int chunkCount = Math.min(mStcoData.getInt(),
+                mStcoData.remaining() / (mUseLongChunkOffsets ? 8 : 4)); // entry_count
+
+        // stsc data, the first entry always starts at the first chunk
+        mStscData.getInt(); // version and flags
+        int stscEntryCount = Math.min(mStscData.getInt(), mStscData.remaining() / 12);
+        mStscFirstSample = new int[stscEntryCount];
+        mStscFirstChunk = new int[stscEntryCount];
+        mStscSamplesPerChunk = new int[stscEntryCount];
+        mStscDescriptionIndex = new int[stscEntryCount];
+        int stscRunCount = 0;
+        sampleNumber = 0;
+        for (int i = 0; i < stscEntryCount && sampleNumber < mSampleCount; i++) {
+            int firstChunk = mStscData.getInt(); // first_chunk
+            if (i == 0) {
+                firstChunk = 1;
+            }
+            int samplesPerChunk = mStscData.getInt(); // samples_per_chunk
+            int sampleDescriptionIndex = mStscData.getInt(); // sample_description_index
+            int nextFirstChunk = chunkCount + 1;
+            if (i + 1 < stscEntryCount) {
+                nextFirstChunk = Math.min(mStscData.getInt(mStscData.position()), nextFirstChunk);
+            }
+            if (samplesPerChunk <= 0 || nextFirstChunk <= firstChunk) {
+                continue;
+            }
+            mStscFirstSample[stscRunCount] = (int)sampleNumber;
+            mStscFirstChunk[stscRunCount] = firstChunk;
+            mStscSamplesPerChunk[stscRunCount] = samplesPerChunk;
+            mStscDescriptionIndex[stscRunCount] = sampleDescriptionIndex;
+            stscRunCount++;
+            sampleNumber += (long)(nextFirstChunk - firstChunk) * samplesPerChunk;
+        }
+        if (sampleNumber < mSampleCount) {
+            if (LOGS_ENABLED) Log.e(TAG, "stsc and stco shorter than sample count");
+            return false;
+        }
+        mStscFirstSample = Arrays.copyOf(mStscFirstSample, stscRunCount);
+        mStscFirstChunk = Arrays.copyOf(mStscFirstChunk, stscRunCount);
+        mStscSamplesPerChunk = Arrays.copyOf(mStscSamplesPerChunk, stscRunCount);
+        mStscDescriptionIndex = Arrays.copyOf(mStscDescriptionIndex, stscRunCount);
+        mChunkSampleCount = 0;
+
+        buildSyncSampleIndex();
         return true;
     }
 
+    /**
+     * Returns the run of firstSamples, sorted start samples of the runs,
+     * that sample falls in.
+     */
+    private static int findRun(int[] firstSamples, int sample) {
+        int run = Arrays.binarySearch(firstSamples, sample);
+        return run >= 0 ? run : Math.max(-run - 2, 0);
+    }
+
+    /**
+     * Materializes the sample offsets of the chunk holding sample unless it
+     * is already loaded, returns the index of sample in mChunkSampleOffset.
+     */
+    private int loadChunk(int sample) {
+        int index = sample - mChunkFirstSample;
+        if (index >= 0 && index < mChunkSampleCount) {
+            return index;
+        }
+
+        int run = findRun(mStscFirstSample, sample);
+        int samplesPerChunk = mStscSamplesPerChunk[run];
+        int chunkInRun = (sample - mStscFirstSample[run]) / samplesPerChunk;
+        int chunk = mStscFirstChunk[run] - 1 + chunkInRun;
+        int firstSample = mStscFirstSample[run] + chunkInRun * samplesPerChunk;
+        int sampleCount = Math.min(samplesPerChunk, mSampleCount - firstSample);
+
+        // STCO should be interpreted as an unsigned int.
+        long offset = mUseLongChunkOffsets ? mStcoData.getLong(8 + 8 * chunk)
+                : 0xFFFFFFFFL & mStcoData.getInt(8 + 4 * chunk);
+        if (mChunkSampleOffset == null || mChunkSampleOffset.length < sampleCount) {
+            mChunkSampleOffset = new long[sampleCount];
+        }
+        for (int i = 0; i < sampleCount; i++) {
+            mChunkSampleOffset[i] = offset;
+            offset += getSize(firstSample + i);
+        }
+        mChunkFirstSample = firstSample;
+        mChunkSampleCount = sampleCount;
+        mChunkDescriptionIndex = mStscDescriptionIndex[run];
+        return sample - firstSample;
+    }
+
+    private void buildSyncSampleIndex() {
+        mSyncSampleIndex = null;
+        mSyncSampleTimeUs = null;
+        if (mStssData == null && mCttsData == null) {
+            // All samples are sync samples in decoding order, findSampleIndex
+            // searches their timestamps directly.
+            return;
+        }
+
+        int[] syncSamples;
+        if (mStssData == null) {
+            syncSamples = new int[mSampleCount];
+            for (int i = 0; i < mSampleCount; i++) {
+                syncSamples[i] = i;
+            }
+        } else {
+            mStssData.rewind();
+            mStssData.getInt(); // version and flags
+            int stssEntryCount = Math.min(mStssData.getInt(), mStssData.remaining() / 4);
+            syncSamples = new int[stssEntryCount];
+            int syncSampleCount = 0;
+            int previousSample = -1;
+            for (int i = 0; i < stssEntryCount; i++) {
+                int sample = mStssData.getInt() - 1; // sample_number
+                if (sample > previousSample && sample < mSampleCount) {
+                    syncSamples[syncSampleCount++] = sample;
+                    previousSample = sample;
+                }
+            }
+            if (syncSampleCount < stssEntryCount) {
+                syncSamples = Arrays.copyOf(syncSamples, syncSampleCount);
+            }
+        }
+
+        // Composition offsets may reorder the timestamps, seeking stops at the
+        // first sync sample at or after the seek time in decoding order.
+        long[] syncSampleTimeUs = new long[syncSamples.length];
+        long maxTimeUs = Long.MIN_VALUE;
+        for (int i = 0; i < syncSamples.length; i++) {
+            maxTimeUs = Math.max(maxTimeUs, getTimestampUs(syncSamples[i]));
+            syncSampleTimeUs[i] = maxTimeUs;
+        }
+        mSyncSampleIndex = syncSamples;
+        mSyncSampleTimeUs = syncSampleTimeUs;
+    }
+
     public void releaseSampleTable() {
         mSampleSize = null;
         mSampleDescriptionIndex = null;
@@ -361,6 +663,20 @@ class SampleTable {
         mSampleIsSyncSample = null;
         mSampleTimestampUs = null;
         mSampleDurationUs = null;
+        mSyncSampleIndex = null;
+        mSyncSampleTimeUs = null;
+        mSttsFirstSample = null;
+        mSttsFirstTimeUs = null;
+        mSttsDeltaUs = null;
+        mCttsFirstSample = null;
+        mCttsOffsetUs = null;
+        mStscFirstSample = null;
+        mStscFirstChunk = null;
+        mStscSamplesPerChunk = null;
+        mStscDescriptionIndex = null;
+        mChunkSampleOffset = null;
+        mChunkSampleCount = 0;
+        mCompact = false;
     }
 
     public int getSampleCount() {
@@ -372,26 +688,41 @@ class SampleTable {
         mTimeScale = timeScale;
     }
 
+    /**
+     * Returns the index of the last sync sample before the first sync sample
+     * at or after seekTimeUs, or 0 if there is none.
+     */
     public int findSampleIndex(long seekTimeUs) {
-        long sampleTimeUs = 0;
-        int sampleCount = 0;
-        int latestSyncSampleIndex = 0;
-        for (int i = 0; i < mSampleCount; i++) {
-            if (mSampleIsSyncSample[i]) {
-                sampleTimeUs = mSampleTimestampUs[i];
-                if (sampleTimeUs >= seekTimeUs) {
-                    break;
+        if (mSyncSampleIndex == null) {
+            int low = 0;
+            int high = mSampleCount;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (getTimestampUs(mid) < seekTimeUs) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
                 }
-                latestSyncSampleIndex = sampleCount;
             }
-            sampleCount++;
+            return Math.max(low - 1, 0);
+        }
+
+        int low = 0;
+        int high = mSyncSampleTimeUs.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mSyncSampleTimeUs[mid] < seekTimeUs) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
         }
-        return latestSyncSampleIndex;
+        return low > 0 ? mSyncSampleIndex[low - 1] : 0;
     }
 
     public long getTimeOfSample(int sampleIndex) {
         if (sampleIndex < mSampleCount) {
-            return mSampleTimestampUs[sampleIndex];
+            return getTimestampUs(sampleIndex);
         }
         return -1;
     }
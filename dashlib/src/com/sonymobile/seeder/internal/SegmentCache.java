@@ -0,0 +1,667 @@
+/*
+ * Copyright (C) 2014 Sony Mobile Communications Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.sonymobile.seeder.internal;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import android.util.Log;
+
+/**
+ * Persistent cache of downloaded byte ranges, shared by every data source in
+ * the process. Entries are keyed by URL and byte range and each one is kept
+ * in a file of its own. The least recently used entries are evicted once the
+ * total size goes above the cap.
+ *
+ * The cache is disabled until both a directory and a size are set. An index
+ * file lists the entries in LRU order. It is loaded on a worker thread, and
+ * lookups miss until it has been loaded.
+ *
+ * Ranges are written while they are downloaded, see
+ * {@link #wrap(InputStream, HttpURLConnection, String, long, int, long)},
+ * and only become entries once they are complete. Each entry keeps the
+ * ETag, Last-Modified and length of the resource, and is fresh for as long
+ * as the Cache-Control or Expires headers allow, DISK_CACHE_MAX_AGE_MS if
+ * there are none. A stale entry is revalidated with a conditional HEAD
+ * request before it is used, and dropped if the resource has changed.
+ */
+public final class SegmentCache {
+
+    private static final boolean LOGS_ENABLED = Configuration.DEBUG || false;
+
+    private static final String TAG = "SegmentCache";
+
+    private static final String INDEX_FILE_NAME = "index";
+
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    private static SegmentCache sInstance;
+
+    /** Entries in access order, least recently used first. */
+    private final LinkedHashMap<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    private File mDirectory;
+
+    private boolean mLoaded;
+
+    private boolean mLoading;
+
+    private long mMaxSize = Configuration.DEFAULT_DISK_CACHE_SIZE;
+
+    private long mSize;
+
+    private long mNextFileId;
+
+    private int mHitCount;
+
+    private int mMissCount;
+
+    private long mEvictedBytes;
+
+    public static synchronized SegmentCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new SegmentCache();
+        }
+        return sInstance;
+    }
+
+    private SegmentCache() {
+    }
+
+    /**
+     * Sets the directory of the cache. Its index is loaded on a worker
+     * thread once the size is set as well.
+     */
+    public synchronized void setDirectory(File directory) {
+        if (directory.equals(mDirectory)) {
+            return;
+        }
+
+        mDirectory = directory;
+        mLoaded = false;
+        mEntries.clear();
+        mSize = 0;
+        mNextFileId = 0;
+        loadIfNeeded();
+    }
+
+    /**
+     * Sets the size cap in bytes, 0 disables the cache. Entries above the
+     * cap are evicted on a worker thread.
+     */
+    public synchronized void setMaxSize(long maxSize) {
+        mMaxSize = maxSize;
+        if (!mLoaded) {
+            loadIfNeeded();
+            return;
+        }
+
+        DownloadWorker.execute(TAG, new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SegmentCache.this) {
+                    if (mLoaded) {
+                        trimToSize();
+                        writeIndex();
+                    }
+                }
+            }
+        });
+    }
+
+    public synchronized boolean isEnabled() {
+        return mLoaded && mMaxSize > 0;
+    }
+
+    /**
+     * Returns the file holding the range, or null if it is not cached. A
+     * stale entry is revalidated with the server first, so this may block
+     * on the network.
+     *
+     * @param offset start of the range, -1 for the beginning.
+     * @param length length of the range, -1 for the rest of the resource.
+     */
+    public File get(String uri, long offset, int length) {
+        String key = getKey(uri, offset, length);
+        Entry entry;
+        File file;
+        synchronized (this) {
+            if (!isEnabled()) {
+                return null;
+            }
+
+            entry = mEntries.get(key);
+            if (entry == null) {
+                mMissCount++;
+                return null;
+            }
+            file = new File(mDirectory, entry.fileName);
+            if (file.length() != entry.length) {
+                // Removed behind our back.
+                remove(key, entry);
+                writeIndex();
+                mMissCount++;
+                return null;
+            }
+            if (System.currentTimeMillis() < entry.expires) {
+                mHitCount++;
+                return file;
+            }
+        }
+
+        long expires = revalidate(uri, entry);
+
+        synchronized (this) {
+            if (mEntries.get(key) != entry) {
+                // Replaced or evicted meanwhile.
+                mMissCount++;
+                return null;
+            }
+            if (expires == -1) {
+                if (LOGS_ENABLED) Log.d(TAG, "Dropping changed " + key);
+                remove(key, entry);
+                writeIndex();
+                mMissCount++;
+                return null;
+            }
+            mEntries.put(key, new Entry(entry.fileName, entry.length, expires,
+                    entry.resourceLength, entry.eTag, entry.lastModified));
+            writeIndex();
+            mHitCount++;
+            return file;
+        }
+    }
+
+    /**
+     * Returns a stream that stores everything read from in as the given
+     * range, once expectedLength bytes have been read. Returns in itself if
+     * the range can't be cached.
+     *
+     * @param connection the connection in is read from, whose headers tell
+     *            how long the range may be used and how to revalidate it.
+     */
+    public InputStream wrap(InputStream in, HttpURLConnection connection, String uri,
+            long offset, int length, long expectedLength) {
+        File tempFile;
+        synchronized (this) {
+            if (!isEnabled() || expectedLength <= 0 || expectedLength > mMaxSize) {
+                return in;
+            }
+            tempFile = new File(mDirectory, Long.toHexString(mNextFileId++) + TEMP_FILE_SUFFIX);
+        }
+
+        long expires = getExpiry(connection);
+        if (expires == -1) {
+            return in;
+        }
+
+        Entry entry = new Entry(null, expectedLength, expires, getResourceLength(connection),
+                connection.getHeaderField("ETag"), connection.getHeaderField("Last-Modified"));
+        try {
+            return new CachingInputStream(in, getKey(uri, offset, length), tempFile, entry);
+        } catch (IOException e) {
+            if (LOGS_ENABLED) Log.w(TAG, "Could not create " + tempFile, e);
+            return in;
+        }
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized long getEvictedBytes() {
+        return mEvictedBytes;
+    }
+
+    private synchronized void commit(String key, File tempFile, Entry pending) {
+        if (!mLoaded || !tempFile.getParentFile().equals(mDirectory)) {
+            tempFile.delete();
+            return;
+        }
+
+        String name = tempFile.getName();
+        File file = new File(mDirectory, name.substring(0, name.length()
+                - TEMP_FILE_SUFFIX.length()));
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            return;
+        }
+
+        Entry previous = mEntries.put(key, new Entry(file.getName(), pending.length,
+                pending.expires, pending.resourceLength, pending.eTag, pending.lastModified));
+        if (previous != null) {
+            mSize -= previous.length;
+            new File(mDirectory, previous.fileName).delete();
+        }
+        mSize += pending.length;
+
+        trimToSize();
+        writeIndex();
+    }
+
+    private void remove(String key, Entry entry) {
+        mEntries.remove(key);
+        new File(mDirectory, entry.fileName).delete();
+        mSize -= entry.length;
+    }
+
+    /**
+     * Starts loading the index if the cache has a directory and a size.
+     * Must be called with the lock held.
+     */
+    private void loadIfNeeded() {
+        if (mDirectory == null || mMaxSize <= 0 || mLoaded || mLoading) {
+            return;
+        }
+
+        mLoading = true;
+        final File directory = mDirectory;
+        DownloadWorker.execute(TAG, new Runnable() {
+            @Override
+            public void run() {
+                load(directory);
+            }
+        });
+    }
+
+    private void load(File directory) {
+        LinkedHashMap<String, Entry> entries = null;
+        if (directory.isDirectory() || directory.mkdirs()) {
+            entries = readIndex(directory);
+        } else {
+            if (LOGS_ENABLED) Log.e(TAG, "Could not create " + directory);
+        }
+
+        synchronized (this) {
+            mLoading = false;
+            if (!directory.equals(mDirectory)) {
+                // Changed while loading.
+                loadIfNeeded();
+                return;
+            }
+            if (entries == null) {
+                return;
+            }
+
+            for (Map.Entry<String, Entry> item : entries.entrySet()) {
+                Entry entry = item.getValue();
+                mEntries.put(item.getKey(), entry);
+                mSize += entry.length;
+                mNextFileId = Math.max(mNextFileId, Long.parseLong(entry.fileName, 16) + 1);
+            }
+            mLoaded = true;
+            trimToSize();
+            writeIndex();
+        }
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Entry>> iterator = mEntries.entrySet().iterator();
+        while (mSize > mMaxSize && iterator.hasNext()) {
+            Entry entry = iterator.next().getValue();
+            iterator.remove();
+            new File(mDirectory, entry.fileName).delete();
+            mSize -= entry.length;
+            mEvictedBytes += entry.length;
+        }
+    }
+
+    /**
+     * Reads the entries listed in the index of directory, oldest first, and
+     * deletes the files that are not listed.
+     */
+    private static LinkedHashMap<String, Entry> readIndex(File directory) {
+        LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>();
+        File index = new File(directory, INDEX_FILE_NAME);
+        BufferedReader reader = null;
+        try {
+            if (index.exists()) {
+                reader = new BufferedReader(new FileReader(index));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    // fileName, length, expires, resourceLength, ETag,
+                    // Last-Modified and key separated by tabs.
+                    String[] fields = line.split("\t", 7);
+                    if (fields.length != 7) {
+                        continue;
+                    }
+                    if (Long.parseLong(fields[0], 16) < 0) {
+                        continue;
+                    }
+                    entries.put(fields[6], new Entry(fields[0], Long.parseLong(fields[1]),
+                            Long.parseLong(fields[2]), Long.parseLong(fields[3]),
+                            fields[4].length() > 0 ? fields[4] : null,
+                            fields[5].length() > 0 ? fields[5] : null));
+                }
+            }
+        } catch (IOException e) {
+            if (LOGS_ENABLED) Log.e(TAG, "Could not read index", e);
+        } catch (NumberFormatException e) {
+            if (LOGS_ENABLED) Log.e(TAG, "Corrupt index", e);
+            entries.clear();
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+
+        // Ranges that never completed and entries the index lost.
+        HashSet<String> listed = new HashSet<String>();
+        listed.add(INDEX_FILE_NAME);
+        for (Entry entry : entries.values()) {
+            listed.add(entry.fileName);
+        }
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!listed.contains(file.getName())) {
+                    file.delete();
+                }
+            }
+        }
+        return entries;
+    }
+
+    private void writeIndex() {
+        File index = new File(mDirectory, INDEX_FILE_NAME);
+        File tempIndex = new File(mDirectory, INDEX_FILE_NAME + TEMP_FILE_SUFFIX);
+        BufferedWriter writer = null;
+        try {
+            writer = new BufferedWriter(new FileWriter(tempIndex));
+            for (Map.Entry<String, Entry> item : mEntries.entrySet()) {
+                Entry entry = item.getValue();
+                writer.write(entry.fileName + "\t" + entry.length + "\t" + entry.expires
+                        + "\t" + entry.resourceLength + "\t" + toField(entry.eTag) + "\t"
+                        + toField(entry.lastModified) + "\t" + item.getKey());
+                writer.newLine();
+            }
+            writer.close();
+            writer = null;
+            if (!tempIndex.renameTo(index)) {
+                if (LOGS_ENABLED) Log.e(TAG, "Could not replace index");
+            }
+        } catch (IOException e) {
+            if (LOGS_ENABLED) Log.e(TAG, "Could not write index", e);
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private static String toField(String value) {
+        return value != null ? value.replace('\t', ' ') : "";
+    }
+
+    private static String getKey(String uri, long offset, int length) {
+        return uri + "@" + Math.max(0, offset) + "+" + length;
+    }
+
+    /**
+     * Asks the server whether the resource of a stale entry has changed.
+     *
+     * @return the new expiry time of the entry, or -1 if it can't be used.
+     */
+    private static long revalidate(String uri, Entry entry) {
+        if (entry.eTag == null && entry.lastModified == null) {
+            return -1;
+        }
+
+        HttpKeepAlive keepAlive = HttpKeepAlive.getInstance();
+        HttpURLConnection connection = null;
+        try {
+            connection = keepAlive.open(new URL(uri));
+            connection.setRequestMethod("HEAD");
+            if (entry.eTag != null) {
+                connection.setRequestProperty("If-None-Match", entry.eTag);
+            }
+            if (entry.lastModified != null) {
+                connection.setRequestProperty("If-Modified-Since", entry.lastModified);
+            }
+
+            int responseCode = connection.getResponseCode();
+            boolean unchanged = responseCode == HttpURLConnection.HTTP_NOT_MODIFIED
+                    || (responseCode == HttpURLConnection.HTTP_OK && isUnchanged(entry,
+                            connection));
+            long expires = unchanged ? getExpiry(connection) : -1;
+            keepAlive.release(connection, true);
+            return expires;
+        } catch (IOException e) {
+            if (LOGS_ENABLED) Log.w(TAG, "Could not revalidate " + uri, e);
+            if (connection != null) {
+                keepAlive.release(connection, false);
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Compares the validators of a full response, from a server that does
+     * not answer conditional requests, with those of the entry.
+     */
+    private static boolean isUnchanged(Entry entry, HttpURLConnection connection) {
+        if (entry.eTag != null && !entry.eTag.equals(connection.getHeaderField("ETag"))) {
+            return false;
+        }
+        if (entry.lastModified != null
+                && !entry.lastModified.equals(connection.getHeaderField("Last-Modified"))) {
+            return false;
+        }
+        return entry.resourceLength == -1
+                || entry.resourceLength == getResourceLength(connection);
+    }
+
+    /**
+     * Returns the time a response may be used until without revalidating,
+     * or -1 if it must not be stored.
+     */
+    private static long getExpiry(HttpURLConnection connection) {
+        long now = System.currentTimeMillis();
+        String cacheControl = connection.getHeaderField("Cache-Control");
+        if (cacheControl != null) {
+            for (String directive : cacheControl.split(",")) {
+                directive = directive.trim().toLowerCase(Locale.US);
+                if (directive.equals("no-store")) {
+                    return -1;
+                } else if (directive.equals("no-cache")) {
+                    return now;
+                } else if (directive.startsWith("max-age=")) {
+                    try {
+                        return now + Long.parseLong(directive.substring(8)) * 1000;
+                    } catch (NumberFormatException e) {
+                        return now;
+                    }
+                }
+            }
+        }
+
+        long expiration = connection.getExpiration();
+        if (expiration > 0) {
+            return expiration;
+        }
+        return now + Configuration.DISK_CACHE_MAX_AGE_MS;
+    }
+
+    /**
+     * Returns the full length of the resource, or -1 if it is not known.
+     */
+    private static long getResourceLength(HttpURLConnection connection) {
+        long length = HttpBufferedDataSource.getResourceLength(connection);
+        if (length == -1) {
+            try {
+                if (connection.getResponseCode() == HttpURLConnection.HTTP_OK) {
+                    length = Long.parseLong(connection.getHeaderField("Content-Length"));
+                }
+            } catch (IOException e) {
+                // Unknown.
+            } catch (NumberFormatException e) {
+                // Unknown.
+            }
+        }
+        return length;
+    }
+
+    private static class Entry {
+
+        final String fileName;
+
+        final long length;
+
+        /** Wall clock time the entry has to be revalidated after. */
+        final long expires;
+
+        final long resourceLength;
+
+        final String eTag;
+
+        final String lastModified;
+
+        Entry(String fileName, long length, long expires, long resourceLength, String eTag,
+                String lastModified) {
+            this.fileName = fileName;
+            this.length = length;
+            this.expires = expires;
+            this.resourceLength = resourceLength;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * Passes a download through while writing it to a temporary file, which
+     * becomes a cache entry if the stream ends after the expected length.
+     */
+    private class CachingInputStream extends InputStream {
+
+        private final InputStream mIn;
+
+        private final String mKey;
+
+        private final File mTempFile;
+
+        private final Entry mPending;
+
+        private FileOutputStream mOut;
+
+        private long mWritten;
+
+        public CachingInputStream(InputStream in, String key, File tempFile, Entry pending)
+                throws IOException {
+            mIn = in;
+            mKey = key;
+            mTempFile = tempFile;
+            mPending = pending;
+            mOut = new FileOutputStream(tempFile);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] data = new byte[1];
+            int read = read(data, 0, 1);
+            return read == -1 ? -1 : data[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int byteOffset, int byteCount) throws IOException {
+            int read = mIn.read(buffer, byteOffset, byteCount);
+            if (read > 0) {
+                write(buffer, byteOffset, read);
+            }
+            if (read == -1 || mWritten == mPending.length) {
+                finish();
+            }
+            return read;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return mIn.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            finish();
+            mIn.close();
+        }
+
+        private void write(byte[] buffer, int byteOffset, int byteCount) {
+            if (mOut == null) {
+                return;
+            }
+            try {
+                mOut.write(buffer, byteOffset, byteCount);
+                mWritten += byteCount;
+            } catch (IOException e) {
+                if (LOGS_ENABLED) Log.w(TAG, "Could not write to cache", e);
+                abandon();
+            }
+        }
+
+        private void finish() {
+            if (mOut == null) {
+                return;
+            }
+            if (mWritten != mPending.length) {
+                abandon();
+                return;
+            }
+
+            try {
+                mOut.close();
+                mOut = null;
+                commit(mKey, mTempFile, mPending);
+            } catch (IOException e) {
+                abandon();
+            }
+        }
+
+        private void abandon() {
+            if (mOut != null) {
+                try {
+                    mOut.close();
+                } catch (IOException e) {
+                }
+                mOut = null;
+            }
+            mTempFile.delete();
+        }
+    }
+}
@@ -33,6 +33,8 @@ import android.os.SystemClock;
 import android.util.Log;
 
 import com.sonymobile.common.AccessUnit;
+import com.sonymobile.common.RelayProtocol;
+import com.sonymobile.common.RelayServer;
 import com.sonymobile.seeder.MediaError;
 import com.sonymobile.seeder.MetaData;
 import com.sonymobile.seeder.SubtitleData;
@@ -75,16 +77,19 @@ public final class SubtitleThread implements Codec {
 
     private byte[] mMarlinSessionId;
 
+    private RelayServer mRelayServer;
+
     private CryptoSession mCryptoSession;
 
     private boolean mEos = false;
 
     public SubtitleThread(MediaSource source, Clock clock,
-            Handler callback) {
+            Handler callback, RelayServer relayServer) {
         if (LOGS_ENABLED) Log.v(TAG, "Creating Subtitle thread");
 
         mClock = clock;
         mCallback = callback;
+        mRelayServer = relayServer;
 
         mEventThread = new HandlerThread("Subtitle", Process.THREAD_PRIORITY_MORE_FAVORABLE);
         mEventThread.start();
@@ -255,6 +260,11 @@ public final class SubtitleThread implements Codec {
                                 accessUnit.size = accessUnit.data.length;
                             }
 
+                            // Peers receive the subtitle in the clear.
+                            if (mRelayServer != null) {
+                                mRelayServer.publish(RelayProtocol.TRACK_SUBTITLE, accessUnit);
+                            }
+
                             mCurrentSubtitle = new SubtitleData(accessUnit.trackIndex,
                                     accessUnit.timeUs, accessUnit.durationUs,
                                     accessUnit.data, accessUnit.size);
@@ -272,6 +282,9 @@ public final class SubtitleThread implements Codec {
                             break;
                         } else if (accessUnit.status == AccessUnit.END_OF_STREAM) {
                             if (LOGS_ENABLED) Log.v(TAG, "End of stream");
+                            if (mRelayServer != null) {
+                                mRelayServer.publish(RelayProtocol.TRACK_SUBTITLE, accessUnit);
+                            }
                             mEos = true;
                             break;
                         } else {
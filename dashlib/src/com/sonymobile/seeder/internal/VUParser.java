@@ -742,7 +742,7 @@ public class VUParser extends ISOBMFFParser {
             if (readFragmented && mCurrentSampleIndex >= mSampleTable.getSampleCount()) {
                 return dequeueAccessUnitFragmented();
             }
-            AccessUnit accessUnit = new AccessUnit();
+            AccessUnit accessUnit = mAccessUnitPool.obtain();
             if (mCurrentSampleIndex >= mSampleTable.getSampleCount()) {
                 accessUnit.status = AccessUnit.END_OF_STREAM;
                 return accessUnit;
@@ -782,32 +782,12 @@ public class VUParser extends ISOBMFFParser {
                 accessUnit.status = AccessUnit.ERROR;
                 return accessUnit;
             }
-            if (mMediaFormat.getString(MediaFormat.KEY_MIME).equals(MimeType.AVC)
-                    && !mIsMarlinProtected) {
+            if (getCodecType() == CodecType.AVC && !mIsMarlinProtected) {
                 // add NAL Header
-                int srcOffset = 0;
-                int dstOffset = 0;
-                int nalLengthSize = 4;
-                // TODO: Support files with nalLengthSize other than 4
-                while (srcOffset < dataSize) {
-                    if ((srcOffset + nalLengthSize) > dataSize) {
-                        accessUnit.status = AccessUnit.ERROR;
-                        return accessUnit;
-                    }
-                    int nalLength = (accessUnit.data[srcOffset++] & 0xff) << 24
-                            | (accessUnit.data[srcOffset++] & 0xff) << 16
-                            | (accessUnit.data[srcOffset++] & 0xff) << 8
-                            | (accessUnit.data[srcOffset++] & 0xff);
-                    if (srcOffset + nalLength > dataSize) {
-                        accessUnit.status = AccessUnit.ERROR;
-                        return accessUnit;
-                    }
-                    accessUnit.data[dstOffset++] = 0;
-                    accessUnit.data[dstOffset++] = 0;
-                    accessUnit.data[dstOffset++] = 0;
-                    accessUnit.data[dstOffset++] = 1;
-                    srcOffset += nalLength;
-                    dstOffset += nalLength;
+                int nalLengthSize = mNALLengthSize != 0 ? mNALLengthSize : sNALHeaderSize;
+                if (!mNalUnitConverter.toAnnexB(accessUnit, nalLengthSize, CodecType.OTHER)) {
+                    accessUnit.status = AccessUnit.ERROR;
+                    return accessUnit;
                 }
             }
             accessUnit.isSyncSample = mSampleTable.isSyncSample(mCurrentSampleIndex);
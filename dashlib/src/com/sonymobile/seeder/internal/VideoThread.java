@@ -20,13 +20,8 @@ import static com.sonymobile.seeder.internal.HandlerHelper.sendMessageAndAwaitRe
 import static com.sonymobile.seeder.internal.Player.MSG_CODEC_NOTIFY;
 
 import java.io.IOException;
-import java.io.ObjectOutputStream;
-import java.net.Inet4Address;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.Set;
 
 import android.annotation.SuppressLint;
@@ -49,7 +44,8 @@ import android.util.Log;
 import android.view.Surface;
 
 import com.sonymobile.common.AccessUnit;
-import com.sonymobile.common.SendObject;
+import com.sonymobile.common.RelayProtocol;
+import com.sonymobile.common.RelayServer;
 import com.sonymobile.seeder.MediaError;
 import com.sonymobile.seeder.MetaData;
 import com.sonymobile.seeder.TrackInfo.TrackType;
@@ -145,26 +141,12 @@ public final class VideoThread extends VideoCodecThread {
 
 	private long mLastAudioTimeUs = 0;
 
-	/*
-	 * To send AccessUnit to seeder.
-	 */
-	private static final int MSG_ACCEPT = 1;
-	private static final int MSG_WRITE = 2;
-	private static final int MSG_CLOSE = 3;
-	private static final String TAG2 = "VideoThread.Socket";
-	private ServerSocket mServerSocket;
-	private Socket mSocket;
-	private HandlerThread mSocketThread;
-	private SocketHandler mSocketHandler;
-	private LinkedList<AccessUnit> mLinkedList = new LinkedList<AccessUnit>();
-	private ObjectOutputStream mSocketOutputStream;
-	private boolean isBinded = false;
-	private Object mBindedLock = new Object();
+	private RelayServer mRelayServer;
 
 	public VideoThread(MediaFormat format, MediaSource source, Surface surface,
 			Clock clock, Handler callback, DrmSession drmSession,
 			int videoScalingMode,
-			HashMap<String, Integer> customMediaFormatParams) {
+			HashMap<String, Integer> customMediaFormatParams, RelayServer relayServer) {
 		super();
 		mEventThread = new HandlerThread("Video",
 				Process.THREAD_PRIORITY_MORE_FAVORABLE);
@@ -192,11 +174,7 @@ public final class VideoThread extends VideoCodecThread {
 		mCustomMediaFormatParams = customMediaFormatParams;
 		mHasQueuedInputBuffers = false;
 
-		// Socket
-		mSocketThread = new HandlerThread(TAG2);
-		mSocketThread.start();
-		mSocketHandler = new SocketHandler(mSocketThread.getLooper());
-		mSocketHandler.sendEmptyMessage(MSG_ACCEPT);
+		mRelayServer = relayServer;
 	}
 
 	@Override
@@ -471,9 +449,6 @@ public final class VideoThread extends VideoCodecThread {
 
 			mEventHandler.removeCallbacksAndMessages(null);
 			mRenderingHandler.removeCallbacksAndMessages(null);
-			
-			//socket close
-			mSocketHandler.obtainMessage(MSG_CLOSE).sendToTarget();
 		}
 	}
 
@@ -525,19 +500,9 @@ public final class VideoThread extends VideoCodecThread {
 				AccessUnit accessUnit = mSource.dequeueAccessUnit(TrackType.VIDEO);
 				//Log.i("accessV","status: "+accessUnit.status+"/ size: "+accessUnit.size+"/ timeMs: "+accessUnit.timeUs/1000);
 				//Log.i("accessV","durationUs: "+accessUnit.durationUs+"/ isSyncSample: "+accessUnit.isSyncSample+"/ trackIndex: "+accessUnit.trackIndex);
-				//if(!mSocket.isConnected())
-				//	mSocketHandler.sendEmptyMessage(MSG_ACCEPT);
-				if(accessUnit.status == 0 && accessUnit.timeUs != -1){
-					mLinkedList.addLast(accessUnit);
-					mSocketHandler.sendEmptyMessage(MSG_WRITE);
-					//Log.i(TAG, "status: "+accessUnit.status);
+				if (mRelayServer != null) {
+					mRelayServer.publish(RelayProtocol.TRACK_VIDEO, accessUnit);
 				}
-				// Send to Peer
-				// Message msg = mSocketHandler.obtainMessage(MSG_WRITE,accessUnit);
-				//Log.i(TAG,"send write message");
-				// mSocketHandler.sendMessage(msg);
-				//onWrite(accessUnit);
-				//
 
 				if (accessUnit.status == AccessUnit.OK) {
 					if (mSkipToIframe && !accessUnit.isSyncSample) {
@@ -584,6 +549,9 @@ public final class VideoThread extends VideoCodecThread {
 						mHasQueuedInputBuffers = true;
 						mInputBuffer = -1;
 					}
+
+					// Queued to the codec or dropped, the relay holds its own reference.
+					accessUnit.recycle();
 				} else if (accessUnit.status == AccessUnit.FORMAT_CHANGED) {
 					Log.i("TAG","format: "+accessUnit.format);
 					Log.i("TAG","format: "+mFormat);
@@ -918,96 +886,6 @@ public final class VideoThread extends VideoCodecThread {
 		}
 	}
 
-	private void onAccept() {
-		try {
-			synchronized (mBindedLock) {
-				if (!isBinded) {
-					if (mServerSocket == null || !mServerSocket.isBound()) {
-						Log.i(TAG, "before make server socket");
-						mServerSocket = new ServerSocket(55000, 1);
-						Log.i(TAG, "after make server socket");
-						isBinded = true;
-					}
-				} else {
-					Log.i(TAG, "server socket already binded");
-					return;
-				}
-			}
-			if(mSocket != null && mSocket.isConnected()) {
-				Log.w(TAG, "one client already connected");
-				return;
-			}
-			try {
-				Log.i(TAG, "(onAccept)before accept");
-				mSocket = mServerSocket.accept();
-				Log.i(TAG, "(onAccept)before make output stream");
-				mSocketOutputStream = new ObjectOutputStream(mSocket.getOutputStream());
-				Log.i(TAG, "(onAccept)after make output stream");
-			} catch (Exception e) {
-				Log.e(TAG, e.getMessage(), e);
-				mSocketHandler.sendEmptyMessage(MSG_CLOSE);
-			}
-		} catch (Exception e) {
-			Log.e(TAG, e.getMessage(), e);
-		}
-	}
-
-	private void onClose() {
-		try {
-			if (mSocket != null && mSocket.isConnected()) {
-				mSocketOutputStream.close();
-				mSocketOutputStream = null;
-				mSocket.close();
-				mSocket = null;
-			}
-		} catch (Exception e) {
-			Log.e(TAG, e.getMessage(), e);
-		}
-	}
-
-	private void onWrite() {
-		try {
-			if (mSocket == null || mSocket.isClosed()) {
-				//Log.i(TAG, "socket is closed");
-				return;
-			}
-			SendObject sobj = new SendObject(mLinkedList.removeFirst());
-			mSocketOutputStream.writeObject(sobj);
-			mSocketOutputStream.flush();
-		} catch (Exception e) {
-			Log.e(TAG, e.getMessage(), e);
-			mSocketHandler.sendEmptyMessage(MSG_CLOSE);
-		}
-	}
-
-	private class SocketHandler extends Handler {
-
-		public SocketHandler(Looper looper) {
-			super(looper);
-		}
-
-		@Override
-		public void handleMessage(Message msg) {
-			switch (msg.what) {
-			case MSG_ACCEPT:
-				Log.i(TAG, "before onAccept");
-				onAccept();
-				Log.i(TAG, "after onAccept");
-				break;
-			case MSG_WRITE:
-				//Log.i(TAG, "before onWrite");
-				onWrite();
-				//Log.i(TAG, "after onWrite");
-				break;
-			case MSG_CLOSE:
-				Log.i(TAG, "before onClose");
-				onClose();
-				Log.i(TAG, "after onClose");
-				break;
-			}
-		}
-	}
-
 	@SuppressLint("HandlerLeak")
 	class EventHandler extends Handler {
 
@@ -42,9 +42,12 @@ import com.sonymobile.seeder.MetaData;
 import com.sonymobile.seeder.RepresentationSelector;
 import com.sonymobile.seeder.TrackInfo;
 import com.sonymobile.seeder.TrackInfo.TrackType;
+import com.sonymobile.seeder.internal.BufferBudget;
 import com.sonymobile.seeder.internal.Configuration;
+import com.sonymobile.seeder.internal.HttpKeepAlive;
 import com.sonymobile.seeder.internal.MetaDataImpl;
 import com.sonymobile.seeder.internal.MimeType;
+import com.sonymobile.seeder.internal.SegmentCache;
 import com.sonymobile.seeder.internal.mpegdash.MPDParser.Representation;
 
 public final class DASHSession {
@@ -344,6 +347,23 @@ public final class DASHSession {
                             RepresentationFetcher fetcher = item.getValue();
                             fetcher.release();
                         }
+                        if (LOGS_ENABLED) {
+                            HttpKeepAlive keepAlive = HttpKeepAlive.getInstance();
+                            Log.i(TAG, "HTTP connections kept alive: "
+                                    + keepAlive.getKeptAliveCount() + ", disconnected: "
+                                    + keepAlive.getDisconnectedCount() + ", DNS cache hits: "
+                                    + keepAlive.getDnsCacheHitCount());
+                            SegmentCache cache = SegmentCache.getInstance();
+                            Log.i(TAG, "Segment cache hits: " + cache.getHitCount()
+                                    + ", misses: " + cache.getMissCount()
+                                    + ", evicted bytes: " + cache.getEvictedBytes());
+                            BufferBudget budget = BufferBudget.getInstance();
+                            for (TrackType track : thiz.mFetchers.keySet()) {
+                                Log.i(TAG, track + " buffer bytes: "
+                                        + budget.getCurrentUsage(track.name()) + ", peak: "
+                                        + budget.getPeakUsage(track.name()));
+                            }
+                        }
                         thiz.mEventThread.quitSafely();
                     }
                     break;
@@ -364,7 +384,7 @@ public final class DASHSession {
             String uri = (String)msg.obj;
             if (LOGS_ENABLED) Log.i(TAG, "onConnect " + uri);
             URL url = new URL(uri);
-            HttpURLConnection urlConnection = (HttpURLConnection)url.openConnection();
+            HttpURLConnection urlConnection = HttpKeepAlive.getInstance().open(url);
 
             if (urlConnection.getResponseCode() / 100 == 2) {
 
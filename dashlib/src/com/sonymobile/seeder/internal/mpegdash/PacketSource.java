@@ -40,14 +40,14 @@ public class PacketSource {
 
         mBuffer.add(accessUnit);
         if (accessUnit.data != null) {
-            mBufferDataSize += accessUnit.data.length;
+            mBufferDataSize += accessUnit.size;
         }
     }
 
     public synchronized AccessUnit dequeueAccessUnit() {
         AccessUnit accessUnit = mBuffer.remove();
         if (accessUnit.data != null) {
-            mBufferDataSize -= accessUnit.data.length;
+            mBufferDataSize -= accessUnit.size;
         }
         return accessUnit;
     }
@@ -293,12 +293,14 @@ public class RepresentationFetcher {
 
                             if (mSeek && mType == TrackType.AUDIO) {
                                 if (accessUnit.timeUs < mSeekTimeUs) {
+                                    accessUnit.recycle();
                                     continue;
                                 }
                             }
 
                             mPacketSource.queueAccessUnit(accessUnit);
                         } else {
+                            accessUnit.recycle();
                             break;
                         }
                     }
@@ -442,9 +444,9 @@ public class RepresentationFetcher {
 
                 mLastFragmentUri = getTemplatedUri(mRepresentation.segmentTemplate.media,
                         segmentTimelineTemplateTicks);
-                source = DataSource.create(
+                source = createDataSource(
                         getTemplatedUri(mRepresentation.segmentTemplate.media,
-                                segmentTimelineTemplateTicks), bandwidthEstimator, true);
+                                segmentTimelineTemplateTicks), -1, -1, bandwidthEstimator);
 
                 mCurrentTimeUs = segmentTimelineTemplateTicks * 1000000L
                         / mRepresentation.segmentTemplate.timescale;
@@ -461,8 +463,8 @@ public class RepresentationFetcher {
                 }
 
                 mLastFragmentUri = getTemplatedUri(mRepresentation.segmentTemplate.media);
-                source = DataSource.create(getTemplatedUri(mRepresentation.segmentTemplate.media),
-                        bandwidthEstimator, true);
+                source = createDataSource(getTemplatedUri(mRepresentation.segmentTemplate.media),
+                        -1, -1, bandwidthEstimator);
 
                 mSegmentNumber++;
 
@@ -507,12 +509,12 @@ public class RepresentationFetcher {
                                             && mSeekTimeUs < timelineTime + segmentDurationUs) {
                                         found = true;
                                         mNextTimeUs = timelineTime + segmentDurationUs;
-                                        source = DataSource.create(
+                                        source = createDataSource(
                                                 getTemplatedUri(
                                                         mRepresentation.segmentTemplate.media,
                                                         segmentTimelineTemplateTicks),
                                                 subsegment.offset, subsegment.size,
-                                                bandwidthEstimator, true);
+                                                bandwidthEstimator);
                                     }
                                 } else if (timelineTime >= mNextTimeUs) {
                                     found = true;
@@ -521,12 +523,12 @@ public class RepresentationFetcher {
                                     mLastFragmentUri = getTemplatedUri(
                                             mRepresentation.segmentTemplate.media,
                                             segmentTimelineTemplateTicks);
-                                    source = DataSource.create(
+                                    source = createDataSource(
                                             getTemplatedUri(
                                                     mRepresentation.segmentTemplate.media,
                                                     segmentTimelineTemplateTicks),
                                             subsegment.offset, subsegment.size,
-                                            bandwidthEstimator, true);
+                                            bandwidthEstimator);
                                     break;
                                 }
 
@@ -541,9 +543,9 @@ public class RepresentationFetcher {
                         mNextTimeUs = subsegment.timeUs + subsegment.durationUs;
                         mLastFragmentUri =
                                 getTemplatedUri(mRepresentation.segmentTemplate.media);
-                        source = DataSource.create(
+                        source = createDataSource(
                                 getTemplatedUri(mRepresentation.segmentTemplate.media),
-                                subsegment.offset, subsegment.size, bandwidthEstimator, true);
+                                subsegment.offset, subsegment.size, bandwidthEstimator);
                     }
 
                     if (i == mSegmentIndex.size() - 1) {
@@ -554,8 +556,8 @@ public class RepresentationFetcher {
                 } else if (mRepresentation.segmentBase != null) {
                     mNextTimeUs = subsegment.timeUs + subsegment.durationUs;
                     mLastFragmentUri = mRepresentation.segmentBase.url;
-                    source = DataSource.create(mRepresentation.segmentBase.url,
-                            subsegment.offset, subsegment.size, bandwidthEstimator, true);
+                    source = createDataSource(mRepresentation.segmentBase.url,
+                            subsegment.offset, subsegment.size, bandwidthEstimator);
 
                     if (i == mSegmentIndex.size() - 1) {
                         Message callback = mSession.getFetcherCallbackMessage(mType);
@@ -631,9 +633,9 @@ public class RepresentationFetcher {
                     return null;
                 }
 
-                return DataSource.create(
+                return createDataSource(
                         getTemplatedUri(mRepresentation.segmentTemplate.media,
-                                segmentTimelineTemplateTicks), 0, SIDX_HEADER_SNIFF_SIZE, true);
+                                segmentTimelineTemplateTicks), 0, SIDX_HEADER_SNIFF_SIZE, null);
             } else {
                 if (mRepresentation.segmentTemplate.noSegments > -1) {
                     if (mSegmentNumber >= mRepresentation.segmentTemplate.startNumber
@@ -646,26 +648,35 @@ public class RepresentationFetcher {
                     }
                 }
 
-                return DataSource.create(getTemplatedUri(mRepresentation.segmentTemplate.media), 0,
-                        SIDX_HEADER_SNIFF_SIZE, true);
+                return createDataSource(getTemplatedUri(mRepresentation.segmentTemplate.media), 0,
+                        SIDX_HEADER_SNIFF_SIZE, null);
             }
         } else if (mRepresentation.segmentBase != null) {
-            return DataSource.create(mRepresentation.segmentBase.url,
+            return createDataSource(mRepresentation.segmentBase.url,
                     mRepresentation.segmentBase.sidxOffset,
-                    (int)mRepresentation.segmentBase.sidxSize, true);
+                    (int)mRepresentation.segmentBase.sidxSize, null);
         }
 
         return null;
     }
 
+    /**
+     * Creates a data source whose buffer is accounted to this track.
+     */
+    private DataSource createDataSource(String uri, long offset, int length,
+            BandwidthEstimator bandwidthEstimator) {
+        return DataSource.create(uri, offset, length, -1, null, bandwidthEstimator, true,
+                mType.name());
+    }
+
     private DataSource createInitDataSource() {
         if (mRepresentation.segmentTemplate != null) {
-            return DataSource
-                    .create(getTemplatedUri(mRepresentation.segmentTemplate.initialization), true);
+            return createDataSource(
+                    getTemplatedUri(mRepresentation.segmentTemplate.initialization), -1, -1, null);
         } else if (mRepresentation.segmentBase != null) {
-            return DataSource.create(mRepresentation.segmentBase.url,
+            return createDataSource(mRepresentation.segmentBase.url,
                     mRepresentation.segmentBase.initOffset,
-                    (int)mRepresentation.segmentBase.initSize, true);
+                    (int)mRepresentation.segmentBase.initSize, null);
         }
         if (LOGS_ENABLED) Log.e(TAG, "No init url");
         return null;